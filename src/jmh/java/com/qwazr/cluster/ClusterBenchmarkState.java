@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.qwazr.server.configuration.ServerConfiguration;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A cluster manager populated with simulated nodes.
+ * The node i belongs to the group (i % groups) and provides the service (i % services).
+ */
+@State(Scope.Benchmark)
+public class ClusterBenchmarkState {
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int nodes;
+
+    @Param({ "1", "10" })
+    public int groups;
+
+    @Param({ "1", "10" })
+    public int services;
+
+    ExecutorService executorService;
+    ClusterManager clusterManager;
+    ClusterNodeMap clusterNodeMap;
+
+    /**
+     * The registered membership of each node
+     */
+    FullContent[] fullMessages;
+    /**
+     * The same nodes providing one more service
+     */
+    FullContent[] changedMessages;
+    /**
+     * The keep-alive of each node
+     */
+    AddressContent[] addressMessages;
+
+    /**
+     * The digest of each node, with the registered membership version
+     */
+    DigestContent[] digestMessages;
+
+    String[] groupNames;
+    String[] serviceNames;
+
+    private int next;
+    private boolean changed;
+
+    static String nodeAddress(final int i) {
+        return "http://10." + ((i >> 16) & 255) + '.' + ((i >> 8) & 255) + '.' + (i & 255) + ":9091";
+    }
+
+    private static String[] names(final String prefix, final int count) {
+        final String[] names = new String[count];
+        for (int i = 0; i < count; i++)
+            names[i] = prefix + i;
+        return names;
+    }
+
+    private static Set<String> setOf(final String... values) {
+        final Set<String> set = new HashSet<>();
+        for (final String value : values)
+            set.add(value);
+        return set;
+    }
+
+    @Setup
+    public void setup() {
+        executorService = Executors.newCachedThreadPool();
+        clusterManager = new ClusterManager(executorService, ServerConfiguration.of()
+                .publicAddress("localhost")
+                .listenAddress("localhost")
+                .webServicePort(9091)
+                .build());
+        clusterNodeMap = clusterManager.clusterNodeMap;
+        groupNames = names("group", groups);
+        serviceNames = names("service", services);
+        fullMessages = new FullContent[nodes];
+        changedMessages = new FullContent[nodes];
+        addressMessages = new AddressContent[nodes];
+        digestMessages = new DigestContent[nodes];
+        for (int i = 0; i < nodes; i++) {
+            final String address = nodeAddress(i);
+            final UUID uuid = UUID.randomUUID();
+            final String group = groupNames[i % groups];
+            final String service = serviceNames[i % services];
+            fullMessages[i] = new FullContent(address, uuid, setOf(group), setOf(service), 0);
+            changedMessages[i] = new FullContent(address, uuid, setOf(group), setOf(service, "changed"));
+            addressMessages[i] = new AddressContent(address, uuid);
+            digestMessages[i] = new DigestContent(address, uuid, 0);
+            clusterNodeMap.registerFull(fullMessages[i], null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdown();
+    }
+
+    /**
+     * @return the index of the next node, round robin
+     */
+    final int nextNode() {
+        if (++next >= nodes)
+            next = 0;
+        return next;
+    }
+
+    /**
+     * @return a message changing the membership of the next node
+     */
+    final FullContent nextChange() {
+        final int i = nextNode();
+        if (i == 0)
+            changed = !changed;
+        return changed ? changedMessages[i] : fullMessages[i];
+    }
+
+    final String nextGroup() {
+        return groupNames[next % groups];
+    }
+
+    final String nextService() {
+        return serviceNames[next % services];
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The node selection strategies of ClusterManager
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ClusterManagerBenchmark {
+
+    @Benchmark
+    public String getRandomNode(final ClusterBenchmarkState state) {
+        state.nextNode();
+        return state.clusterManager.getRandomNode(state.nextGroup(), state.nextService());
+    }
+
+    @Benchmark
+    public String getLeaderNode(final ClusterBenchmarkState state) {
+        state.nextNode();
+        return state.clusterManager.getLeaderNode(state.nextGroup(), state.nextService());
+    }
+
+    @Benchmark
+    public String getNodeByKey(final ClusterBenchmarkState state) {
+        final String key = state.addressMessages[state.nextNode()].getAddress();
+        return state.clusterManager.getNodeByKey(state.nextGroup(), state.nextService(), key);
+    }
+}
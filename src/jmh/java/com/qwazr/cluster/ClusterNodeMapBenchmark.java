@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The membership handling of ClusterNodeMap: registrations (keep-alive and membership changes), expiration and
+ * lookups.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ClusterNodeMapBenchmark {
+
+    /**
+     * A full message (join/forward/reply) from a known node with the same groups and services
+     */
+    @Benchmark
+    public ClusterNode registerFullUnchanged(final ClusterBenchmarkState state) {
+        return state.clusterNodeMap.registerFull(state.fullMessages[state.nextNode()], null);
+    }
+
+    /**
+     * A full message from a known node which adds or removes a service
+     */
+    @Benchmark
+    public ClusterNode registerFullChanged(final ClusterBenchmarkState state) {
+        return state.clusterNodeMap.registerFull(state.nextChange(), null);
+    }
+
+    /**
+     * A keep-alive (notify/alive) from a known node
+     */
+    @Benchmark
+    public ClusterNode registerAddress(final ClusterBenchmarkState state) {
+        return state.clusterNodeMap.registerAddress(state.addressMessages[state.nextNode()], null);
+    }
+
+    /**
+     * A digest (digest/ack) from a known node with an unchanged membership version
+     */
+    @Benchmark
+    public ClusterNode refreshDigest(final ClusterBenchmarkState state) {
+        return state.clusterNodeMap.refreshDigest(state.digestMessages[state.nextNode()], null);
+    }
+
+    /**
+     * The periodic expiration check, when no node is expired
+     */
+    @Benchmark
+    public void removeExpired(final ClusterBenchmarkState state) {
+        state.clusterNodeMap.removeExpired();
+    }
+
+    @Benchmark
+    public SortedSet<String> getGroupService(final ClusterBenchmarkState state) {
+        state.nextNode();
+        return state.clusterNodeMap.getGroupService(state.nextGroup(), state.nextService());
+    }
+
+    @Benchmark
+    public SortedSet<String> getByService(final ClusterBenchmarkState state) {
+        state.nextNode();
+        return state.clusterNodeMap.getByService(state.nextService());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the cost of the node lists returned to the callers (Java API and REST service).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ClusterNodeViewsBenchmark {
+
+    private final static ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Benchmark
+    public SortedSet<String> getByService(final ClusterBenchmarkState state) {
+        state.nextNode();
+        return state.clusterManager.getNodesByGroupByService(null, state.nextService());
+    }
+
+    @Benchmark
+    public SortedSet<String> getByGroup(final ClusterBenchmarkState state) {
+        state.nextNode();
+        return state.clusterManager.getNodesByGroupByService(state.nextGroup(), null);
+    }
+
+    @Benchmark
+    public SortedSet<String> getNodes(final ClusterBenchmarkState state) {
+        return state.clusterManager.getService().getNodes();
+    }
+
+    @Benchmark
+    public SortedSet<String> getActiveNodesByService(final ClusterBenchmarkState state) {
+        state.nextNode();
+        return state.clusterManager.getService().getActiveNodesByService(state.nextService(), state.nextGroup());
+    }
+
+    /**
+     * The serialized status, as written by ClusterStatusJsonWriter (cached while the membership does not change)
+     */
+    @Benchmark
+    public byte[] getStatusBody(final ClusterBenchmarkState state) throws JsonProcessingException {
+        return state.clusterManager.getStatus().toJsonBytes(OBJECT_MAPPER);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.qwazr.server.configuration.ServerConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A data-center restart: every node joins an empty cluster at the same time.
+ * The joins are registered one by one (one write lock and one snapshot each), or by batches as the receive
+ * pipeline drains them from its queue.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class JoinStormBenchmark {
+
+    @Param({ "1000" })
+    public int nodes;
+
+    @Param({ "10" })
+    public int groups;
+
+    @Param({ "10" })
+    public int services;
+
+    private ExecutorService executorService;
+    private ClusterManager clusterManager;
+    private List<FullContent> joins;
+
+    private ClusterNodeMap clusterNodeMap;
+
+    @Setup
+    public void setup() {
+        executorService = Executors.newCachedThreadPool();
+        clusterManager = new ClusterManager(executorService, ServerConfiguration.of()
+                .publicAddress("localhost")
+                .listenAddress("localhost")
+                .webServicePort(9091)
+                .build());
+        final FullContent[] messages = new FullContent[nodes];
+        for (int i = 0; i < nodes; i++)
+            messages[i] = new FullContent(ClusterBenchmarkState.nodeAddress(i), UUID.randomUUID(),
+                    new HashSet<>(Arrays.asList("group" + (i % groups))),
+                    new HashSet<>(Arrays.asList("service" + (i % services))), 0);
+        joins = Arrays.asList(messages);
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyCluster() {
+        clusterNodeMap = new ClusterNodeMap(clusterManager, clusterManager.me.address);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdown();
+    }
+
+    @Benchmark
+    public ClusterNodeMap oneByOne() {
+        for (final FullContent join : joins)
+            clusterNodeMap.registerFull(join, null);
+        return clusterNodeMap;
+    }
+
+    @Benchmark
+    public ClusterNodeMap batches() {
+        final int size = DatagramTransport.MAX_BATCH_SIZE;
+        for (int i = 0; i < joins.size(); i += size)
+            clusterNodeMap.registerAll(joins.subList(i, Math.min(i + size, joins.size())), message -> null);
+        return clusterNodeMap;
+    }
+}
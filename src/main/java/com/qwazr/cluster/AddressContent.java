@@ -19,6 +19,7 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 class AddressContent implements Externalizable {
@@ -31,6 +32,10 @@ class AddressContent implements Externalizable {
      * The UUID of the node
      */
     private UUID nodeLiveId;
+    /**
+     * The load of the sender, only written by the messages a node sends about itself (see writeLoad)
+     */
+    private ClusterLoad load;
 
     public AddressContent() {
     }
@@ -48,6 +53,14 @@ class AddressContent implements Externalizable {
         return nodeLiveId;
     }
 
+    final ClusterLoad getLoad() {
+        return load;
+    }
+
+    final void setLoad(final ClusterLoad load) {
+        this.load = load;
+    }
+
     @Override
     public void writeExternal(final ObjectOutput out) throws IOException {
         out.writeUTF(address);
@@ -61,6 +74,28 @@ class AddressContent implements Externalizable {
         this.nodeLiveId = new UUID(in.readLong(), in.readLong());
     }
 
+    void writeTo(final ByteBuffer buffer) {
+        MessageCodec.writeString(buffer, address);
+        MessageCodec.writeUUID(buffer, nodeLiveId);
+    }
+
+    void readFrom(final ByteBuffer buffer) throws IOException {
+        this.address = MessageCodec.readString(buffer);
+        this.nodeLiveId = MessageCodec.readUUID(buffer);
+    }
+
+    /**
+     * Append the load at the end of the message. The previous versions ignore the trailing bytes.
+     */
+    final void writeLoad(final ByteBuffer buffer) {
+        if (load != null)
+            load.writeTo(buffer);
+    }
+
+    final void readLoad(final ByteBuffer buffer) throws IOException {
+        load = ClusterLoad.readFrom(buffer);
+    }
+
     @Override
     public String toString() {
         return address + " " + nodeLiveId;
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * The settings of the cluster protocol. Each setting can be given as a system property or as an environment variable
+ * (the system property wins).
+ */
+public class ClusterConfiguration {
+
+    public enum Protocol {
+
+        /**
+         * The historic protocol: every node periodically sends an alive message to the other nodes
+         */
+        gossip,
+
+        /**
+         * SWIM failure detector: randomized direct and indirect pings with suspicion
+         */
+        swim
+    }
+
+    public final static String QWAZR_CLUSTER_PROTOCOL = "QWAZR_CLUSTER_PROTOCOL";
+    public final static String QWAZR_CLUSTER_NOTIFY_FLUSH_MS = "QWAZR_CLUSTER_NOTIFY_FLUSH_MS";
+    public final static String QWAZR_CLUSTER_SWIM_PERIOD_MS = "QWAZR_CLUSTER_SWIM_PERIOD_MS";
+    public final static String QWAZR_CLUSTER_SWIM_INDIRECT_PROBES = "QWAZR_CLUSTER_SWIM_INDIRECT_PROBES";
+    public final static String QWAZR_CLUSTER_SWIM_SUSPICION_MULTIPLIER = "QWAZR_CLUSTER_SWIM_SUSPICION_MULTIPLIER";
+    public final static String QWAZR_CLUSTER_PHI_THRESHOLD = "QWAZR_CLUSTER_PHI_THRESHOLD";
+    public final static String QWAZR_CLUSTER_HEARTBEAT_PERIOD_MS = "QWAZR_CLUSTER_HEARTBEAT_PERIOD_MS";
+    public final static String QWAZR_CLUSTER_HEARTBEAT_MIN_PERIOD_MS = "QWAZR_CLUSTER_HEARTBEAT_MIN_PERIOD_MS";
+    public final static String QWAZR_CLUSTER_HEARTBEAT_JITTER = "QWAZR_CLUSTER_HEARTBEAT_JITTER";
+    public final static String QWAZR_CLUSTER_EXPIRY_MULTIPLIER = "QWAZR_CLUSTER_EXPIRY_MULTIPLIER";
+    public final static String QWAZR_CLUSTER_RECEIVE_QUEUE_SIZE = "QWAZR_CLUSTER_RECEIVE_QUEUE_SIZE";
+    public final static String QWAZR_CLUSTER_SEND_QUEUE_SIZE = "QWAZR_CLUSTER_SEND_QUEUE_SIZE";
+    public final static String QWAZR_CLUSTER_PARTITIONS = "QWAZR_CLUSTER_PARTITIONS";
+    public final static String QWAZR_CLUSTER_PARTITION_REPLICAS = "QWAZR_CLUSTER_PARTITION_REPLICAS";
+
+    public final Protocol protocol;
+
+    /**
+     * The interval between two flushes of the notify queue, zero sends the notify messages immediately
+     */
+    public final long notifyFlushMs;
+
+    /**
+     * The SWIM protocol period: one node is probed per period
+     */
+    public final long swimPeriodMs;
+
+    /**
+     * The number of nodes asked to probe a node which did not answer a direct ping
+     */
+    public final int swimIndirectProbes;
+
+    /**
+     * A suspect node is declared dead after (multiplier * log10(number of nodes) * period)
+     */
+    public final int swimSuspicionMultiplier;
+
+    /**
+     * The phi-accrual level above which a node is suspect: it is not returned by the random and active node
+     * lookups, even though it did not expire yet. Zero or less disables the detection.
+     */
+    public final double phiThreshold;
+
+    /**
+     * The interval between two heartbeats when the membership is stable
+     */
+    public final long heartbeatPeriodMs;
+
+    /**
+     * The interval between two heartbeats while the membership changes. The interval is doubled at each stable
+     * heartbeat until it reaches heartbeatPeriodMs.
+     */
+    public final long heartbeatMinPeriodMs;
+
+    /**
+     * Each interval is randomly shortened or extended by this fraction, so that the nodes don't send their
+     * heartbeats at the same time
+     */
+    public final double heartbeatJitter;
+
+    /**
+     * A node expires after (multiplier * heartbeatPeriodMs * (1 + heartbeatJitter)) without any message
+     */
+    public final int expiryMultiplier;
+
+    /**
+     * The number of received datagrams waiting to be applied, the next ones are dropped
+     */
+    public final int receiveQueueSize;
+
+    /**
+     * The number of outgoing messages waiting to be sent, the next ones are dropped
+     */
+    public final int sendQueueSize;
+
+    /**
+     * The number of partitions of the partition tables of the services
+     */
+    public final int partitions;
+
+    /**
+     * The number of nodes which own each partition (the primary included)
+     */
+    public final int partitionReplicas;
+
+    private ClusterConfiguration(final Builder builder) {
+        this.protocol = builder.protocol;
+        this.notifyFlushMs = builder.notifyFlushMs;
+        this.swimPeriodMs = builder.swimPeriodMs;
+        this.swimIndirectProbes = builder.swimIndirectProbes;
+        this.swimSuspicionMultiplier = builder.swimSuspicionMultiplier;
+        this.phiThreshold = builder.phiThreshold;
+        this.heartbeatPeriodMs = builder.heartbeatPeriodMs;
+        this.heartbeatMinPeriodMs = builder.heartbeatMinPeriodMs > 0 ?
+                Math.min(builder.heartbeatMinPeriodMs, builder.heartbeatPeriodMs) :
+                Math.max(1, builder.heartbeatPeriodMs / 8);
+        this.heartbeatJitter = builder.heartbeatJitter;
+        this.expiryMultiplier = builder.expiryMultiplier;
+        this.receiveQueueSize = builder.receiveQueueSize;
+        this.sendQueueSize = builder.sendQueueSize;
+        this.partitions = builder.partitions;
+        this.partitionReplicas = builder.partitionReplicas;
+    }
+
+    /**
+     * The jitter can stretch each interval, a longest interval must not expire a node even with a multiplier of one.
+     *
+     * @return the time after which a silent node is removed
+     */
+    public long getExpirationMs() {
+        return (long) Math.ceil(expiryMultiplier * heartbeatPeriodMs * (1 + heartbeatJitter));
+    }
+
+    /**
+     * @return the period the heartbeats back off to while the membership is stable, zero if the period is fixed (the
+     * SWIM probes, or a minimum period equal to the period)
+     */
+    public long getMaxBackOffPeriodMs() {
+        return protocol == Protocol.swim || heartbeatMinPeriodMs >= heartbeatPeriodMs ? 0 : heartbeatPeriodMs;
+    }
+
+    static String property(final String key) {
+        final String value = System.getProperty(key);
+        return value != null ? value : System.getenv(key);
+    }
+
+    /**
+     * @return a builder initialized with the system properties and the environment variables
+     */
+    public static Builder of() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private Protocol protocol;
+        private long notifyFlushMs;
+        private long swimPeriodMs;
+        private int swimIndirectProbes;
+        private int swimSuspicionMultiplier;
+        private double phiThreshold;
+        private long heartbeatPeriodMs;
+        private long heartbeatMinPeriodMs;
+        private double heartbeatJitter;
+        private int expiryMultiplier;
+        private int receiveQueueSize;
+        private int sendQueueSize;
+        private int partitions;
+        private int partitionReplicas;
+
+        private Builder() {
+            protocol = get(QWAZR_CLUSTER_PROTOCOL, p -> Protocol.valueOf(p.toLowerCase()), Protocol.gossip);
+            notifyFlushMs = get(QWAZR_CLUSTER_NOTIFY_FLUSH_MS, Long::parseLong, 100L);
+            swimPeriodMs = get(QWAZR_CLUSTER_SWIM_PERIOD_MS, Long::parseLong, 1000L);
+            swimIndirectProbes = get(QWAZR_CLUSTER_SWIM_INDIRECT_PROBES, Integer::parseInt, 3);
+            swimSuspicionMultiplier = get(QWAZR_CLUSTER_SWIM_SUSPICION_MULTIPLIER, Integer::parseInt, 5);
+            phiThreshold = get(QWAZR_CLUSTER_PHI_THRESHOLD, Double::parseDouble, 8.0);
+            heartbeatPeriodMs = get(QWAZR_CLUSTER_HEARTBEAT_PERIOD_MS, Long::parseLong, 120000L);
+            heartbeatMinPeriodMs = get(QWAZR_CLUSTER_HEARTBEAT_MIN_PERIOD_MS, Long::parseLong, 0L);
+            heartbeatJitter = get(QWAZR_CLUSTER_HEARTBEAT_JITTER, Double::parseDouble, 0.1);
+            expiryMultiplier = get(QWAZR_CLUSTER_EXPIRY_MULTIPLIER, Integer::parseInt, 2);
+            receiveQueueSize = get(QWAZR_CLUSTER_RECEIVE_QUEUE_SIZE, Integer::parseInt,
+                    DatagramTransport.DEFAULT_QUEUE_SIZE);
+            sendQueueSize = get(QWAZR_CLUSTER_SEND_QUEUE_SIZE, Integer::parseInt, DatagramTransport.DEFAULT_QUEUE_SIZE);
+            partitions = get(QWAZR_CLUSTER_PARTITIONS, Integer::parseInt, 64);
+            partitionReplicas = get(QWAZR_CLUSTER_PARTITION_REPLICAS, Integer::parseInt, 2);
+        }
+
+        private static <T> T get(final String key, final Function<String, T> parser, final T defaultValue) {
+            final String value = property(key);
+            return value == null || value.isEmpty() ? defaultValue : parser.apply(value.trim());
+        }
+
+        public Builder protocol(final Protocol protocol) {
+            this.protocol = Objects.requireNonNull(protocol, "The protocol is missing");
+            return this;
+        }
+
+        public Builder notifyFlushMs(final long notifyFlushMs) {
+            this.notifyFlushMs = notifyFlushMs;
+            return this;
+        }
+
+        public Builder swimPeriodMs(final long swimPeriodMs) {
+            this.swimPeriodMs = swimPeriodMs;
+            return this;
+        }
+
+        public Builder swimIndirectProbes(final int swimIndirectProbes) {
+            this.swimIndirectProbes = swimIndirectProbes;
+            return this;
+        }
+
+        public Builder swimSuspicionMultiplier(final int swimSuspicionMultiplier) {
+            this.swimSuspicionMultiplier = swimSuspicionMultiplier;
+            return this;
+        }
+
+        public Builder phiThreshold(final double phiThreshold) {
+            this.phiThreshold = phiThreshold;
+            return this;
+        }
+
+        public Builder heartbeatPeriodMs(final long heartbeatPeriodMs) {
+            this.heartbeatPeriodMs = heartbeatPeriodMs;
+            return this;
+        }
+
+        /**
+         * @param heartbeatMinPeriodMs the interval during the membership changes, zero means heartbeatPeriodMs / 8
+         * @return this builder
+         */
+        public Builder heartbeatMinPeriodMs(final long heartbeatMinPeriodMs) {
+            this.heartbeatMinPeriodMs = heartbeatMinPeriodMs;
+            return this;
+        }
+
+        public Builder heartbeatJitter(final double heartbeatJitter) {
+            this.heartbeatJitter = heartbeatJitter;
+            return this;
+        }
+
+        public Builder expiryMultiplier(final int expiryMultiplier) {
+            this.expiryMultiplier = expiryMultiplier;
+            return this;
+        }
+
+        public Builder receiveQueueSize(final int receiveQueueSize) {
+            this.receiveQueueSize = receiveQueueSize;
+            return this;
+        }
+
+        public Builder sendQueueSize(final int sendQueueSize) {
+            this.sendQueueSize = sendQueueSize;
+            return this;
+        }
+
+        public Builder partitions(final int partitions) {
+            this.partitions = partitions;
+            return this;
+        }
+
+        public Builder partitionReplicas(final int partitionReplicas) {
+            this.partitionReplicas = partitionReplicas;
+            return this;
+        }
+
+        public ClusterConfiguration build() {
+            if (swimPeriodMs <= 0)
+                throw new IllegalArgumentException("The SWIM period must be positive: " + swimPeriodMs);
+            if (heartbeatPeriodMs <= 0)
+                throw new IllegalArgumentException("The heartbeat period must be positive: " + heartbeatPeriodMs);
+            if (heartbeatJitter < 0 || heartbeatJitter >= 1)
+                throw new IllegalArgumentException("The heartbeat jitter must be in [0, 1): " + heartbeatJitter);
+            if (expiryMultiplier < 1)
+                throw new IllegalArgumentException("The expiry multiplier must be positive: " + expiryMultiplier);
+            if (receiveQueueSize <= 0 || sendQueueSize <= 0)
+                throw new IllegalArgumentException("The queue sizes must be positive");
+            if (partitions <= 0 || partitionReplicas <= 0)
+                throw new IllegalArgumentException("The number of partitions and of replicas must be positive");
+            return new ClusterConfiguration(this);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Objects;
+import java.util.SortedSet;
+
+/**
+ * A change of the cluster membership, computed by comparing two successive snapshots.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ClusterEvent {
+
+    public enum Type {
+
+        /**
+         * A new node, or a new incarnation of a known node (restarted with another UUID)
+         */
+        node_joined,
+
+        /**
+         * The node left the cluster
+         */
+        node_left,
+
+        /**
+         * The node has been removed because its expiration time is passed
+         */
+        node_expired,
+
+        /**
+         * The nodes of a group changed
+         */
+        groups_changed,
+
+        /**
+         * The nodes of a service changed
+         */
+        services_changed,
+
+        /**
+         * The leader of a service, of a group, or of a service within a group changed
+         */
+        leader_changed,
+
+        /**
+         * Some partitions of a service moved to other nodes (only for the partition tables which are in use)
+         */
+        partitions_changed
+    }
+
+    public final Type type;
+
+    /**
+     * The version of the membership snapshot which contains the change
+     */
+    public final long version;
+
+    /**
+     * The node which joined, left or expired, or the new leader (null if there is no more node)
+     */
+    public final String node;
+
+    public final String group;
+
+    public final String service;
+
+    /**
+     * The new nodes of the group or of the service
+     */
+    public final SortedSet<String> nodes;
+
+    /**
+     * The partitions of the service which moved
+     */
+    public final SortedSet<Integer> partitions;
+
+    @JsonCreator
+    ClusterEvent(@JsonProperty("type") final Type type, @JsonProperty("version") final long version,
+                 @JsonProperty("node") final String node, @JsonProperty("group") final String group,
+                 @JsonProperty("service") final String service, @JsonProperty("nodes") final SortedSet<String> nodes,
+                 @JsonProperty("partitions") final SortedSet<Integer> partitions) {
+        this.type = type;
+        this.version = version;
+        this.node = node;
+        this.group = group;
+        this.service = service;
+        this.nodes = nodes;
+        this.partitions = partitions;
+    }
+
+    ClusterEvent(final Type type, final long version, final String node, final String group, final String service,
+                 final SortedSet<String> nodes) {
+        this(type, version, node, group, service, nodes, null);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ClusterEvent))
+            return false;
+        final ClusterEvent e = (ClusterEvent) o;
+        return type == e.type && version == e.version && Objects.equals(node, e.node) &&
+                Objects.equals(group, e.group) && Objects.equals(service, e.service) &&
+                Objects.equals(nodes, e.nodes) && Objects.equals(partitions, e.partitions);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, version, node, group, service);
+    }
+
+    @Override
+    public String toString() {
+        return type + "@" + version + " node: " + node + " group: " + group + " service: " + service +
+                " nodes: " + nodes + (partitions == null ? "" : " partitions: " + partitions);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.qwazr.utils.LoggerUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Turns the successive membership snapshots into events.
+ * <p>
+ * The writers only queue the (previous, next) snapshot pairs, and only if someone listens. The differences are
+ * computed later by one thread at a time, which delivers the events in the order of the snapshots.
+ */
+final class ClusterEventDispatcher implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerUtils.getLogger(ClusterEventDispatcher.class);
+
+    private final ExecutorService executorService;
+    private final CopyOnWriteArrayList<ClusterEventListener> listeners;
+    private final SubmissionPublisher<ClusterEvent> publisher;
+
+    private final ConcurrentLinkedQueue<Change> changes;
+    private final AtomicBoolean draining;
+
+    private final LongAdder droppedCount = new LongAdder();
+
+    private final int partitionCount;
+    private final int partitionReplicas;
+
+    ClusterEventDispatcher(final ExecutorService executorService) {
+        this(executorService, 0, 0);
+    }
+
+    /**
+     * @param executorService   the executor which computes and delivers the events
+     * @param partitionCount    the number of partitions of the partition tables, zero for no partition event
+     * @param partitionReplicas the number of nodes per partition
+     */
+    ClusterEventDispatcher(final ExecutorService executorService, final int partitionCount,
+                           final int partitionReplicas) {
+        this.executorService = executorService;
+        this.partitionCount = partitionCount;
+        this.partitionReplicas = partitionReplicas;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.publisher = executorService == null ?
+                new SubmissionPublisher<>() :
+                new SubmissionPublisher<>(executorService, Flow.defaultBufferSize());
+        this.changes = new ConcurrentLinkedQueue<>();
+        this.draining = new AtomicBoolean(false);
+    }
+
+    final void addListener(final ClusterEventListener listener) {
+        listeners.add(Objects.requireNonNull(listener, "The listener is null"));
+    }
+
+    final boolean removeListener(final ClusterEventListener listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * A subscriber which does not request the events fast enough loses the events which overflow its buffer.
+     *
+     * @return the publisher of the events
+     */
+    final Flow.Publisher<ClusterEvent> getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * @return the number of events which have not been delivered to a slow subscriber
+     */
+    final long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Called by the writers each time a snapshot is published.
+     *
+     * @param previous the replaced snapshot
+     * @param next     the published snapshot
+     * @param expired  true if the removed nodes have expired, false if they left
+     */
+    final void submit(final ClusterNodeSnapshot previous, final ClusterNodeSnapshot next, final boolean expired) {
+        if (previous == next || (listeners.isEmpty() && !publisher.hasSubscribers()))
+            return;
+        changes.add(new Change(previous, next, expired));
+        if (!draining.compareAndSet(false, true))
+            return;
+        if (executorService == null) {
+            drain();
+            return;
+        }
+        try {
+            executorService.submit(this::drain);
+        } catch (RejectedExecutionException e) {
+            draining.set(false);
+            LOGGER.log(Level.WARNING, e, () -> "Unable to dispatch the cluster events");
+        }
+    }
+
+    private void drain() {
+        do {
+            Change change;
+            while ((change = changes.poll()) != null)
+                dispatch(diff(change.previous, change.next, change.expired, partitionCount, partitionReplicas));
+            draining.set(false);
+            // A change may have been queued after the last poll, while we were still draining
+        } while (!changes.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    private void dispatch(final List<ClusterEvent> events) {
+        if (events.isEmpty())
+            return;
+        for (final ClusterEventListener listener : listeners) {
+            try {
+                listener.onEvents(events);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "The cluster event listener failed: " + listener);
+            }
+        }
+        if (!publisher.hasSubscribers())
+            return;
+        for (final ClusterEvent event : events)
+            publisher.offer(event, (subscriber, dropped) -> {
+                droppedCount.increment();
+                return false;
+            });
+    }
+
+    /**
+     * Completes the subscriptions
+     */
+    @Override
+    public void close() {
+        publisher.close();
+    }
+
+    /**
+     * The containers which are shared by the two snapshots are not compared.
+     *
+     * @param previous the replaced snapshot
+     * @param next     the published snapshot
+     * @param expired  true if the removed nodes have expired, false if they left
+     * @return the events in this order: joined nodes, groups, services, leaders, removed nodes
+     */
+    static List<ClusterEvent> diff(final ClusterNodeSnapshot previous, final ClusterNodeSnapshot next,
+                                   final boolean expired) {
+        return diff(previous, next, expired, 0, 0);
+    }
+
+    /**
+     * The partition events are only computed for the services whose partition table has already been built (see
+     * ClusterManager.getPartitionTable), the new table is built for the next changes.
+     *
+     * @param previous          the replaced snapshot
+     * @param next              the published snapshot
+     * @param expired           true if the removed nodes have expired, false if they left
+     * @param partitionCount    the number of partitions, zero for no partition event
+     * @param partitionReplicas the number of nodes per partition
+     * @return the events in this order: joined nodes, groups, services, partitions, leaders, removed nodes
+     */
+    static List<ClusterEvent> diff(final ClusterNodeSnapshot previous, final ClusterNodeSnapshot next,
+                                   final boolean expired, final int partitionCount, final int partitionReplicas) {
+        if (previous == next)
+            return Collections.emptyList();
+        final long version = next.version;
+        final List<ClusterEvent> events = new ArrayList<>();
+        if (previous.nodesMap != next.nodesMap)
+            next.nodesMap.forEach((address, node) -> {
+                final ClusterNode previousNode = previous.nodesMap.get(address);
+                if (previousNode == null || (previousNode.nodeLiveId != null && node.nodeLiveId != null &&
+                        !previousNode.nodeLiveId.equals(node.nodeLiveId)))
+                    events.add(new ClusterEvent(ClusterEvent.Type.node_joined, version, address, null, null, null));
+            });
+        if (previous.groupsMap != next.groupsMap)
+            diffSets(previous.groupsMap, next.groupsMap, (group, nodes) -> events.add(
+                    new ClusterEvent(ClusterEvent.Type.groups_changed, version, null, group, null, nodes)));
+        if (previous.servicesMap != next.servicesMap)
+            diffSets(previous.servicesMap, next.servicesMap, (service, nodes) -> events.add(
+                    new ClusterEvent(ClusterEvent.Type.services_changed, version, null, null, service, nodes)));
+        if (previous.servicesMap != next.servicesMap && partitionCount > 0)
+            for (final String service : keys(previous.servicesMap, next.servicesMap)) {
+                final ClusterNodeSet previousNodes = previous.getService(service);
+                final ClusterNodeSet nextNodes = next.getService(service);
+                final ClusterPartitionTable previousTable = previousNodes.partitions();
+                if (previousNodes == nextNodes || previousTable == null ||
+                        !previousTable.matches(partitionCount, partitionReplicas))
+                    continue;
+                final SortedSet<Integer> moved = nextNodes.partitions(version, partitionCount, partitionReplicas)
+                        .changedPartitions(previousTable);
+                if (!moved.isEmpty())
+                    events.add(new ClusterEvent(ClusterEvent.Type.partitions_changed, version, null, null, service,
+                            null, moved));
+            }
+        if (previous.groupsMap != next.groupsMap)
+            diffLeaders(previous.groupsMap, next.groupsMap, (group, leader) -> events.add(
+                    new ClusterEvent(ClusterEvent.Type.leader_changed, version, leader, group, null, null)));
+        if (previous.servicesMap != next.servicesMap)
+            diffLeaders(previous.servicesMap, next.servicesMap, (service, leader) -> events.add(
+                    new ClusterEvent(ClusterEvent.Type.leader_changed, version, leader, null, service, null)));
+        if (previous.groupServiceIndex != next.groupServiceIndex)
+            for (final String group : keys(previous.groupServiceIndex, next.groupServiceIndex)) {
+                final Map<String, ClusterNodeSet> previousServices = previous.groupServiceIndex.get(group);
+                final Map<String, ClusterNodeSet> nextServices = next.groupServiceIndex.get(group);
+                if (previousServices == nextServices)
+                    continue;
+                diffLeaders(previousServices == null ? Collections.emptyMap() : previousServices,
+                        nextServices == null ? Collections.emptyMap() : nextServices,
+                        (service, leader) -> events.add(
+                                new ClusterEvent(ClusterEvent.Type.leader_changed, version, leader, group, service,
+                                        null)));
+            }
+        if (previous.nodesMap != next.nodesMap) {
+            final ClusterEvent.Type removal = expired ? ClusterEvent.Type.node_expired : ClusterEvent.Type.node_left;
+            previous.nodesMap.forEach((address, node) -> {
+                if (!next.nodesMap.containsKey(address))
+                    events.add(new ClusterEvent(removal, version, address, null, null, null));
+            });
+        }
+        return events;
+    }
+
+    private static TreeSet<String> keys(final Map<String, ?> previous, final Map<String, ?> next) {
+        final TreeSet<String> keys = new TreeSet<>(previous.keySet());
+        keys.addAll(next.keySet());
+        return keys;
+    }
+
+    private static void diffSets(final Map<String, ClusterNodeSet> previous, final Map<String, ClusterNodeSet> next,
+                                 final BiConsumer<String, ClusterNodeSet> consumer) {
+        for (final String key : keys(previous, next)) {
+            final ClusterNodeSet previousNodes = previous.getOrDefault(key, ClusterNodeSet.EMPTY);
+            final ClusterNodeSet nextNodes = next.getOrDefault(key, ClusterNodeSet.EMPTY);
+            if (previousNodes != nextNodes && !previousNodes.equals(nextNodes))
+                consumer.accept(key, nextNodes);
+        }
+    }
+
+    private static void diffLeaders(final Map<String, ClusterNodeSet> previous,
+                                    final Map<String, ClusterNodeSet> next, final BiConsumer<String, String> consumer) {
+        for (final String key : keys(previous, next)) {
+            final ClusterNodeSet previousNodes = previous.getOrDefault(key, ClusterNodeSet.EMPTY);
+            final ClusterNodeSet nextNodes = next.getOrDefault(key, ClusterNodeSet.EMPTY);
+            if (previousNodes == nextNodes)
+                continue;
+            final String leader = nextNodes.leader();
+            if (!Objects.equals(previousNodes.leader(), leader))
+                consumer.accept(key, leader);
+        }
+    }
+
+    private static final class Change {
+
+        private final ClusterNodeSnapshot previous;
+        private final ClusterNodeSnapshot next;
+        private final boolean expired;
+
+        private Change(final ClusterNodeSnapshot previous, final ClusterNodeSnapshot next, final boolean expired) {
+            this.previous = previous;
+            this.next = next;
+            this.expired = expired;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.util.List;
+
+@FunctionalInterface
+public interface ClusterEventListener {
+
+    /**
+     * Called once per membership change, in the order of the changes, always by the same thread at a time.
+     *
+     * @param events the events of one membership change (never empty)
+     */
+    void onEvents(List<ClusterEvent> events);
+}
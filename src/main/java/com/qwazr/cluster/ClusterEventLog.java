@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The recent membership events, kept for the remote clients which follow them with a version cursor (long-poll).
+ * <p>
+ * The log is registered as a listener the first time a client asks for the events, it only covers the changes
+ * which happened after its registration.
+ */
+final class ClusterEventLog implements ClusterEventListener {
+
+    /**
+     * The maximum number of events kept
+     */
+    final static int MAX_EVENTS = 1024;
+
+    final static long DEFAULT_WAIT_MS = 30000;
+    final static long MAX_WAIT_MS = 60000;
+
+    private final UUID nodeLiveId;
+    private final int maxEvents;
+    private final ArrayDeque<ClusterEvent> events;
+
+    /**
+     * The pending long-polls, all waiting for the events following the last version
+     */
+    private final List<CompletableFuture<ClusterEventsJson>> waiters;
+
+    /**
+     * The oldest version from which the following events are all available
+     */
+    private long oldestVersion;
+
+    /**
+     * The version of the last received events
+     */
+    private long lastVersion;
+
+    /**
+     * @param nodeLiveId the UUID of this node
+     * @param maxEvents  the maximum number of events kept
+     */
+    ClusterEventLog(final UUID nodeLiveId, final int maxEvents) {
+        this.nodeLiveId = nodeLiveId;
+        this.maxEvents = maxEvents;
+        this.events = new ArrayDeque<>();
+        this.waiters = new ArrayList<>();
+    }
+
+    /**
+     * Must be called once the log is registered: the snapshots published before the registration are not
+     * covered by the log.
+     *
+     * @param version the version of the current membership snapshot
+     */
+    synchronized void start(final long version) {
+        lastVersion = Math.max(lastVersion, version);
+        oldestVersion = lastVersion;
+    }
+
+    @Override
+    public void onEvents(final List<ClusterEvent> newEvents) {
+        final List<CompletableFuture<ClusterEventsJson>> completed;
+        final ClusterEventsJson result;
+        synchronized (this) {
+            final long version = newEvents.get(0).version;
+            if (version <= lastVersion)
+                return;
+            final long since = lastVersion;
+            events.addAll(newEvents);
+            while (events.size() > maxEvents)
+                oldestVersion = Math.max(oldestVersion, events.removeFirst().version);
+            lastVersion = version;
+            if (waiters.isEmpty())
+                return;
+            // All the waiters were waiting for the events following the previous version
+            result = read(since);
+            completed = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        // The responses are written outside of the lock
+        for (final CompletableFuture<ClusterEventsJson> waiter : completed)
+            waiter.complete(result);
+    }
+
+    /**
+     * Wait for the events which follow the given version. No thread is blocked while waiting: the returned future
+     * is completed by the next events, or with an empty result once the waiting time is elapsed.
+     *
+     * @param since  the version returned by the previous call, or null to start following the events
+     * @param waitMs the maximum waiting time if there is no event yet, zero returns immediately
+     * @return the events following the version, or a reset if they are not available
+     */
+    synchronized CompletableFuture<ClusterEventsJson> poll(final Long since, final long waitMs) {
+        if (since == null || since != lastVersion || waitMs <= 0)
+            return CompletableFuture.completedFuture(read(since));
+        final CompletableFuture<ClusterEventsJson> waiter = new CompletableFuture<>();
+        waiters.add(waiter);
+        CompletableFuture.delayedExecutor(Math.min(waitMs, MAX_WAIT_MS), TimeUnit.MILLISECONDS)
+                .execute(() -> timeout(waiter, since));
+        return waiter;
+    }
+
+    private void timeout(final CompletableFuture<ClusterEventsJson> waiter, final long since) {
+        synchronized (this) {
+            // Already completed by some events
+            if (!waiters.remove(waiter))
+                return;
+        }
+        waiter.complete(new ClusterEventsJson(nodeLiveId, since, false, Collections.emptyList()));
+    }
+
+    /**
+     * @return the number of pending long-polls
+     */
+    synchronized int getWaiterCount() {
+        return waiters.size();
+    }
+
+    private ClusterEventsJson read(final Long since) {
+        if (since == null || since < oldestVersion || since > lastVersion)
+            return new ClusterEventsJson(nodeLiveId, lastVersion, true, Collections.emptyList());
+        if (since == lastVersion)
+            return new ClusterEventsJson(nodeLiveId, lastVersion, false, Collections.emptyList());
+        final List<ClusterEvent> result = new ArrayList<>();
+        final Iterator<ClusterEvent> iterator = events.descendingIterator();
+        while (iterator.hasNext()) {
+            final ClusterEvent event = iterator.next();
+            if (event.version <= since)
+                break;
+            result.add(event);
+        }
+        Collections.reverse(result);
+        return new ClusterEventsJson(nodeLiveId, lastVersion, false, Collections.unmodifiableList(result));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The answer of a long-poll on the membership events.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ClusterEventsJson {
+
+    /**
+     * The UUID of the node which answered, the versions are only meaningful for this UUID
+     */
+    @JsonProperty("node_live_id")
+    public final UUID nodeLiveId;
+
+    /**
+     * The cursor of the next request (the since parameter)
+     */
+    public final long version;
+
+    /**
+     * True if the events since the requested version are not available (unknown or too old version): the client
+     * must read the whole status again, then follow the events from the returned version.
+     */
+    public final boolean reset;
+
+    public final List<ClusterEvent> events;
+
+    @JsonCreator
+    ClusterEventsJson(@JsonProperty("node_live_id") final UUID nodeLiveId, @JsonProperty("version") final long version,
+                      @JsonProperty("reset") final boolean reset,
+                      @JsonProperty("events") final List<ClusterEvent> events) {
+        this.nodeLiveId = nodeLiveId;
+        this.version = version;
+        this.reset = reset;
+        this.events = events;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Consistent hash ring of a set of nodes. Each node owns VIRTUAL_NODES points of the ring, a key belongs to the node
+ * of the first point which follows the hash of the key. When a node joins or leaves, only the keys of its points
+ * move.
+ * <p>
+ * The ring is immutable, it is built once per set of nodes (see ClusterNodeSet.ring). A lookup is a binary search in
+ * an array of longs, without allocation.
+ */
+final class ClusterHashRing {
+
+    final static int VIRTUAL_NODES = 128;
+
+    private final String[] nodes;
+
+    /**
+     * The sorted points of the ring
+     */
+    private final long[] points;
+
+    /**
+     * The index of the node which owns each point
+     */
+    private final int[] owners;
+
+    /**
+     * @param nodes the distinct nodes
+     */
+    ClusterHashRing(final String[] nodes) {
+        this.nodes = nodes;
+        final int size = nodes.length * VIRTUAL_NODES;
+        final long[] entries = new long[size];
+        final long[] hashes = new long[size];
+        int i = 0;
+        for (int node = 0; node < nodes.length; node++) {
+            final long nodeHash = hash(nodes[node]);
+            for (int v = 0; v < VIRTUAL_NODES; v++)
+                hashes[i++] = mix(nodeHash + v * 0x9E3779B97F4A7C15L);
+        }
+        // Sort the points with their owner
+        final Integer[] order = new Integer[size];
+        for (i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            final int c = Long.compare(hashes[a], hashes[b]);
+            // Same point for two nodes (unlikely): the order of the nodes decides
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        points = new long[size];
+        owners = new int[size];
+        for (i = 0; i < size; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / VIRTUAL_NODES;
+        }
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the characters, followed by a finalizer which spreads the bits
+     */
+    static long hash(final String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The finalizer of MurmurHash3
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return the position of the first point at or after the hash
+     */
+    private int start(final long hash) {
+        final int pos = Arrays.binarySearch(points, hash);
+        final int index = pos >= 0 ? pos : -pos - 1;
+        return index == points.length ? 0 : index;
+    }
+
+    /**
+     * @param key      the key
+     * @param excluded the nodes to skip (the next node of the ring is used), ignored if all the nodes are excluded
+     * @return the node which owns the key, or null if the ring is empty
+     */
+    final String get(final String key, final Set<String> excluded) {
+        if (nodes.length == 0)
+            return null;
+        final int start = start(hash(key));
+        final String owner = nodes[owners[start]];
+        if (excluded.isEmpty() || !excluded.contains(owner))
+            return owner;
+        for (int i = 1; i < points.length; i++) {
+            final String node = nodes[owners[(start + i) % points.length]];
+            if (!excluded.contains(node))
+                return node;
+        }
+        return owner;
+    }
+
+    /**
+     * @param key      the key
+     * @param count    the number of nodes
+     * @param excluded the nodes to skip, they are only used if there are not enough nodes
+     * @return the distinct nodes which follow the key on the ring, the owner first
+     */
+    final List<String> get(final String key, final int count, final Set<String> excluded) {
+        if (nodes.length == 0 || count <= 0)
+            return Collections.emptyList();
+        final int max = Math.min(count, nodes.length);
+        final List<String> result = new ArrayList<>(max);
+        final List<String> skipped = excluded.isEmpty() ? null : new ArrayList<>();
+        final int start = start(hash(key));
+        for (int i = 0; i < points.length && result.size() < max; i++) {
+            final String node = nodes[owners[(start + i) % points.length]];
+            if (result.contains(node) || (skipped != null && skipped.contains(node)))
+                continue;
+            if (skipped != null && excluded.contains(node))
+                skipped.add(node);
+            else
+                result.add(node);
+        }
+        if (skipped != null)
+            for (int i = 0; i < skipped.size() && result.size() < max; i++)
+                result.add(skipped.get(i));
+        return result;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * The load advertised by a node. The nodes are compared by their pending work (in-flight requests plus queue depth),
+ * then by their CPU load.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ClusterLoad implements Comparable<ClusterLoad> {
+
+    private final static OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+
+    /**
+     * The in-flight requests of an unknown load, written when a field follows the load (see writeUnknown)
+     */
+    private final static int UNKNOWN = Integer.MAX_VALUE;
+
+    @JsonProperty("in_flight_requests")
+    public final int inFlightRequests;
+
+    @JsonProperty("queue_depth")
+    public final int queueDepth;
+
+    /**
+     * The load average per processor, rounded to the hundredth, null if unknown
+     */
+    @JsonProperty("cpu_load")
+    public final Float cpuLoad;
+
+    @JsonCreator
+    ClusterLoad(@JsonProperty("in_flight_requests") final int inFlightRequests,
+                @JsonProperty("queue_depth") final int queueDepth, @JsonProperty("cpu_load") final Float cpuLoad) {
+        this.inFlightRequests = inFlightRequests;
+        this.queueDepth = queueDepth;
+        this.cpuLoad = cpuLoad;
+    }
+
+    /**
+     * @param inFlightRequests the number of requests being processed
+     * @param queueDepth       the number of requests waiting to be processed
+     * @param cpuLoad          the load average per processor, negative if unknown
+     * @return a new load
+     */
+    public static ClusterLoad of(final int inFlightRequests, final int queueDepth, final double cpuLoad) {
+        return new ClusterLoad(Math.max(0, inFlightRequests), Math.max(0, queueDepth),
+                cpuLoad < 0 || Double.isNaN(cpuLoad) ? null : Math.round(cpuLoad * 100) / 100f);
+    }
+
+    /**
+     * @return the system load average divided by the number of processors, or -1 if it is not available
+     */
+    static double getSystemCpuLoad() {
+        final double loadAverage = OS.getSystemLoadAverage();
+        return loadAverage < 0 ? -1 : loadAverage / OS.getAvailableProcessors();
+    }
+
+    @JsonIgnore
+    public final long getPendingRequests() {
+        return (long) inFlightRequests + queueDepth;
+    }
+
+    @Override
+    public int compareTo(final ClusterLoad other) {
+        final int c = Long.compare(getPendingRequests(), other.getPendingRequests());
+        if (c != 0)
+            return c;
+        return Float.compare(cpuLoad == null ? 0 : cpuLoad, other.cpuLoad == null ? 0 : other.cpuLoad);
+    }
+
+    /**
+     * Three variable-length integers, the CPU load is written in hundredths plus one (zero if unknown).
+     */
+    final void writeTo(final ByteBuffer buffer) {
+        MessageCodec.writeVarInt(buffer, inFlightRequests);
+        MessageCodec.writeVarInt(buffer, queueDepth);
+        MessageCodec.writeVarInt(buffer, cpuLoad == null ? 0 : Math.round(cpuLoad * 100) + 1);
+    }
+
+    /**
+     * Written in place of the load of a sender which doesn't know its load, so that the fields following the load
+     * keep their position. The previous versions read it as a node too loaded to be chosen.
+     */
+    static void writeUnknown(final ByteBuffer buffer) {
+        MessageCodec.writeVarInt(buffer, UNKNOWN);
+        MessageCodec.writeVarInt(buffer, 0);
+        MessageCodec.writeVarInt(buffer, 0);
+    }
+
+    /**
+     * @return the load written at the end of the message, or null if the sender did not write any or wrote an
+     * unknown load
+     */
+    static ClusterLoad readFrom(final ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining())
+            return null;
+        final int inFlightRequests = MessageCodec.readVarInt(buffer);
+        final int queueDepth = MessageCodec.readVarInt(buffer);
+        final int cpuLoad = MessageCodec.readVarInt(buffer);
+        if (inFlightRequests < 0 || queueDepth < 0 || cpuLoad < 0)
+            throw new IOException("Malformed load");
+        if (inFlightRequests == UNKNOWN)
+            return null;
+        return new ClusterLoad(inFlightRequests, queueDepth, cpuLoad == 0 ? null : (cpuLoad - 1) / 100f);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ClusterLoad))
+            return false;
+        final ClusterLoad l = (ClusterLoad) o;
+        return inFlightRequests == l.inFlightRequests && queueDepth == l.queueDepth &&
+                Objects.equals(cpuLoad, l.cpuLoad);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(inFlightRequests, queueDepth, cpuLoad);
+    }
+
+    @Override
+    public String toString() {
+        return "in-flight: " + inFlightRequests + " queue: " + queueDepth + " cpu: " + cpuLoad;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+/**
+ * Supplies the load of the local node, which is advertised to the other nodes with the heartbeats.
+ */
+@FunctionalInterface
+public interface ClusterLoadProvider {
+
+    /**
+     * Called at most once per ClusterManager.LOAD_REFRESH_MS, by the threads which send the messages.
+     *
+     * @return the current load of the node
+     */
+    ClusterLoad getLoad();
+
+    /**
+     * The default provider: the system load average per processor, without in-flight requests nor queue
+     */
+    ClusterLoadProvider SYSTEM = () -> ClusterLoad.of(0, 0, ClusterLoad.getSystemCpuLoad());
+}
@@ -22,18 +22,23 @@ import com.qwazr.utils.ArrayUtils;
 import com.qwazr.utils.HashUtils;
 import com.qwazr.utils.LoggerUtils;
 import com.qwazr.utils.StringUtils;
-import org.apache.commons.lang3.RandomUtils;
 
-import java.util.Collections;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ClusterManager {
@@ -51,6 +56,13 @@ public class ClusterManager {
 
     final UUID nodeLiveId;
 
+    final ClusterConfiguration configuration;
+
+    /**
+     * Incremented each time the groups or the services of this node change
+     */
+    volatile int membershipVersion;
+
     private final Set<String> masters;
 
     private final ProtocolListener protocolListener;
@@ -59,10 +71,24 @@ public class ClusterManager {
 
     private final ClusterServiceImpl service;
 
+    final ClusterEventDispatcher events;
+
+    private volatile ClusterEventLog eventLog;
+
+    private volatile ClusterLoadProvider loadProvider = ClusterLoadProvider.SYSTEM;
+
+    private volatile CachedLoad cachedLoad;
+
     public ClusterManager(final ExecutorService executorService, final ServerConfiguration configuration) {
+        this(executorService, configuration, ClusterConfiguration.of().build());
+    }
+
+    public ClusterManager(final ExecutorService executorService, final ServerConfiguration configuration,
+                          final ClusterConfiguration clusterConfiguration) {
 
         this.executorService = executorService;
         this.nodeLiveId = HashUtils.newTimeBasedUUID();
+        this.configuration = clusterConfiguration;
 
         me = new ClusterNodeAddress(configuration.webServiceConnector.addressPort,
                 configuration.webServiceConnector.port);
@@ -77,6 +103,8 @@ public class ClusterManager {
                     new ClusterNodeAddress(master, configuration.webServiceConnector.port).httpAddressKey));
         } else
             this.masters = null;
+        events = new ClusterEventDispatcher(executorService, clusterConfiguration.partitions,
+                clusterConfiguration.partitionReplicas);
         clusterNodeMap = new ClusterNodeMap(this, me.address);
         clusterNodeMap.register(me.httpAddressKey);
         clusterNodeMap.register(masters);
@@ -84,8 +112,16 @@ public class ClusterManager {
         if (configuration.multicastConnector.address != null && configuration.multicastConnector.port != -1)
             protocolListener = new MulticastListener(this, configuration.multicastConnector.address,
                     configuration.multicastConnector.port);
-        else
-            protocolListener = new DatagramListener(this);
+        else {
+            final String listenAddress = configuration.webServiceConnector.address;
+            final int listenPort = configuration.webServiceConnector.port;
+            final InetSocketAddress bindAddress = StringUtils.isEmpty(listenAddress) ?
+                    new InetSocketAddress(listenPort) :
+                    new InetSocketAddress(listenAddress, listenPort);
+            protocolListener = clusterConfiguration.protocol == ClusterConfiguration.Protocol.swim ?
+                    new SwimListener(this, executorService, bindAddress) :
+                    new DatagramListener(this, executorService, bindAddress);
+        }
 
         service = new ClusterServiceImpl(this);
     }
@@ -94,15 +130,138 @@ public class ClusterManager {
         return service;
     }
 
-    public ClusterManager registerProtocolListener(final GenericServerBuilder builder, final Set<String> services) {
-        builder.packetListener(protocolListener);
+    public ClusterManager registerProtocolListener(final GenericServerBuilder builder, final Set<String> services)
+            throws IOException {
+        protocolListener.listen(builder, executorService);
         builder.startedListener(server -> protocolListener.joinCluster(services));
         builder.shutdownListener(server -> protocolListener.leaveCluster());
         builder.shutdownListener(server -> protocolListener.shutdown());
+        builder.shutdownListener(server -> protocolListener.closeTransport());
+        builder.shutdownListener(server -> events.close());
         executorService.submit(protocolListener);
         return this;
     }
 
+    /**
+     * Stop the protocol and the events of a manager which is not registered in a server
+     */
+    final void shutdown() {
+        protocolListener.shutdown();
+        protocolListener.closeTransport();
+        events.close();
+    }
+
+    /**
+     * Register a listener of the membership changes. The events are computed only if there is at least one listener
+     * or one subscriber.
+     *
+     * @param listener the listener to call after each membership change
+     */
+    public void addEventListener(final ClusterEventListener listener) {
+        events.addListener(listener);
+    }
+
+    /**
+     * @param listener a registered listener
+     * @return true if the listener was registered
+     */
+    public boolean removeEventListener(final ClusterEventListener listener) {
+        return events.removeListener(listener);
+    }
+
+    /**
+     * The events are delivered asynchronously to each subscriber. A subscriber which does not request the events fast
+     * enough loses the events overflowing its buffer, and should read the status again.
+     *
+     * @return a publisher of the membership changes
+     */
+    public Flow.Publisher<ClusterEvent> getEventPublisher() {
+        return events.getPublisher();
+    }
+
+    /**
+     * @param loadProvider the provider of the load advertised by this node (ClusterLoadProvider.SYSTEM by default)
+     */
+    public void setLoadProvider(final ClusterLoadProvider loadProvider) {
+        this.loadProvider = Objects.requireNonNull(loadProvider, "The load provider is null");
+        cachedLoad = null;
+    }
+
+    /**
+     * The interval between two calls to the load provider
+     */
+    final static long LOAD_REFRESH_MS = 100;
+
+    private static final class CachedLoad {
+
+        private final long timeMs;
+        private final ClusterLoad load;
+
+        private CachedLoad(final long timeMs, final ClusterLoad load) {
+            this.timeMs = timeMs;
+            this.load = load;
+        }
+    }
+
+    /**
+     * Every message this node sends about itself carries its load, the provider is called at most once per
+     * LOAD_REFRESH_MS.
+     *
+     * @return the current load of this node, or null if the provider failed
+     */
+    final ClusterLoad getLoad() {
+        final long currentMs = System.currentTimeMillis();
+        final CachedLoad cached = cachedLoad;
+        if (cached != null && currentMs - cached.timeMs < LOAD_REFRESH_MS && currentMs >= cached.timeMs)
+            return cached.load;
+        ClusterLoad load;
+        try {
+            load = loadProvider.getLoad();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, e, () -> "The load provider failed");
+            load = null;
+        }
+        cachedLoad = new CachedLoad(currentMs, load);
+        return load;
+    }
+
+    /**
+     * @param address the address of a node
+     * @return the last load advertised by the node (the current load for this node), or null if unknown
+     */
+    final ClusterLoad getLoad(final String address) {
+        if (me.httpAddressKey.equals(address))
+            return getLoad();
+        final ClusterNode node = clusterNodeMap.getNodesMap().get(address);
+        return node == null ? null : node.getLoad();
+    }
+
+    private ClusterEventLog getEventLog() {
+        final ClusterEventLog log = eventLog;
+        if (log != null)
+            return log;
+        synchronized (this) {
+            if (eventLog == null) {
+                final ClusterEventLog newLog = new ClusterEventLog(nodeLiveId, ClusterEventLog.MAX_EVENTS);
+                events.addListener(newLog);
+                newLog.start(clusterNodeMap.getSnapshot().version);
+                eventLog = newLog;
+            }
+            return eventLog;
+        }
+    }
+
+    /**
+     * The events are only recorded once a client asked for them: the first call returns a reset.
+     *
+     * @param since  the version returned by the previous call, or null to start following the events
+     * @param waitMs the maximum time to wait for an event (long-poll), null for the default time
+     * @return the events which follow the version, completed without blocking any thread while waiting
+     */
+    final CompletableFuture<ClusterEventsJson> getEvents(final Long since, final Integer waitMs) {
+        return getEventLog().poll(since, waitMs == null ? ClusterEventLog.DEFAULT_WAIT_MS : waitMs);
+    }
+
     @Override
     public int hashCode() {
         return Objects.hashCode(nodeLiveId);
@@ -127,11 +286,50 @@ public class ClusterManager {
         return me.httpAddressKey.equals(nodes.first());
     }
 
+    /**
+     * The maximum age of a cached status: the membership did not change, but the time-to-live and the phi of the
+     * nodes are refreshed.
+     */
+    final static long STATUS_CACHE_MS = 1000;
+
+    private volatile CachedStatus cachedStatus;
+
+    private static final class CachedStatus {
+
+        private final String tag;
+        private final long timeMs;
+        private final ClusterStatusJson status;
+
+        private CachedStatus(final String tag, final long timeMs, final ClusterStatusJson status) {
+            this.tag = tag;
+            this.timeMs = timeMs;
+            this.status = status;
+        }
+    }
+
+    /**
+     * The status is shared (with its serialized body) by the calls which have the same status tag, during at most
+     * STATUS_CACHE_MS.
+     *
+     * @return the current status
+     */
     final ClusterStatusJson getStatus() {
+        final String tag = getStatusTag();
+        final long currentMs = System.currentTimeMillis();
+        final CachedStatus cached = cachedStatus;
+        if (cached != null && cached.tag.equals(tag) && currentMs - cached.timeMs < STATUS_CACHE_MS &&
+                currentMs >= cached.timeMs)
+            return cached.status;
+        final ClusterStatusJson status = buildStatus(currentMs);
+        cachedStatus = new CachedStatus(tag, currentMs, status);
+        return status;
+    }
+
+    private ClusterStatusJson buildStatus(final long currentMs) {
         final Map<String, ClusterNode> nodesMap = clusterNodeMap.getNodesMap();
         final TreeMap<String, ClusterNodeJson> nodesJsonMap = new TreeMap<>();
         if (nodesMap != null) {
-            final long currentMs = System.currentTimeMillis();
+            final long maxPeriodMs = configuration.getMaxBackOffPeriodMs();
             nodesMap.forEach((address, clusterNode) -> {
                 final Integer timeToLive;
                 final Long expirationTimeMs = clusterNode.getExpirationTimeMs();
@@ -139,18 +337,53 @@ public class ClusterManager {
                     timeToLive = (int) ((expirationTimeMs - currentMs) / 1000);
                 else
                     timeToLive = null;
-                final ClusterNodeJson clusterNodeJson = new ClusterNodeJson(clusterNode, timeToLive);
+                final Double phi = clusterNode.isPhiKnown() ?
+                        Math.round(clusterNode.getPhi(currentMs, maxPeriodMs) * 100) / 100.0 :
+                        null;
+                final Double rttMs = clusterNode.getRttMs();
+                final ClusterNodeJson clusterNodeJson = new ClusterNodeJson(clusterNode, timeToLive, phi,
+                        me.httpAddressKey.equals(address) ? getLoad() : clusterNode.getLoad(),
+                        rttMs == null ? null : Math.round(rttMs * 100) / 100.0);
                 nodesJsonMap.put(address, clusterNodeJson);
             });
         }
         return new ClusterStatusJson(me.httpAddressKey, nodeLiveId,
                 myServices.contains("webapps") ? webApp.httpAddressKey : null, nodesJsonMap, clusterNodeMap.getGroups(),
-                clusterNodeMap.getServices(), masters, protocolListener.getLastExecutionDate());
+                clusterNodeMap.getServices(), masters, protocolListener.getLastExecutionDate(),
+                protocolListener.getProtocolStatus(), new Date(currentMs));
     }
 
-    final Set<String> getNodes() {
-        final Map<String, ClusterNode> nodesMap = clusterNodeMap.getNodesMap();
-        return nodesMap == null ? Collections.emptySet() : nodesMap.keySet();
+    /**
+     * The entity tags must be read before the answer they describe: after a concurrent change, an answer may carry
+     * an older tag, it is then sent again at the next request.
+     *
+     * @return the entity tag of the node list, changed by each membership snapshot
+     */
+    final String getNodesTag() {
+        return nodeLiveId.toString() + '-' + clusterNodeMap.getSnapshot().version;
+    }
+
+    /**
+     * @return the entity tag of the services, which also depend on the suspect nodes
+     */
+    final String getServicesTag() {
+        return getNodesTag() + '-' +
+                Long.toHexString(clusterNodeMap.getSuspectsVersion(configuration.phiThreshold,
+                        configuration.getMaxBackOffPeriodMs()));
+    }
+
+    /**
+     * The time-to-live and the phi of the nodes are not part of the tag, they are refreshed at each heartbeat.
+     *
+     * @return the entity tag of the status
+     */
+    final String getStatusTag() {
+        final Date lastExecutionDate = protocolListener.getLastExecutionDate();
+        return getServicesTag() + '-' + Long.toHexString(lastExecutionDate == null ? 0 : lastExecutionDate.getTime());
+    }
+
+    final SortedSet<String> getNodes() {
+        return clusterNodeMap.getNodes();
     }
 
     final TreeMap<String, ClusterServiceStatusJson.StatusEnum> getServicesStatus(final String group) {
@@ -171,34 +404,155 @@ public class ClusterManager {
         return ClusterServiceStatusJson.of(nodes);
     }
 
+    /**
+     * The suspect nodes (see ClusterConfiguration.phiThreshold) are left out, unless all the nodes are suspect.
+     *
+     * @param group   the name of the group (optional)
+     * @param service the name of the service (optional)
+     * @return an immutable set of nodes, shared with the current membership snapshot if no node is suspect
+     */
     final SortedSet<String> getNodesByGroupByService(final String group, final String service) {
-        if (StringUtils.isEmpty(group))
-            return clusterNodeMap.getByService(service);
-        else if (StringUtils.isEmpty(service))
-            return clusterNodeMap.getByGroup(group);
-        else
-            return clusterNodeMap.getGroupService(group, service);
+        return clusterNodeMap.getGroupService(group, service).without(getSuspects());
+    }
+
+    /**
+     * @return the nodes which are probably down but did not expire yet
+     */
+    final Set<String> getSuspects() {
+        return clusterNodeMap.getSuspects(configuration.phiThreshold, configuration.getMaxBackOffPeriodMs());
     }
 
     final String getLeaderNode(final String group, final String service) {
-        final SortedSet<String> nodes = getNodesByGroupByService(group, service);
-        if (nodes == null || nodes.isEmpty())
-            return null;
-        return nodes.first();
+        // The suspects are a local view, the leader must be the same for every node
+        return clusterNodeMap.getGroupService(group, service).leader();
     }
 
     final String getRandomNode(final String group, final String service) {
-        final SortedSet<String> nodes = getNodesByGroupByService(group, service);
-        if (nodes == null || nodes.isEmpty())
-            return null;
-        int rand = RandomUtils.nextInt(0, nodes.size());
-        Iterator<String> it = nodes.iterator();
-        for (; ; ) {
-            final String node = it.next();
-            if (rand == 0)
-                return node;
-            rand--;
+        return clusterNodeMap.getGroupService(group, service).random(getSuspects());
+    }
+
+    /**
+     * Power of two choices: two nodes are picked at random, the less loaded one is returned. A node without any
+     * known load is returned if it is picked first.
+     *
+     * @param group   the name of the group (optional)
+     * @param service the name of the service
+     * @return the less loaded of two random nodes, or null if there is no node
+     */
+    final String getLessLoadedNode(final String group, final String service) {
+        final ClusterNodeSet nodes = clusterNodeMap.getGroupService(group, service);
+        final Set<String> suspects = getSuspects();
+        final String first = nodes.random(suspects);
+        if (first == null || nodes.size() == 1)
+            return first;
+        String second = nodes.random(suspects);
+        if (first.equals(second))
+            second = nodes.random(suspects);
+        if (first.equals(second))
+            return first;
+        final ClusterLoad firstLoad = getLoad(first);
+        final ClusterLoad secondLoad = getLoad(second);
+        return firstLoad == null || secondLoad == null || firstLoad.compareTo(secondLoad) <= 0 ? first : second;
+    }
+
+    /**
+     * A node within this ratio of the shortest round-trip time is as near as the nearest node
+     */
+    final static double NEAREST_RTT_RATIO = 1.5;
+
+    /**
+     * A node within this margin of the shortest round-trip time is as near as the nearest node, it absorbs the jitter
+     * of the sub-millisecond round trips
+     */
+    final static double NEAREST_RTT_MARGIN_MS = 0.5;
+
+    /**
+     * @param address the address of a node
+     * @return the average round-trip time to the node in milliseconds (zero for this node), or null if unknown
+     */
+    final Double getRttMs(final String address) {
+        if (me.httpAddressKey.equals(address))
+            return 0d;
+        final ClusterNode node = clusterNodeMap.getNodesMap().get(address);
+        return node == null ? null : node.getRttMs();
+    }
+
+    /**
+     * The nearest nodes are the active nodes whose round-trip time is within NEAREST_RTT_RATIO and
+     * NEAREST_RTT_MARGIN_MS of the shortest one. The nodes without any measure are left out, unless no node has been
+     * measured yet. This node is the nearest node if it provides the service.
+     *
+     * @param group   the name of the group (optional)
+     * @param service the name of the service
+     * @return the nearest active nodes
+     */
+    final ClusterNodeSet getNearestNodes(final String group, final String service) {
+        final ClusterNodeSet nodes = clusterNodeMap.getGroupService(group, service).without(getSuspects());
+        if (nodes.size() <= 1)
+            return nodes;
+        final Double[] rtts = new Double[nodes.size()];
+        double minRttMs = Double.MAX_VALUE;
+        for (int i = 0; i < rtts.length; i++) {
+            rtts[i] = getRttMs(nodes.get(i));
+            if (rtts[i] != null)
+                minRttMs = Math.min(minRttMs, rtts[i]);
         }
+        if (minRttMs == Double.MAX_VALUE)
+            return nodes;
+        final double maxRttMs = minRttMs * NEAREST_RTT_RATIO + NEAREST_RTT_MARGIN_MS;
+        final List<String> nearest = new ArrayList<>();
+        for (int i = 0; i < rtts.length; i++)
+            if (rtts[i] != null && rtts[i] <= maxRttMs)
+                nearest.add(nodes.get(i));
+        return nearest.size() == nodes.size() ? nodes : ClusterNodeSet.of(nearest);
+    }
+
+    /**
+     * @param group   the name of the group (optional)
+     * @param service the name of the service
+     * @return one of the nearest active nodes picked at random (see getNearestNodes), or null if there is no node
+     */
+    final String getNearestNode(final String group, final String service) {
+        return getNearestNodes(group, service).random();
+    }
+
+    /**
+     * Sticky routing: a key always goes to the same node while the membership does not change. When a node joins or
+     * leaves, only a share of the keys moves. A suspect node is replaced by the next node of the ring.
+     *
+     * @param group   the name of the group (optional)
+     * @param service the name of the service
+     * @param key     the key to route
+     * @return the node which owns the key, or null if there is no node
+     */
+    final String getNodeByKey(final String group, final String service, final String key) {
+        return clusterNodeMap.getGroupService(group, service).ring().get(key, getSuspects());
+    }
+
+    /**
+     * @param group    the name of the group (optional)
+     * @param service  the name of the service
+     * @param key      the key to route
+     * @param replicas the number of nodes
+     * @return the distinct nodes which follow the key on the ring, the owner first (the suspect nodes last)
+     */
+    final List<String> getNodesByKey(final String group, final String service, final String key,
+                                     final int replicas) {
+        return clusterNodeMap.getGroupService(group, service).ring().get(key, replicas, getSuspects());
+    }
+
+    /**
+     * The table only follows the membership: a suspect node keeps its partitions until it expires or leaves. The
+     * table is built once per set of nodes, the rebalances are announced by the partitions_changed events.
+     *
+     * @param group   the name of the group (optional)
+     * @param service the name of the service
+     * @return the assignment of the partitions (ClusterConfiguration.partitions) to the nodes of the service
+     */
+    public ClusterPartitionTable getPartitionTable(final String group, final String service) {
+        final ClusterNodeSnapshot snapshot = clusterNodeMap.getSnapshot();
+        return ClusterNodeMap.getGroupService(snapshot, group, service)
+                .partitions(snapshot.version, configuration.partitions, configuration.partitionReplicas);
     }
 
     final boolean isMe(final AddressContent message) {
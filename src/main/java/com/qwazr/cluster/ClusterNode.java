@@ -15,34 +15,81 @@
  */
 package com.qwazr.cluster;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 final class ClusterNode {
 
+	/**
+	 * The weight of a new round-trip time measure in the moving average
+	 */
+	final static double RTT_ALPHA = 0.2;
+
+	/**
+	 * A longer round trip is an answer to a lost or delayed probe, it is not measured
+	 */
+	final static int MAX_RTT_MICROS = 10_000_000;
+
 	final ClusterNodeAddress address;
 	final UUID nodeLiveId;
 
-	private final Set<String> groups;
-	private final Set<String> services;
-
 	private volatile Long expirationTimeMs;
 
-	private volatile List<String> groupsCache;
-	private volatile List<String> servicesCache;
+	private volatile Set<String> groups;
+	private volatile Set<String> services;
+
+	/**
+	 * The membership version announced by the node, -1 if unknown
+	 */
+	private volatile int membershipVersion;
+
+	/**
+	 * The arrival times of the messages of this incarnation of the node
+	 */
+	private final HeartbeatHistory heartbeats;
+
+	/**
+	 * The last load advertised by the node, null if unknown
+	 */
+	private volatile ClusterLoad load;
+
+	/**
+	 * The exponentially weighted moving average of the round-trip times in milliseconds, NaN until the first measure
+	 */
+	private volatile double rttMs = Double.NaN;
+
+	/**
+	 * True while the node is in the expiration wheel
+	 */
+	final AtomicBoolean expirationScheduled = new AtomicBoolean();
 
 	ClusterNode(final ClusterNodeAddress address, final UUID nodeLiveId, final Long expirationTimeMs) {
 		this.nodeLiveId = nodeLiveId;
 		this.address = address;
 		this.expirationTimeMs = expirationTimeMs;
-		this.groups = new HashSet<>();
-		this.services = new HashSet<>();
-		groupsCache = null;
-		servicesCache = null;
+		groups = null;
+		services = null;
+		membershipVersion = -1;
+		heartbeats = new HeartbeatHistory();
+	}
+
+	/**
+	 * Build a new incarnation of an existing node.
+	 * The groups and services are inherited until the node registers them again,
+	 * the membership version is unknown until then.
+	 *
+	 * @param previous         the previous incarnation
+	 * @param nodeLiveId       the new UUID of the node
+	 * @param expirationTimeMs the expiration time
+	 */
+	ClusterNode(final ClusterNode previous, final UUID nodeLiveId, final Long expirationTimeMs) {
+		this(previous.address, nodeLiveId, expirationTimeMs);
+		groups = previous.groups;
+		services = previous.services;
 	}
 
 	final void setExpirationTime(final Long expirationTimeMs) {
@@ -58,28 +105,120 @@ final class ClusterNode {
 		return ns != null && currentTimeMs > expirationTimeMs;
 	}
 
+	/**
+	 * Record the arrival of a message from (or about) this node
+	 *
+	 * @param currentTimeMs the arrival time
+	 */
+	final void heartbeat(final long currentTimeMs) {
+		heartbeats.heartbeat(currentTimeMs);
+	}
+
+	/**
+	 * @param currentTimeMs the current time
+	 * @param maxPeriodMs   the longest heartbeat period of the node, zero if its period is fixed
+	 * @return the phi-accrual suspicion level, zero if not enough heartbeats were received
+	 */
+	final double getPhi(final long currentTimeMs, final long maxPeriodMs) {
+		return heartbeats.phi(currentTimeMs, maxPeriodMs);
+	}
+
+	/**
+	 * @param currentTimeMs the current time
+	 * @param phiThreshold  the suspicion threshold, zero or less disables the detection
+	 * @param maxPeriodMs   the longest heartbeat period of the node, zero if its period is fixed
+	 * @return true if the node is probably down, even though it did not expire yet
+	 */
+	final boolean isSuspect(final long currentTimeMs, final double phiThreshold, final long maxPeriodMs) {
+		return phiThreshold > 0 && heartbeats.phi(currentTimeMs, maxPeriodMs) >= phiThreshold;
+	}
+
+	final boolean isPhiKnown() {
+		return heartbeats.isKnown();
+	}
+
+	final void setLoad(final ClusterLoad load) {
+		this.load = load;
+	}
+
+	final ClusterLoad getLoad() {
+		return load;
+	}
+
+	/**
+	 * Add a measure to the moving average. The measures come from the receiving thread of the transport, a concurrent
+	 * measure could only be lost.
+	 *
+	 * @param sampleMs the measured round-trip time in milliseconds
+	 */
+	final void measureRtt(final double sampleMs) {
+		final double current = rttMs;
+		rttMs = Double.isNaN(current) ? sampleMs : current + RTT_ALPHA * (sampleMs - current);
+	}
+
+	/**
+	 * @return the average round-trip time in milliseconds, or null if it was never measured
+	 */
+	final Double getRttMs() {
+		final double current = rttMs;
+		return Double.isNaN(current) ? null : current;
+	}
+
+	private static Set<String> toSet(final Collection<String> collection) {
+		return collection.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(collection));
+	}
+
+	private static boolean isSame(final Set<String> current, final Collection<String> other) {
+		if (current == null)
+			return false;
+		if (other == null)
+			return current.isEmpty();
+		return current.size() == other.size() && current.containsAll(other);
+	}
+
 	final void registerGroups(final Collection<String> newGroups) {
 		if (newGroups == null)
 			return;
-		groups.clear();
-		groups.addAll(newGroups);
-		groupsCache = new ArrayList<>(groups);
+		groups = toSet(newGroups);
 	}
 
 	final void registerServices(final Collection<String> newServices) {
 		if (newServices == null)
 			return;
-		services.clear();
-		services.addAll(newServices);
-		servicesCache = new ArrayList<>(services);
+		services = toSet(newServices);
+	}
+
+	/**
+	 * @param otherGroups   a collection of groups
+	 * @param otherServices a collection of services
+	 * @return true if the node is already registered with the same groups and services
+	 */
+	final boolean isSameMembership(final Collection<String> otherGroups, final Collection<String> otherServices) {
+		return isSame(groups, otherGroups) && isSame(services, otherServices);
+	}
+
+	final void setMembershipVersion(final int membershipVersion) {
+		this.membershipVersion = membershipVersion;
+	}
+
+	/**
+	 * @param version a membership version announced by the node
+	 * @return true if the node is already registered with this version of the groups and services
+	 */
+	final boolean isSameMembership(final int version) {
+		return version >= 0 && version == membershipVersion;
+	}
+
+	final int getMembershipVersion() {
+		return membershipVersion;
 	}
 
 	final Collection<String> getGroups() {
-		return groupsCache;
+		return groups;
 	}
 
 	final Collection<String> getServices() {
-		return servicesCache;
+		return services;
 	}
 
 }
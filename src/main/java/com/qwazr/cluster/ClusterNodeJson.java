@@ -32,24 +32,49 @@ public class ClusterNodeJson {
 	public final String nodeLiveId;
 	@JsonProperty("time_to_live")
 	public final Integer timeToLive;
+	/**
+	 * The phi-accrual suspicion level, null if not enough heartbeats were received
+	 */
+	public final Double phi;
+	/**
+	 * The last load advertised by the node, null if unknown
+	 */
+	public final ClusterLoad load;
+	/**
+	 * The average round-trip time in milliseconds, null if it was never measured
+	 */
+	@JsonProperty("rtt_ms")
+	public final Double rttMs;
 	public final Set<String> services;
 	public final Set<String> groups;
 
 	@JsonCreator
 	private ClusterNodeJson(@JsonProperty("address") String address, @JsonProperty("node_live_id") String nodeLiveId,
-			@JsonProperty("time_to_live") Integer timeToLive, @JsonProperty("services") Set<String> services,
-			@JsonProperty("groups") Set<String> groups) {
+			@JsonProperty("time_to_live") Integer timeToLive, @JsonProperty("phi") Double phi,
+			@JsonProperty("load") ClusterLoad load, @JsonProperty("rtt_ms") Double rttMs,
+			@JsonProperty("services") Set<String> services, @JsonProperty("groups") Set<String> groups) {
 		this.address = address;
 		this.nodeLiveId = nodeLiveId;
 		this.timeToLive = timeToLive;
+		this.phi = phi;
+		this.load = load;
+		this.rttMs = rttMs;
 		this.services = services;
 		this.groups = groups;
 	}
 
-	ClusterNodeJson(final ClusterNode clusterNode, Integer timeToLive) {
+	ClusterNodeJson(final ClusterNode clusterNode, Integer timeToLive, Double phi, ClusterLoad load, Double rttMs) {
 		this(clusterNode.address.httpAddressKey,
-				clusterNode.nodeLiveId == null ? null : clusterNode.nodeLiveId.toString(), timeToLive,
-				toTreeSet(clusterNode.getServices()), toTreeSet(clusterNode.getGroups()));
+				clusterNode.nodeLiveId == null ? null : clusterNode.nodeLiveId.toString(), timeToLive, phi, load,
+				rttMs, toTreeSet(clusterNode.getServices()), toTreeSet(clusterNode.getGroups()));
+	}
+
+	/**
+	 * @return a copy which does not share the mutable sets of this node
+	 */
+	final ClusterNodeJson copy() {
+		return new ClusterNodeJson(address, nodeLiveId, timeToLive, phi, load, rttMs, toTreeSet(services),
+				toTreeSet(groups));
 	}
 
 	private static TreeSet<String> toTreeSet(Collection<String> collection) {
@@ -21,18 +21,18 @@ import com.qwazr.utils.concurrent.ReadWriteLock;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 class ClusterNodeMap {
@@ -44,157 +44,253 @@ class ClusterNodeMap {
 
     private final ReadWriteLock readWriteLock = ReadWriteLock.stamped();
 
-    private final HashMap<String, ClusterNode> nodesMap;
-    private final HashMap<String, HashSet<String>> groupsMap;
-    private final HashMap<String, HashSet<String>> servicesMap;
-
-    private volatile Cache cache;
-
-    private class Cache {
-
-        private final HashMap<String, ClusterNode> cacheNodesMap;
-        private final Set<SocketAddress> fullNodesAddresses;
-        private final Set<SocketAddress> externalNodesAddresses;
-        private final TreeMap<String, TreeSet<String>> cacheGroupsMap;
-        private final TreeMap<String, TreeSet<String>> cacheServicesMap;
-
-        private Cache() {
-            externalNodesAddresses = new HashSet<>();
-            fullNodesAddresses = new HashSet<>();
-            cacheNodesMap = new HashMap<>();
-            nodesMap.forEach((address, clusterNode) -> {
-                if (!myAddress.equals(clusterNode.address.address))
-                    externalNodesAddresses.add(clusterNode.address.address);
-                fullNodesAddresses.add(clusterNode.address.address);
-                cacheNodesMap.put(address, clusterNode);
-            });
-            cacheGroupsMap = new TreeMap<>();
-            groupsMap.forEach((key, nodes) -> cacheGroupsMap.put(key, new TreeSet<>(nodes)));
-            cacheServicesMap = new TreeMap<>();
-            servicesMap.forEach((key, nodes) -> cacheServicesMap.put(key, new TreeSet<>(nodes)));
-        }
-    }
+    /**
+     * The current membership. It is replaced (never modified) by the writers, the readers don't need any lock.
+     */
+    private volatile ClusterNodeSnapshot snapshot;
+
+    final static long SUSPECTS_REFRESH_MS = 250;
+
+    private volatile Suspects suspects;
+    private final AtomicLong suspectsVersions = new AtomicLong();
+
+    private final ExpirationWheel expirations;
 
     ClusterNodeMap(final ClusterManager clusterManager, final InetSocketAddress myAddress) {
         this.clusterManager = clusterManager;
         this.myAddress = myAddress;
-        nodesMap = new HashMap<>();
-        groupsMap = new HashMap<>();
-        servicesMap = new HashMap<>();
-        cache = new Cache();
+        snapshot = ClusterNodeSnapshot.EMPTY;
+        expirations = new ExpirationWheel(clusterManager.configuration.getExpirationMs());
     }
 
-    private final SortedSet<String> EMPTY = Collections.unmodifiableSortedSet(new TreeSet<>());
-
     /**
      * @param group   the name of the group
      * @param service the name of the service
-     * @return a set of nodes for the given group and service
+     * @return an immutable set of nodes for the given group and service
      */
-    final SortedSet<String> getGroupService(final String group, final String service) {
-        final Cache cc = cache;
-        final TreeSet<String> groupSet = group == null ? null : cc.cacheGroupsMap.get(group);
-        final TreeSet<String> serviceSet = service == null ? null : cc.cacheServicesMap.get(service);
-        if (!StringUtils.isEmpty(group) && (groupSet == null || groupSet.isEmpty()))
-            return EMPTY;
-        if (!StringUtils.isEmpty(service) && (serviceSet == null || serviceSet.isEmpty()))
-            return EMPTY;
-        if (groupSet == null && serviceSet == null)
-            return EMPTY;
-        final TreeSet<String> nodes = new TreeSet<>();
-        if (groupSet == null) {
-            nodes.addAll(serviceSet);
-            return nodes;
-        }
-        if (serviceSet == null) {
-            nodes.addAll(groupSet);
-            return nodes;
-        }
-        groupSet.forEach(node -> {
-            if (serviceSet.contains(node))
-                nodes.add(node);
-        });
-        return nodes;
+    final ClusterNodeSet getGroupService(final String group, final String service) {
+        return getGroupService(snapshot, group, service);
+    }
+
+    static ClusterNodeSet getGroupService(final ClusterNodeSnapshot cc, final String group, final String service) {
+        if (StringUtils.isEmpty(group))
+            return StringUtils.isEmpty(service) ? ClusterNodeSet.EMPTY : cc.getService(service);
+        if (StringUtils.isEmpty(service))
+            return cc.getGroup(group);
+        return cc.getGroupService(group, service);
     }
 
-    private static TreeSet<String> getNodes(final String key, final TreeMap<String, TreeSet<String>> nodesMap) {
-        final TreeSet<String> nodeSet = nodesMap.get(key);
-        final TreeSet<String> nodes = new TreeSet<>();
-        if (nodeSet != null)
-            nodes.addAll(nodeSet);
-        return nodes;
+    final ClusterNodeSet getByGroup(final String group) {
+        return snapshot.getGroup(group);
     }
 
-    final TreeSet<String> getByGroup(final String group) {
-        return getNodes(group, cache.cacheGroupsMap);
+    final ClusterNodeSet getByService(final String service) {
+        return snapshot.getService(service);
     }
 
-    final TreeSet<String> getByService(final String service) {
-        return getNodes(service, cache.cacheServicesMap);
+    final TreeMap<String, ClusterNodeSet> getGroups() {
+        return snapshot.groupsMap;
     }
 
-    final TreeMap<String, TreeSet<String>> getGroups() {
-        return cache.cacheGroupsMap;
+    final TreeMap<String, ClusterNodeSet> getServices() {
+        return snapshot.servicesMap;
     }
 
-    final TreeMap<String, TreeSet<String>> getServices() {
-        return cache.cacheServicesMap;
+    /**
+     * @return the current membership, a new instance is published at each change
+     */
+    final ClusterNodeSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return an immutable set of all the known nodes
+     */
+    final ClusterNodeSet getNodes() {
+        return snapshot.nodes;
     }
 
     /**
      * @return a map which contains the nodes
      */
     final Map<String, ClusterNode> getNodesMap() {
-        return cache.cacheNodesMap;
+        return snapshot.nodesMap;
     }
 
     final Set<SocketAddress> getExternalNodeAddresses() {
-        return cache.externalNodesAddresses;
+        return snapshot.externalNodesAddresses;
     }
 
     final Set<SocketAddress> getFullNodeAddresses() {
-        return cache.fullNodesAddresses;
+        return snapshot.fullNodesAddresses;
     }
 
-    private static void registerSet(final Collection<String> keys,
-                                    final HashMap<String, HashSet<String>> nodesMap,
-                                    final String address) {
-        for (final String key : keys) {
-            final HashSet<String> nodeSet = nodesMap.computeIfAbsent(key, k -> new HashSet<>());
-            nodeSet.add(address);
-        }
+    /**
+     * The suspect nodes are computed at most once per SUSPECTS_REFRESH_MS, the phi values of all the nodes are not
+     * evaluated for each lookup.
+     *
+     * @param phiThreshold the suspicion threshold, zero or less disables the detection
+     * @param maxPeriodMs  the longest heartbeat period of the nodes, zero if their period is fixed
+     * @return the set of the nodes which are probably down
+     */
+    final Set<String> getSuspects(final double phiThreshold, final long maxPeriodMs) {
+        return suspects(phiThreshold, maxPeriodMs).nodes;
     }
 
-    private static void unregisterSet(final HashMap<String, HashSet<String>> nodesMap, final String address) {
-        final List<String> toRemove = new ArrayList<>();
-        nodesMap.forEach((key, nodeSet) -> {
-            nodeSet.remove(address);
-            if (nodeSet.isEmpty())
-                toRemove.add(key);
+    /**
+     * @param phiThreshold the suspicion threshold, zero or less disables the detection
+     * @param maxPeriodMs  the longest heartbeat period of the nodes, zero if their period is fixed
+     * @return a number which changes each time the set of the suspect nodes changes
+     */
+    final long getSuspectsVersion(final double phiThreshold, final long maxPeriodMs) {
+        return suspects(phiThreshold, maxPeriodMs).version;
+    }
 
+    private Suspects suspects(final double phiThreshold, final long maxPeriodMs) {
+        if (phiThreshold <= 0)
+            return Suspects.NONE;
+        final long currentMs = System.currentTimeMillis();
+        final Suspects current = suspects;
+        if (current != null && current.snapshot == snapshot && currentMs - current.timeMs < SUSPECTS_REFRESH_MS)
+            return current;
+        final ClusterNodeSnapshot cc = snapshot;
+        final Set<String> nodes = new HashSet<>();
+        cc.nodesMap.forEach((address, node) -> {
+            if (node.isSuspect(currentMs, phiThreshold, maxPeriodMs))
+                nodes.add(address);
         });
-        nodesMap.remove(address);
-        toRemove.forEach(nodesMap::remove);
+        final Suspects next;
+        if (current != null && current.nodes.equals(nodes))
+            next = new Suspects(cc, currentMs, current.nodes, current.version);
+        else
+            next = new Suspects(cc, currentMs,
+                    nodes.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(nodes),
+                    suspectsVersions.incrementAndGet());
+        suspects = next;
+        return next;
+    }
+
+    private static final class Suspects {
+
+        private final static Suspects NONE = new Suspects(null, 0, Collections.emptySet(), 0);
+
+        private final ClusterNodeSnapshot snapshot;
+        private final long timeMs;
+        private final Set<String> nodes;
+        private final long version;
+
+        private Suspects(final ClusterNodeSnapshot snapshot, final long timeMs, final Set<String> nodes,
+                         final long version) {
+            this.snapshot = snapshot;
+            this.timeMs = timeMs;
+            this.nodes = nodes;
+            this.version = version;
+        }
     }
 
-    private ClusterNode put(final String httpAddress, final UUID nodeLiveId, final Long expirationTimeNs) {
-        final ClusterNodeAddress clusterNodeAddress = new ClusterNodeAddress(httpAddress, 9091);
-        final ClusterNode node = new ClusterNode(clusterNodeAddress, nodeLiveId, expirationTimeNs);
-        nodesMap.put(clusterNodeAddress.httpAddressKey, node);
+    /**
+     * Publish the new snapshot if something changed. Must be called under the write lock.
+     *
+     * @param builder the builder of the next snapshot
+     */
+    private void publish(final ClusterNodeSnapshot.Builder builder) {
+        publish(builder, false);
+    }
+
+    /**
+     * @param builder the builder of the next snapshot
+     * @param expired true if the removed nodes have expired
+     */
+    private void publish(final ClusterNodeSnapshot.Builder builder, final boolean expired) {
+        if (!builder.isModified())
+            return;
+        final ClusterNodeSnapshot previous = snapshot;
+        snapshot = builder.build();
+        clusterManager.events.submit(previous, snapshot, expired);
+    }
+
+    private ClusterNode put(final ClusterNodeSnapshot.Builder builder, final String httpAddress,
+                            final UUID nodeLiveId, final Long expirationTimeMs, final ClusterNode previous) {
+        final ClusterNode node = previous == null ?
+                new ClusterNode(new ClusterNodeAddress(httpAddress, 9091), nodeLiveId, expirationTimeMs) :
+                new ClusterNode(previous, nodeLiveId, expirationTimeMs);
+        if (expirationTimeMs != null) {
+            if (nodeLiveId != null)
+                node.heartbeat(System.currentTimeMillis());
+            expirations.schedule(node);
+        }
+        builder.putNode(node);
         return node;
     }
 
-    private ClusterNode registerNode(final String httpAddress, final UUID nodeLiveId, final Long expirationTimeMs) {
-        final ClusterNode node = nodesMap.get(httpAddress);
+    /**
+     * A message was received from (or about) a known node. Only the nodes which can expire record a heartbeat:
+     * this node has no expiration time and its relayed messages must not feed its own phi.
+     */
+    private void touch(final ClusterNode node, final Long expirationTimeMs) {
+        node.setExpirationTime(expirationTimeMs);
+        if (expirationTimeMs != null) {
+            node.heartbeat(System.currentTimeMillis());
+            expirations.schedule(node);
+        }
+    }
+
+    private ClusterNode registerNode(final ClusterNodeSnapshot.Builder builder, final String httpAddress,
+                                     final UUID nodeLiveId, final Long expirationTimeMs) {
+        final ClusterNode node = builder.getNode(httpAddress);
         if (node == null)
-            return put(httpAddress, nodeLiveId, expirationTimeMs);
+            return put(builder, httpAddress, nodeLiveId, expirationTimeMs, null);
         if (nodeLiveId == null)
             return node;
         if (nodeLiveId.equals(node.nodeLiveId)) {
-            node.setExpirationTime(expirationTimeMs);
+            touch(node, expirationTimeMs);
             return node;
         }
-        return put(httpAddress, nodeLiveId, expirationTimeMs);
+        return put(builder, httpAddress, nodeLiveId, expirationTimeMs, node);
+    }
+
+    /**
+     * Lock-free path for the keep-alive messages. If the node is already known with the same UUID (and the same
+     * groups and services for a full message), only the expiration time is updated and no snapshot is published.
+     *
+     * @param address          the address of the node
+     * @param nodeLiveId       the UUID of the node
+     * @param message          the full message or null
+     * @param expirationTimeMs the new expiration time
+     * @return the refreshed node, or null if the membership has to be updated
+     */
+    private ClusterNode refresh(final String address, final UUID nodeLiveId, final FullContent message,
+                                final Long expirationTimeMs) {
+        if (nodeLiveId == null)
+            return null;
+        final ClusterNode node = snapshot.nodesMap.get(address);
+        if (node == null || !nodeLiveId.equals(node.nodeLiveId))
+            return null;
+        if (message != null) {
+            if (!node.isSameMembership(message.groups, message.services))
+                return null;
+            node.setMembershipVersion(message.getVersion());
+        }
+        touch(node, expirationTimeMs);
+        return node;
+    }
+
+    /**
+     * Lock-free refresh of a node which announced its membership version.
+     *
+     * @param message          the digest of the node
+     * @param expirationTimeMs the new expiration time
+     * @return the refreshed node, or null if the node is unknown or if its membership version changed
+     */
+    final ClusterNode refreshDigest(final DigestContent message, final Long expirationTimeMs) {
+        if (message == null || message.getAddress() == null || message.getNodeLiveId() == null)
+            return null;
+        final ClusterNode node = snapshot.nodesMap.get(message.getAddress());
+        if (node == null || !message.getNodeLiveId().equals(node.nodeLiveId) ||
+                !node.isSameMembership(message.getVersion()))
+            return null;
+        touch(node, expirationTimeMs);
+        return node;
     }
 
     /**
@@ -206,8 +302,9 @@ class ClusterNodeMap {
         if (httpAddress == null)
             return null;
         return readWriteLock.write(() -> {
-            final ClusterNode clusterNode = registerNode(httpAddress, null, null);
-            cache = new Cache();
+            final ClusterNodeSnapshot.Builder builder = snapshot.builder(myAddress);
+            final ClusterNode clusterNode = registerNode(builder, httpAddress, null, null);
+            publish(builder);
             return clusterNode;
         });
     }
@@ -224,9 +321,13 @@ class ClusterNodeMap {
         final String address = message.getAddress();
         if (address == null)
             return null;
+        final ClusterNode refreshedNode = refresh(address, message.getNodeLiveId(), null, expirationTimeMs);
+        if (refreshedNode != null)
+            return refreshedNode;
         return readWriteLock.writeEx(() -> {
-            final ClusterNode clusterNode = registerNode(address, message.getNodeLiveId(), expirationTimeMs);
-            cache = new Cache();
+            final ClusterNodeSnapshot.Builder builder = snapshot.builder(myAddress);
+            final ClusterNode clusterNode = registerNode(builder, address, message.getNodeLiveId(), expirationTimeMs);
+            publish(builder);
             return clusterNode;
         });
     }
@@ -237,37 +338,98 @@ class ClusterNodeMap {
         final String address = message.getAddress();
         if (address == null)
             return null;
+        final ClusterNode refreshedNode = refresh(address, message.getNodeLiveId(), message, expirationTimeMs);
+        if (refreshedNode != null)
+            return refreshedNode;
         return readWriteLock.writeEx(() -> {
-            final ClusterNode clusterNode = registerNode(address, message.getNodeLiveId(), expirationTimeMs);
-            unregisterSet(groupsMap, clusterNode.address.httpAddressKey);
-            unregisterSet(servicesMap, clusterNode.address.httpAddressKey);
-            clusterNode.registerGroups(message.groups);
-            clusterNode.registerServices(message.services);
-            registerSet(message.groups, groupsMap, address);
-            registerSet(message.services, servicesMap, address);
-            cache = new Cache();
+            // Another writer may have registered the same membership in the meantime
+            final ClusterNode knownNode = refresh(address, message.getNodeLiveId(), message, expirationTimeMs);
+            if (knownNode != null)
+                return knownNode;
+            final ClusterNodeSnapshot.Builder builder = snapshot.builder(myAddress);
+            final ClusterNode clusterNode = registerFull(builder, message, expirationTimeMs);
+            publish(builder);
             return clusterNode;
         });
     }
 
+    private ClusterNode registerFull(final ClusterNodeSnapshot.Builder builder, final FullContent message,
+                                     final Long expirationTimeMs) {
+        final ClusterNode clusterNode =
+                registerNode(builder, message.getAddress(), message.getNodeLiveId(), expirationTimeMs);
+        builder.updateMembership(clusterNode.address.httpAddressKey, clusterNode.getGroups(), message.groups,
+                clusterNode.getServices(), message.services);
+        clusterNode.registerGroups(message.groups);
+        clusterNode.registerServices(message.services);
+        clusterNode.setMembershipVersion(message.getVersion());
+        return clusterNode;
+    }
+
+    /**
+     * @param message an address or a full message
+     * @return true if the node is known with the same UUID (and the same groups and services for a full message)
+     */
+    private boolean isRegistered(final AddressContent message) {
+        final ClusterNode node = snapshot.nodesMap.get(message.getAddress());
+        if (node == null || !message.getNodeLiveId().equals(node.nodeLiveId))
+            return false;
+        if (!(message instanceof FullContent))
+            return true;
+        final FullContent fullContent = (FullContent) message;
+        return node.isSameMembership(fullContent.groups, fullContent.services);
+    }
+
+    /**
+     * Register a batch of nodes (typically a join storm drained from the receive queue) under one write lock, with
+     * one snapshot publication. The nodes already registered are left to the lock-free refresh of their handlers.
+     *
+     * @param messages       the address and full messages
+     * @param expirationTime the expiration time of each message
+     * @return the number of registered nodes
+     */
+    final int registerAll(final Collection<? extends AddressContent> messages,
+                          final Function<AddressContent, Long> expirationTime) {
+        if (messages == null || messages.isEmpty())
+            return 0;
+        final List<AddressContent> pending = new ArrayList<>();
+        for (final AddressContent message : messages)
+            if (message != null && message.getAddress() != null && message.getNodeLiveId() != null &&
+                    !isRegistered(message))
+                pending.add(message);
+        if (pending.isEmpty())
+            return 0;
+        readWriteLock.writeEx(() -> {
+            final ClusterNodeSnapshot.Builder builder = snapshot.builder(myAddress);
+            for (final AddressContent message : pending) {
+                final Long expirationTimeMs = expirationTime.apply(message);
+                if (message instanceof FullContent)
+                    registerFull(builder, (FullContent) message, expirationTimeMs);
+                else
+                    registerNode(builder, message.getAddress(), message.getNodeLiveId(), expirationTimeMs);
+            }
+            publish(builder);
+        });
+        return pending.size();
+    }
+
     /**
      * Unregister the node
      *
+     * @param builder the builder of the next snapshot
      * @param address the node to unregister
      */
-    private void unregisterAll(final String address) {
+    private void unregisterAll(final ClusterNodeSnapshot.Builder builder, final String address) {
         LOGGER.info(() -> "Unregister " + address + " from " + myAddress);
-        final ClusterNode clusterNode = nodesMap.get(address);
-        final ClusterNodeAddress nodeAddress =
-                clusterNode != null ? clusterNode.address : new ClusterNodeAddress(address, 9091);
-        if (clusterNode != null) {
-            clusterNode.registerGroups(Collections.emptyList());
-            clusterNode.registerServices(Collections.emptyList());
-        }
-        unregisterSet(groupsMap, nodeAddress.httpAddressKey);
-        unregisterSet(servicesMap, nodeAddress.httpAddressKey);
-        if (!clusterManager.isMaster(nodeAddress))
-            nodesMap.remove(nodeAddress.httpAddressKey);
+        final ClusterNode clusterNode = builder.getNode(address);
+        if (clusterNode == null)
+            return;
+        final String key = clusterNode.address.httpAddressKey;
+        builder.updateMembership(key, clusterNode.getGroups(), null, clusterNode.getServices(), null);
+        clusterNode.registerGroups(Collections.emptyList());
+        clusterNode.registerServices(Collections.emptyList());
+        clusterNode.setMembershipVersion(-1);
+        if (!clusterManager.isMaster(clusterNode.address))
+            builder.removeNode(key);
     }
 
     /**
@@ -279,23 +441,34 @@ class ClusterNodeMap {
         if (message == null)
             return;
         readWriteLock.writeEx(() -> {
-            unregisterAll(message.getAddress());
-            cache = new Cache();
+            final ClusterNodeSnapshot.Builder builder = snapshot.builder(myAddress);
+            unregisterAll(builder, message.getAddress());
+            publish(builder);
         });
     }
 
-    final synchronized void removeExpired() {
-        final List<String> deleteAdresses = new ArrayList<>();
+    /**
+     * Only the nodes reached by the expiration wheel are checked, the write lock is only taken if one of them is
+     * actually expired.
+     */
+    final void removeExpired() {
         final long currentMs = System.currentTimeMillis();
+        final List<ClusterNode> expiredNodes = expirations.expire(currentMs);
+        if (expiredNodes.isEmpty())
+            return;
         readWriteLock.writeEx(() -> {
-            nodesMap.forEach((address, node) -> {
-                if (node.isExpired(currentMs))
-                    deleteAdresses.add(address);
-            });
-            if (deleteAdresses.isEmpty())
-                return;
-            deleteAdresses.forEach(this::unregisterAll);
-            cache = new Cache();
+            final ClusterNodeSnapshot.Builder builder = snapshot.builder(myAddress);
+            for (final ClusterNode expiredNode : expiredNodes) {
+                final String address = expiredNode.address.httpAddressKey;
+                // Ignore the previous incarnations and the nodes already removed
+                if (builder.getNode(address) != expiredNode)
+                    continue;
+                if (expiredNode.isExpired(currentMs))
+                    unregisterAll(builder, address);
+                else // Refreshed in the meantime
+                    expirations.schedule(expiredNode);
+            }
+            publish(builder, true);
         });
     }
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Immutable sorted set of node addresses backed by an array.
+ * The instances are shared by the snapshots and returned as is to the callers.
+ */
+final class ClusterNodeSet extends AbstractSet<String> implements SortedSet<String> {
+
+    static final ClusterNodeSet EMPTY = new ClusterNodeSet(new String[0]);
+
+    /**
+     * The number of random picks before filtering out the excluded nodes
+     */
+    private static final int RANDOM_ATTEMPTS = 3;
+
+    private final String[] nodes;
+
+    /**
+     * The hash ring, built by the first key lookup
+     */
+    private volatile ClusterHashRing ring;
+
+    /**
+     * The partition table, built by the first partition lookup
+     */
+    private volatile ClusterPartitionTable partitionTable;
+
+    private ClusterNodeSet(final String[] nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * @param sortedNodes a collection which iterates over distinct nodes in natural order
+     * @return a new set, or the empty set
+     */
+    static ClusterNodeSet of(final Collection<String> sortedNodes) {
+        if (sortedNodes == null || sortedNodes.isEmpty())
+            return EMPTY;
+        return new ClusterNodeSet(sortedNodes.toArray(new String[0]));
+    }
+
+    final String get(final int index) {
+        return nodes[index];
+    }
+
+    /**
+     * @return a node picked at random, or null if the set is empty
+     */
+    final String random() {
+        switch (nodes.length) {
+            case 0:
+                return null;
+            case 1:
+                return nodes[0];
+            default:
+                return nodes[ThreadLocalRandom.current().nextInt(nodes.length)];
+        }
+    }
+
+    /**
+     * @param excluded the nodes to avoid
+     * @return a node picked at random among the nodes which are not excluded, any node if they are all excluded,
+     * or null if the set is empty
+     */
+    final String random(final Set<String> excluded) {
+        if (excluded.isEmpty())
+            return random();
+        for (int i = 0; i < RANDOM_ATTEMPTS; i++) {
+            final String node = random();
+            if (node == null || !excluded.contains(node))
+                return node;
+        }
+        return without(excluded).random();
+    }
+
+    /**
+     * @param excluded the nodes to remove
+     * @return this set if it does not contain any excluded node or if it only contains excluded nodes,
+     * otherwise a new set without the excluded nodes
+     */
+    final ClusterNodeSet without(final Set<String> excluded) {
+        if (excluded.isEmpty() || nodes.length == 0)
+            return this;
+        int count = 0;
+        for (final String node : nodes)
+            if (!excluded.contains(node))
+                count++;
+        if (count == nodes.length || count == 0)
+            return this;
+        final String[] remaining = new String[count];
+        int i = 0;
+        for (final String node : nodes)
+            if (!excluded.contains(node))
+                remaining[i++] = node;
+        return new ClusterNodeSet(remaining);
+    }
+
+    /**
+     * The ring is shared by the snapshots as long as the set is not modified. Concurrent first lookups may build
+     * it twice, the rings are identical.
+     *
+     * @return the consistent hash ring of the nodes
+     */
+    final ClusterHashRing ring() {
+        ClusterHashRing currentRing = ring;
+        if (currentRing == null)
+            ring = currentRing = new ClusterHashRing(nodes);
+        return currentRing;
+    }
+
+    /**
+     * The table is shared by the snapshots as long as the set is not modified, it keeps the version of the snapshot
+     * which built it. The table of the empty set is not kept, the empty set is shared by the cluster managers.
+     *
+     * @param version        the version of the current snapshot
+     * @param partitionCount the number of partitions
+     * @param replicas       the number of nodes per partition
+     * @return the partition table of the nodes
+     */
+    final ClusterPartitionTable partitions(final long version, final int partitionCount, final int replicas) {
+        ClusterPartitionTable table = partitionTable;
+        if (table != null && table.matches(partitionCount, replicas))
+            return table;
+        table = ClusterPartitionTable.of(this, version, partitionCount, replicas);
+        if (nodes.length > 0)
+            partitionTable = table;
+        return table;
+    }
+
+    /**
+     * @return the partition table if it has already been built, null otherwise
+     */
+    final ClusterPartitionTable partitions() {
+        return partitionTable;
+    }
+
+    /**
+     * @return the first node, or null if the set is empty
+     */
+    final String leader() {
+        return nodes.length == 0 ? null : nodes[0];
+    }
+
+    @Override
+    public int size() {
+        return nodes.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return nodes.length == 0;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return o instanceof String && Arrays.binarySearch(nodes, o) >= 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<>() {
+
+            private int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                return pos < nodes.length;
+            }
+
+            @Override
+            public String next() {
+                if (pos >= nodes.length)
+                    throw new NoSuchElementException();
+                return nodes[pos++];
+            }
+        };
+    }
+
+    @Override
+    public Object[] toArray() {
+        return nodes.clone();
+    }
+
+    @Override
+    public Comparator<? super String> comparator() {
+        return null;
+    }
+
+    private int lowerBound(final String node) {
+        final int pos = Arrays.binarySearch(nodes, node);
+        return pos >= 0 ? pos : -pos - 1;
+    }
+
+    private ClusterNodeSet range(final int from, final int to) {
+        if (from == 0 && to == nodes.length)
+            return this;
+        return from >= to ? EMPTY : new ClusterNodeSet(Arrays.copyOfRange(nodes, from, to));
+    }
+
+    @Override
+    public SortedSet<String> subSet(final String fromElement, final String toElement) {
+        if (fromElement.compareTo(toElement) > 0)
+            throw new IllegalArgumentException("fromElement > toElement");
+        return range(lowerBound(fromElement), lowerBound(toElement));
+    }
+
+    @Override
+    public SortedSet<String> headSet(final String toElement) {
+        return range(0, lowerBound(toElement));
+    }
+
+    @Override
+    public SortedSet<String> tailSet(final String fromElement) {
+        return range(lowerBound(fromElement), nodes.length);
+    }
+
+    @Override
+    public String first() {
+        if (nodes.length == 0)
+            throw new NoSuchElementException();
+        return nodes[0];
+    }
+
+    @Override
+    public String last() {
+        if (nodes.length == 0)
+            throw new NoSuchElementException();
+        return nodes[nodes.length - 1];
+    }
+}
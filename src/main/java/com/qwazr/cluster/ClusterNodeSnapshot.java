@@ -0,0 +1,326 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable view of the cluster membership.
+ * <p>
+ * A snapshot is never modified once published. The next snapshot is derived using a {@link Builder}
+ * which shares everything with the previous one, except the containers which are actually touched.
+ */
+final class ClusterNodeSnapshot {
+
+    /**
+     * Incremented for each published snapshot
+     */
+    final long version;
+
+    final Map<String, ClusterNode> nodesMap;
+    final ClusterNodeSet nodes;
+    final Set<SocketAddress> fullNodesAddresses;
+    final Set<SocketAddress> externalNodesAddresses;
+    final TreeMap<String, ClusterNodeSet> groupsMap;
+    final TreeMap<String, ClusterNodeSet> servicesMap;
+
+    /**
+     * The nodes which belong to both a group and a service: group -> service -> nodes
+     */
+    final Map<String, Map<String, ClusterNodeSet>> groupServiceIndex;
+
+    static final ClusterNodeSnapshot EMPTY =
+            new ClusterNodeSnapshot(0, Collections.emptyMap(), ClusterNodeSet.EMPTY, Collections.emptySet(),
+                    Collections.emptySet(), new TreeMap<>(), new TreeMap<>(), Collections.emptyMap());
+
+    private ClusterNodeSnapshot(final long version, final Map<String, ClusterNode> nodesMap,
+                                final ClusterNodeSet nodes,
+                                final Set<SocketAddress> fullNodesAddresses,
+                                final Set<SocketAddress> externalNodesAddresses,
+                                final TreeMap<String, ClusterNodeSet> groupsMap,
+                                final TreeMap<String, ClusterNodeSet> servicesMap,
+                                final Map<String, Map<String, ClusterNodeSet>> groupServiceIndex) {
+        this.version = version;
+        this.nodesMap = nodesMap;
+        this.nodes = nodes;
+        this.fullNodesAddresses = fullNodesAddresses;
+        this.externalNodesAddresses = externalNodesAddresses;
+        this.groupsMap = groupsMap;
+        this.servicesMap = servicesMap;
+        this.groupServiceIndex = groupServiceIndex;
+    }
+
+    private static ClusterNodeSet get(final Map<String, ClusterNodeSet> map, final String key) {
+        final ClusterNodeSet nodes = map.get(key);
+        return nodes == null ? ClusterNodeSet.EMPTY : nodes;
+    }
+
+    ClusterNodeSet getGroup(final String group) {
+        return get(groupsMap, group);
+    }
+
+    ClusterNodeSet getService(final String service) {
+        return get(servicesMap, service);
+    }
+
+    /**
+     * @param group   the name of the group
+     * @param service the name of the service
+     * @return the nodes which belong to both the group and the service
+     */
+    ClusterNodeSet getGroupService(final String group, final String service) {
+        final Map<String, ClusterNodeSet> services = groupServiceIndex.get(group);
+        return services == null ? ClusterNodeSet.EMPTY : get(services, service);
+    }
+
+    Builder builder(final InetSocketAddress myAddress) {
+        return new Builder(this, myAddress);
+    }
+
+    /**
+     * Copy-on-write builder. The containers of the base snapshot are copied the first time they are modified,
+     * the others are shared with the new snapshot.
+     */
+    static final class Builder {
+
+        private final ClusterNodeSnapshot base;
+        private final InetSocketAddress myAddress;
+
+        private HashMap<String, ClusterNode> nodesMap;
+        private HashSet<SocketAddress> fullNodesAddresses;
+        private HashSet<SocketAddress> externalNodesAddresses;
+
+        /**
+         * The groups and services which have been modified, they are frozen when the snapshot is built
+         */
+        private final HashMap<String, TreeSet<String>> workingGroups;
+        private final HashMap<String, TreeSet<String>> workingServices;
+
+        /**
+         * The (group, service) pairs which must be computed again: group -> services
+         */
+        private final HashMap<String, Set<String>> touchedPairs;
+
+        private Builder(final ClusterNodeSnapshot base, final InetSocketAddress myAddress) {
+            this.base = base;
+            this.myAddress = myAddress;
+            this.workingGroups = new HashMap<>();
+            this.workingServices = new HashMap<>();
+            this.touchedPairs = new HashMap<>();
+        }
+
+        ClusterNode getNode(final String address) {
+            return (nodesMap != null ? nodesMap : base.nodesMap).get(address);
+        }
+
+        private HashMap<String, ClusterNode> nodesMap() {
+            if (nodesMap == null)
+                nodesMap = new HashMap<>(base.nodesMap);
+            return nodesMap;
+        }
+
+        private HashSet<SocketAddress> fullNodesAddresses() {
+            if (fullNodesAddresses == null)
+                fullNodesAddresses = new HashSet<>(base.fullNodesAddresses);
+            return fullNodesAddresses;
+        }
+
+        private HashSet<SocketAddress> externalNodesAddresses() {
+            if (externalNodesAddresses == null)
+                externalNodesAddresses = new HashSet<>(base.externalNodesAddresses);
+            return externalNodesAddresses;
+        }
+
+        Builder putNode(final ClusterNode node) {
+            final ClusterNode previous = nodesMap().put(node.address.httpAddressKey, node);
+            final InetSocketAddress address = node.address.address;
+            if (previous != null && previous.address.address.equals(address))
+                return this;
+            fullNodesAddresses().add(address);
+            if (!myAddress.equals(address))
+                externalNodesAddresses().add(address);
+            return this;
+        }
+
+        Builder removeNode(final String httpAddressKey) {
+            if (!(nodesMap != null ? nodesMap : base.nodesMap).containsKey(httpAddressKey))
+                return this;
+            final ClusterNode node = nodesMap().remove(httpAddressKey);
+            fullNodesAddresses().remove(node.address.address);
+            externalNodesAddresses().remove(node.address.address);
+            return this;
+        }
+
+        /**
+         * Move a node from its old groups and services to the new ones.
+         *
+         * @param httpAddressKey the address of the node
+         * @param oldGroups      the groups currently registered for this node (may be null)
+         * @param newGroups      the new groups of the node (null removes the node from any group)
+         * @param oldServices    the services currently registered for this node (may be null)
+         * @param newServices    the new services of the node (null removes the node from any service)
+         * @return the builder
+         */
+        Builder updateMembership(final String httpAddressKey, final Collection<String> oldGroups,
+                                 final Collection<String> newGroups, final Collection<String> oldServices,
+                                 final Collection<String> newServices) {
+            update(true, httpAddressKey, oldGroups, newGroups);
+            update(false, httpAddressKey, oldServices, newServices);
+            touchPairs(oldGroups, oldServices, newServices);
+            touchPairs(newGroups, oldServices, newServices);
+            return this;
+        }
+
+        private void touchPairs(final Collection<String> groups, final Collection<String> oldServices,
+                                final Collection<String> newServices) {
+            if (groups == null)
+                return;
+            for (final String group : groups) {
+                if (oldServices != null && !oldServices.isEmpty())
+                    touchedPairs.computeIfAbsent(group, g -> new HashSet<>()).addAll(oldServices);
+                if (newServices != null && !newServices.isEmpty())
+                    touchedPairs.computeIfAbsent(group, g -> new HashSet<>()).addAll(newServices);
+            }
+        }
+
+        private void update(final boolean groups, final String httpAddressKey, final Collection<String> oldKeys,
+                            final Collection<String> newKeys) {
+            if (oldKeys != null)
+                for (final String key : oldKeys)
+                    if (newKeys == null || !newKeys.contains(key))
+                        unregister(groups, key, httpAddressKey);
+            if (newKeys != null)
+                for (final String key : newKeys)
+                    if (oldKeys == null || !oldKeys.contains(key))
+                        register(groups, key, httpAddressKey);
+        }
+
+        /**
+         * @return the current nodes of the group or the service, either the working copy or the base one
+         */
+        private SortedSet<String> current(final boolean groups, final String key) {
+            final TreeSet<String> working = (groups ? workingGroups : workingServices).get(key);
+            if (working != null)
+                return working;
+            return groups ? base.getGroup(key) : base.getService(key);
+        }
+
+        private TreeSet<String> working(final boolean groups, final String key) {
+            return (groups ? workingGroups : workingServices).computeIfAbsent(key,
+                    k -> new TreeSet<>(groups ? base.getGroup(k) : base.getService(k)));
+        }
+
+        private void register(final boolean groups, final String key, final String httpAddressKey) {
+            if (current(groups, key).contains(httpAddressKey))
+                return;
+            working(groups, key).add(httpAddressKey);
+        }
+
+        private void unregister(final boolean groups, final String key, final String httpAddressKey) {
+            if (!current(groups, key).contains(httpAddressKey))
+                return;
+            working(groups, key).remove(httpAddressKey);
+        }
+
+        private static TreeMap<String, ClusterNodeSet> freeze(final TreeMap<String, ClusterNodeSet> baseMap,
+                                                              final HashMap<String, TreeSet<String>> working) {
+            if (working.isEmpty())
+                return baseMap;
+            final TreeMap<String, ClusterNodeSet> map = new TreeMap<>(baseMap);
+            working.forEach((key, nodes) -> {
+                if (nodes.isEmpty())
+                    map.remove(key);
+                else
+                    map.put(key, ClusterNodeSet.of(nodes));
+            });
+            return map;
+        }
+
+        private static ClusterNodeSet intersect(final ClusterNodeSet groupNodes, final ClusterNodeSet serviceNodes) {
+            final ClusterNodeSet smaller = groupNodes.size() <= serviceNodes.size() ? groupNodes : serviceNodes;
+            final ClusterNodeSet larger = smaller == groupNodes ? serviceNodes : groupNodes;
+            if (smaller.isEmpty())
+                return ClusterNodeSet.EMPTY;
+            final List<String> nodes = new ArrayList<>(smaller.size());
+            for (final String node : smaller)
+                if (larger.contains(node))
+                    nodes.add(node);
+            return nodes.size() == smaller.size() ? smaller : ClusterNodeSet.of(nodes);
+        }
+
+        /**
+         * Compute again the intersections of the touched (group, service) pairs
+         */
+        private Map<String, Map<String, ClusterNodeSet>> buildGroupServiceIndex(
+                final TreeMap<String, ClusterNodeSet> groupsMap, final TreeMap<String, ClusterNodeSet> servicesMap) {
+            if (touchedPairs.isEmpty())
+                return base.groupServiceIndex;
+            final HashMap<String, Map<String, ClusterNodeSet>> groupServiceIndex =
+                    new HashMap<>(base.groupServiceIndex);
+            touchedPairs.forEach((group, serviceNames) -> {
+                final Map<String, ClusterNodeSet> baseServiceIndex = groupServiceIndex.get(group);
+                final HashMap<String, ClusterNodeSet> serviceIndex =
+                        baseServiceIndex == null ? new HashMap<>() : new HashMap<>(baseServiceIndex);
+                final ClusterNodeSet groupNodes = get(groupsMap, group);
+                for (final String service : serviceNames) {
+                    final ClusterNodeSet nodes = intersect(groupNodes, get(servicesMap, service));
+                    if (nodes.isEmpty())
+                        serviceIndex.remove(service);
+                    else
+                        serviceIndex.put(service, nodes);
+                }
+                if (serviceIndex.isEmpty())
+                    groupServiceIndex.remove(group);
+                else
+                    groupServiceIndex.put(group, Collections.unmodifiableMap(serviceIndex));
+            });
+            return Collections.unmodifiableMap(groupServiceIndex);
+        }
+
+        boolean isModified() {
+            return nodesMap != null || !workingGroups.isEmpty() || !workingServices.isEmpty();
+        }
+
+        ClusterNodeSnapshot build() {
+            if (!isModified())
+                return base;
+            final TreeMap<String, ClusterNodeSet> groupsMap = freeze(base.groupsMap, workingGroups);
+            final TreeMap<String, ClusterNodeSet> servicesMap = freeze(base.servicesMap, workingServices);
+            return new ClusterNodeSnapshot(base.version + 1,
+                    nodesMap != null ? Collections.unmodifiableMap(nodesMap) : base.nodesMap,
+                    nodesMap != null ? ClusterNodeSet.of(new TreeSet<>(nodesMap.keySet())) : base.nodes,
+                    fullNodesAddresses != null ?
+                            Collections.unmodifiableSet(fullNodesAddresses) :
+                            base.fullNodesAddresses,
+                    externalNodesAddresses != null ?
+                            Collections.unmodifiableSet(externalNodesAddresses) :
+                            base.externalNodesAddresses,
+                    groupsMap, servicesMap, buildGroupServiceIndex(groupsMap, servicesMap));
+        }
+    }
+}
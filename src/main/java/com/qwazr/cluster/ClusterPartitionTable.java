@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Immutable assignment of a fixed number of partitions to the nodes of a service. Each partition is owned by a
+ * primary node followed by its replicas.
+ * <p>
+ * The assignment only depends on the nodes, every node of the cluster computes the same table from the same
+ * membership. Each partition ranks the nodes by a hash of the (partition, node) pair (rendezvous hashing) and takes the
+ * best ranked nodes which still need copies: every node owns floor or ceil(partitions * replicas / nodes) copies, and
+ * almost always floor or ceil(partitions / nodes) primaries. When a node joins or leaves, most of the partitions keep
+ * their nodes.
+ */
+public class ClusterPartitionTable {
+
+    /**
+     * The membership version from which the table has been computed. It only changes when the assignment changes.
+     * Like the versions of the events, it is only valid for the node which answered.
+     */
+    public final long version;
+
+    /**
+     * The number of nodes per partition (the primary included), lower if there are not enough nodes
+     */
+    public final int replicas;
+
+    /**
+     * The nodes of each partition, the primary first
+     */
+    public final List<List<String>> partitions;
+
+    @JsonCreator
+    ClusterPartitionTable(@JsonProperty("version") final long version, @JsonProperty("replicas") final int replicas,
+                          @JsonProperty("partitions") final List<List<String>> partitions) {
+        this.version = version;
+        this.replicas = replicas;
+        this.partitions = partitions == null ? Collections.emptyList() : partitions;
+    }
+
+    /**
+     * @param nodes          the nodes of the service
+     * @param version        the version of the membership
+     * @param partitionCount the number of partitions
+     * @param replicas       the number of nodes per partition
+     * @return a new table
+     */
+    static ClusterPartitionTable of(final ClusterNodeSet nodes, final long version, final int partitionCount,
+                                    final int replicas) {
+        return new ClusterPartitionTable(version, replicas,
+                assign(nodes.toArray(new String[0]), partitionCount, replicas));
+    }
+
+    private static List<List<String>> assign(final String[] nodes, final int partitionCount, final int replicas) {
+        final List<List<String>> partitions = new ArrayList<>(partitionCount);
+        final int count = Math.min(replicas, nodes.length);
+        if (count == 0) {
+            for (int p = 0; p < partitionCount; p++)
+                partitions.add(Collections.emptyList());
+            return Collections.unmodifiableList(partitions);
+        }
+        final long[] nodeHashes = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++)
+            nodeHashes[i] = ClusterHashRing.hash(nodes[i]);
+        // The number of copies and of primaries each node still has to take
+        final int[] needs = targets(nodeHashes, partitionCount * count);
+        final int[] primaryNeeds = targets(nodeHashes, partitionCount);
+        final long[] scores = new long[nodes.length];
+        final Integer[] ranking = new Integer[nodes.length];
+        final int[] chosen = new int[count];
+        for (int p = 0; p < partitionCount; p++) {
+            final int remaining = partitionCount - p;
+            final long partitionHash = ClusterHashRing.mix((p + 1) * 0x9E3779B97F4A7C15L);
+            int forced = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                scores[i] = ClusterHashRing.mix(nodeHashes[i] ^ partitionHash);
+                ranking[i] = i;
+                // A node which needs one copy per remaining partition must be chosen
+                if (needs[i] == remaining)
+                    forced++;
+            }
+            Arrays.sort(ranking, (a, b) -> Long.compare(scores[b], scores[a]));
+            int free = count - forced;
+            int size = 0;
+            for (final int node : ranking) {
+                if (needs[node] == remaining)
+                    chosen[size++] = node;
+                else if (needs[node] > 0 && free > 0) {
+                    chosen[size++] = node;
+                    free--;
+                }
+                if (size == count)
+                    break;
+            }
+            final int primary = primary(chosen, primaryNeeds, remaining);
+            primaryNeeds[chosen[primary]]--;
+            final String[] owners = new String[count];
+            owners[0] = nodes[chosen[primary]];
+            for (int r = 0, o = 1; r < count; r++) {
+                needs[chosen[r]]--;
+                if (r != primary)
+                    owners[o++] = nodes[chosen[r]];
+            }
+            partitions.add(Collections.unmodifiableList(Arrays.asList(owners)));
+        }
+        return Collections.unmodifiableList(partitions);
+    }
+
+    /**
+     * @param nodeHashes the hashes of the nodes
+     * @param total      the number of items
+     * @return the number of items per node: the same for every node, plus one for the nodes with the lowest hashes
+     * if the division is not exact
+     */
+    private static int[] targets(final long[] nodeHashes, final int total) {
+        final int[] targets = new int[nodeHashes.length];
+        Arrays.fill(targets, total / nodeHashes.length);
+        final int extra = total % nodeHashes.length;
+        if (extra == 0)
+            return targets;
+        final Integer[] order = new Integer[nodeHashes.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(nodeHashes[a], nodeHashes[b]));
+        for (int i = 0; i < extra; i++)
+            targets[order[i]]++;
+        return targets;
+    }
+
+    /**
+     * @return the position of the primary among the chosen nodes: a node which needs a primary in each remaining
+     * partition, or the best ranked node which still needs a primary
+     */
+    private static int primary(final int[] chosen, final int[] primaryNeeds, final int remaining) {
+        int primary = -1;
+        for (int r = 0; r < chosen.length; r++) {
+            final int need = primaryNeeds[chosen[r]];
+            if (need == remaining)
+                return r;
+            if (need > 0 && primary == -1)
+                primary = r;
+        }
+        return primary == -1 ? 0 : primary;
+    }
+
+    /**
+     * @return the number of partitions
+     */
+    @JsonIgnore
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * @param key the key
+     * @return the partition of the key
+     */
+    public int getPartition(final String key) {
+        return (int) Long.remainderUnsigned(ClusterHashRing.hash(key), partitions.size());
+    }
+
+    /**
+     * @param partition the partition
+     * @return the nodes of the partition, the primary first, empty if the service has no node
+     */
+    public List<String> getNodes(final int partition) {
+        return partitions.get(partition);
+    }
+
+    /**
+     * @param partition the partition
+     * @return the primary node of the partition, or null if the service has no node
+     */
+    public String getPrimary(final int partition) {
+        final List<String> nodes = partitions.get(partition);
+        return nodes.isEmpty() ? null : nodes.get(0);
+    }
+
+    /**
+     * @param node the address of a node
+     * @return the partitions which have a copy on the node
+     */
+    public SortedSet<Integer> getPartitions(final String node) {
+        final SortedSet<Integer> result = new TreeSet<>();
+        for (int p = 0; p < partitions.size(); p++)
+            if (partitions.get(p).contains(node))
+                result.add(p);
+        return result;
+    }
+
+    /**
+     * @param partitionCount the number of partitions
+     * @param replicas       the number of nodes per partition
+     * @return true if the table has been computed with these settings
+     */
+    final boolean matches(final int partitionCount, final int replicas) {
+        return this.partitions.size() == partitionCount && this.replicas == replicas;
+    }
+
+    /**
+     * @param previous the previous table
+     * @return the partitions whose nodes are not the same in both tables
+     */
+    final SortedSet<Integer> changedPartitions(final ClusterPartitionTable previous) {
+        final SortedSet<Integer> changed = new TreeSet<>();
+        for (int p = 0; p < partitions.size(); p++)
+            if (p >= previous.partitions.size() || !partitions.get(p).equals(previous.partitions.get(p)))
+                changed.add(p);
+        return changed;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ClusterPartitionTable))
+            return false;
+        final ClusterPartitionTable t = (ClusterPartitionTable) o;
+        return version == t.version && replicas == t.replicas && Objects.equals(partitions, t.partitions);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(version, replicas, partitions);
+    }
+}
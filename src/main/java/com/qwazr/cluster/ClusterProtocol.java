@@ -16,8 +16,8 @@
 package com.qwazr.cluster;
 
 import javax.ws.rs.InternalServerErrorException;
-import java.io.Externalizable;
 import java.lang.reflect.Constructor;
+import java.util.Collection;
 import java.util.Set;
 import java.util.UUID;
 
@@ -28,15 +28,21 @@ enum ClusterProtocol {
     forward('F', FullContent.class),
     reply('R', FullContent.class),
     alive('A', AddressContent.class),
-    leave('L', AddressContent.class);
+    leave('L', AddressContent.class),
+    notifies('M', NotifiesContent.class),
+    digest('D', DigestContent.class),
+    ack('K', DigestContent.class),
+    ping('P', SwimContent.class),
+    pingReq('Q', SwimContent.class),
+    pingAck('Y', SwimContent.class);
 
     final static String CHAR_HEADER = "QWAZR";
 
     final char cmd;
-    final Constructor<? extends Externalizable> messageClassConstructor;
+    final Constructor<? extends AddressContent> messageClassConstructor;
 
 
-    ClusterProtocol(final char cmd, final Class<? extends Externalizable> messageClass) {
+    ClusterProtocol(final char cmd, final Class<? extends AddressContent> messageClass) {
         this.cmd = cmd;
         try {
             this.messageClassConstructor = messageClass.getDeclaredConstructor();
@@ -54,22 +60,50 @@ enum ClusterProtocol {
     }
 
     static MessageContent newJoin(final String address, final UUID nodeLiveId, final Set<String> groups,
-                                  final Set<String> services) {
-        return new MessageContent(join, new FullContent(address, nodeLiveId, groups, services));
+                                  final Set<String> services, final int version) {
+        return new MessageContent(join, new FullContent(address, nodeLiveId, groups, services, version));
     }
 
     static MessageContent newNotify(final AddressContent address) {
         return new MessageContent(notify, address);
     }
 
+    static MessageContent newNotifies(final String address, final UUID nodeLiveId,
+                                      final Collection<AddressContent> nodes) {
+        return new MessageContent(notifies, new NotifiesContent(address, nodeLiveId, nodes));
+    }
+
     static MessageContent newForward(final String address, final UUID nodeLiveId, final Set<String> groups,
-                                     final Set<String> services) {
-        return new MessageContent(forward, new FullContent(address, nodeLiveId, groups, services));
+                                     final Set<String> services, final int version) {
+        return new MessageContent(forward, new FullContent(address, nodeLiveId, groups, services, version));
     }
 
     static MessageContent newReply(final String address, final UUID nodeLiveId, final Set<String> groups,
-                                   final Set<String> services) {
-        return new MessageContent(reply, new FullContent(address, nodeLiveId, groups, services));
+                                   final Set<String> services, final int version) {
+        return new MessageContent(reply, new FullContent(address, nodeLiveId, groups, services, version));
+    }
+
+    static MessageContent newDigest(final String address, final UUID nodeLiveId, final int version) {
+        return new MessageContent(digest, new DigestContent(address, nodeLiveId, version));
+    }
+
+    static MessageContent newAck(final String address, final UUID nodeLiveId, final int version) {
+        return new MessageContent(ack, new DigestContent(address, nodeLiveId, version));
+    }
+
+    static MessageContent newPing(final String address, final UUID nodeLiveId, final int sequence,
+                                  final Collection<SwimContent.Update> updates) {
+        return new MessageContent(ping, new SwimContent(address, nodeLiveId, sequence, null, updates));
+    }
+
+    static MessageContent newPingReq(final String address, final UUID nodeLiveId, final int sequence,
+                                     final String target, final Collection<SwimContent.Update> updates) {
+        return new MessageContent(pingReq, new SwimContent(address, nodeLiveId, sequence, target, updates));
+    }
+
+    static MessageContent newPingAck(final String address, final UUID nodeLiveId, final int sequence,
+                                     final Collection<SwimContent.Update> updates) {
+        return new MessageContent(pingAck, new SwimContent(address, nodeLiveId, sequence, null, updates));
     }
 
     static MessageContent newAlive(final String address, final UUID nodeLiveId) {
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@JsonInclude(Include.NON_NULL)
+public class ClusterProtocolStatusJson {
+
+	/**
+	 * The number of notify messages queued (one per recipient)
+	 */
+	@JsonProperty("notifies_queued")
+	public final long notifiesQueued;
+	/**
+	 * The number of notify entries actually sent, after the coalescing
+	 */
+	@JsonProperty("notifies_sent")
+	public final long notifiesSent;
+	/**
+	 * The number of datagrams carrying the notifies
+	 */
+	@JsonProperty("notify_datagrams")
+	public final long notifyDatagrams;
+	/**
+	 * The number of queued notifies per datagram
+	 */
+	@JsonProperty("coalescing_ratio")
+	public final Double coalescingRatio;
+	/**
+	 * The current interval between two heartbeats (shorter while the membership changes)
+	 */
+	@JsonProperty("heartbeat_period_ms")
+	public final Long heartbeatPeriodMs;
+	/**
+	 * The number of datagrams received by the transport
+	 */
+	@JsonProperty("packets_received")
+	public final Long packetsReceived;
+	/**
+	 * The number of received datagrams dropped because the receive queue was full
+	 */
+	@JsonProperty("packets_dropped")
+	public final Long packetsDropped;
+	/**
+	 * The number of outgoing messages dropped because the send queue was full
+	 */
+	@JsonProperty("sends_dropped")
+	public final Long sendsDropped;
+
+	@JsonCreator
+	private ClusterProtocolStatusJson(@JsonProperty("notifies_queued") long notifiesQueued,
+			@JsonProperty("notifies_sent") long notifiesSent, @JsonProperty("notify_datagrams") long notifyDatagrams,
+			@JsonProperty("coalescing_ratio") Double coalescingRatio,
+			@JsonProperty("heartbeat_period_ms") Long heartbeatPeriodMs,
+			@JsonProperty("packets_received") Long packetsReceived,
+			@JsonProperty("packets_dropped") Long packetsDropped, @JsonProperty("sends_dropped") Long sendsDropped) {
+		this.notifiesQueued = notifiesQueued;
+		this.notifiesSent = notifiesSent;
+		this.notifyDatagrams = notifyDatagrams;
+		this.coalescingRatio = coalescingRatio;
+		this.heartbeatPeriodMs = heartbeatPeriodMs;
+		this.packetsReceived = packetsReceived;
+		this.packetsDropped = packetsDropped;
+		this.sendsDropped = sendsDropped;
+	}
+
+	ClusterProtocolStatusJson(final long notifiesQueued, final long notifiesSent, final long notifyDatagrams) {
+		this(notifiesQueued, notifiesSent, notifyDatagrams,
+				notifyDatagrams == 0 ? null : (double) notifiesQueued / notifyDatagrams, null, null, null, null);
+	}
+
+	/**
+	 * @param status            the metrics of the protocol, or null
+	 * @param heartbeatPeriodMs the current heartbeat interval
+	 * @param packetsReceived   the number of received datagrams
+	 * @param packetsDropped    the number of dropped datagrams
+	 * @param sendsDropped      the number of dropped outgoing messages
+	 */
+	ClusterProtocolStatusJson(final ClusterProtocolStatusJson status, final long heartbeatPeriodMs,
+			final long packetsReceived, final long packetsDropped, final long sendsDropped) {
+		this(status == null ? 0 : status.notifiesQueued, status == null ? 0 : status.notifiesSent,
+				status == null ? 0 : status.notifyDatagrams, status == null ? null : status.coalescingRatio,
+				heartbeatPeriodMs, packetsReceived, packetsDropped, sendsDropped);
+	}
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.StringUtils;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local replica of the membership of a remote cluster node.
+ * <p>
+ * The replica is built from the status of the node, and refreshed in the background: a long-poll on the events wakes
+ * the refresh as soon as the membership changes, the status is read again at least once per refresh period
+ * (a conditional request with {@link ClusterSingleClient}). The lookups of the active, random and leader nodes are
+ * answered locally. If the replica is older than the staleness bound (the node cannot be reached), the lookups are
+ * forwarded to the node.
+ */
+public class ClusterReplicaClient implements ClusterServiceInterface, Closeable {
+
+    private static final Logger LOGGER = LoggerUtils.getLogger(ClusterReplicaClient.class);
+
+    private final ClusterServiceInterface source;
+    private final long refreshMs;
+    private final long maxStalenessMs;
+    private final double phiThreshold;
+
+    private final ExecutorService ownExecutorService;
+    private final Future<?> refreshFuture;
+
+    private volatile Replica replica;
+    private volatile boolean closed;
+
+    private ClusterReplicaClient(final Builder builder) {
+        this.source = builder.source;
+        this.refreshMs = builder.refreshMs;
+        this.maxStalenessMs = builder.maxStalenessMs;
+        this.phiThreshold = builder.phiThreshold;
+        refresh();
+        if (builder.executorService != null) {
+            ownExecutorService = null;
+            refreshFuture = builder.executorService.submit(this::refreshLoop);
+        } else {
+            ownExecutorService = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "ClusterReplicaClient");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refreshFuture = ownExecutorService.submit(this::refreshLoop);
+        }
+    }
+
+    /**
+     * Read the status of the node again
+     *
+     * @return true if the replica is up to date
+     */
+    private boolean refresh() {
+        try {
+            final ClusterStatusJson status = source.getStatus();
+            final long currentMs = System.currentTimeMillis();
+            final Replica current = replica;
+            // A conditional request returns the same status (a copy of it) if nothing changed
+            replica = current != null && isSame(current.status, status) ?
+                    new Replica(current, currentMs) :
+                    new Replica(status, phiThreshold, currentMs);
+            return true;
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Unable to refresh the cluster replica");
+            return false;
+        }
+    }
+
+    /**
+     * @return true if both statuses were built by the same node at the same time
+     */
+    private static boolean isSame(final ClusterStatusJson status1, final ClusterStatusJson status2) {
+        return status1 == status2 || (status1.uuid != null && status1.timestamp != null &&
+                status1.uuid.equals(status2.uuid) && status1.timestamp.equals(status2.timestamp));
+    }
+
+    /**
+     * @return the waiting time after consecutive failures: one more refresh period per failure, up to the staleness
+     * bound
+     */
+    private long backOffMs(final int failures) {
+        return Math.min(refreshMs * failures, Math.max(refreshMs, maxStalenessMs));
+    }
+
+    private void refreshLoop() {
+        Long since = null;
+        boolean useEvents = true;
+        int eventsFailures = 0;
+        int failures = 0;
+        while (!closed) {
+            try {
+                if (useEvents) {
+                    final ClusterEventsJson events = source.getEvents(since, (int) refreshMs);
+                    since = events == null ? null : events.version;
+                    eventsFailures = 0;
+                } else if (failures == 0)
+                    Thread.sleep(refreshMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (UnsupportedOperationException e) {
+                // The node does not know the events
+                useEvents = false;
+                since = null;
+                LOGGER.info(() -> "The cluster events are not available, the replica is refreshed every " +
+                        refreshMs + " ms");
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "The long-poll of the cluster events failed");
+                eventsFailures++;
+                since = null;
+            }
+            if (closed)
+                return;
+            final long waitMs;
+            if (refresh()) {
+                failures = 0;
+                if (eventsFailures == 0)
+                    continue;
+                // The node answers but the long-poll failed: it is retried later
+                waitMs = backOffMs(eventsFailures);
+            } else
+                waitMs = backOffMs(++failures);
+            try {
+                Thread.sleep(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the replica, or null if it is missing or older than the staleness bound
+     */
+    private Replica current() {
+        final Replica current = replica;
+        if (current == null || System.currentTimeMillis() - current.timeMs > maxStalenessMs)
+            return null;
+        return current;
+    }
+
+    /**
+     * @return the time of the last refresh, or null if the replica is not yet available
+     */
+    public Long getLastRefreshTimeMs() {
+        final Replica current = replica;
+        return current == null ? null : current.timeMs;
+    }
+
+    @Override
+    public ClusterStatusJson getStatus() {
+        final Replica current = current();
+        // The status of the replica is not shared with the caller
+        return current == null ? source.getStatus() : current.status.copy();
+    }
+
+    @Override
+    public ClusterEventsJson getEvents(final Long since, final Integer waitMs) {
+        return source.getEvents(since, waitMs);
+    }
+
+    @Override
+    public SortedSet<String> getNodes() {
+        final Replica current = current();
+        return current == null ? source.getNodes() : current.nodes;
+    }
+
+    @Override
+    public SortedMap<String, ClusterServiceStatusJson.StatusEnum> getServiceMap(final String group) {
+        final Replica current = current();
+        if (current == null)
+            return source.getServiceMap(group);
+        final TreeMap<String, ClusterServiceStatusJson.StatusEnum> servicesStatus = new TreeMap<>();
+        current.services.keySet().forEach(service -> {
+            final SortedSet<String> nodes = current.getActive(group, service);
+            if (!nodes.isEmpty())
+                servicesStatus.put(service, ClusterServiceStatusJson.StatusEnum.of(nodes));
+        });
+        return servicesStatus;
+    }
+
+    @Override
+    public ClusterServiceStatusJson getServiceStatus(final String serviceName, final String group) {
+        final Replica current = current();
+        return current == null ?
+                source.getServiceStatus(serviceName, group) :
+                ClusterServiceStatusJson.of(current.getActive(group, serviceName));
+    }
+
+    @Override
+    public SortedSet<String> getActiveNodesByService(final String serviceName, final String group) {
+        final Replica current = current();
+        return current == null ?
+                source.getActiveNodesByService(serviceName, group) :
+                current.getActive(group, serviceName);
+    }
+
+    @Override
+    public String getActiveNodeRandomByService(final String serviceName, final String group) {
+        final Replica current = current();
+        return current == null ?
+                source.getActiveNodeRandomByService(serviceName, group) :
+                current.get(group, serviceName).random(current.suspects);
+    }
+
+    @Override
+    public String getActiveNodeLeaderByService(final String serviceName, final String group) {
+        final Replica current = current();
+        return current == null ?
+                source.getActiveNodeLeaderByService(serviceName, group) :
+                current.get(group, serviceName).leader();
+    }
+
+    @Override
+    public String getActiveNodeByKeyByService(final String serviceName, final String key, final String group) {
+        final Replica current = current();
+        return current == null ?
+                source.getActiveNodeByKeyByService(serviceName, key, group) :
+                current.get(group, serviceName).ring().get(key, current.suspects);
+    }
+
+    @Override
+    public List<String> getActiveNodesByKeyByService(final String serviceName, final String key,
+                                                     final Integer replicas, final String group) {
+        final Replica current = current();
+        return current == null ?
+                source.getActiveNodesByKeyByService(serviceName, key, replicas, group) :
+                current.get(group, serviceName).ring().get(key, replicas == null ? 1 : replicas, current.suspects);
+    }
+
+    /**
+     * The partition table is computed with the settings of the remote node, the call is forwarded.
+     */
+    @Override
+    public ClusterPartitionTable getPartitions(final String serviceName, final String group) {
+        return source.getPartitions(serviceName, group);
+    }
+
+    /**
+     * Stop the background refresh
+     */
+    @Override
+    public void close() {
+        closed = true;
+        refreshFuture.cancel(true);
+        if (ownExecutorService != null)
+            ownExecutorService.shutdownNow();
+    }
+
+    /**
+     * The tables of the replica, built from one status
+     */
+    private static final class Replica {
+
+        private final ClusterStatusJson status;
+        private final long timeMs;
+        private final ClusterNodeSet nodes;
+        private final Map<String, ClusterNodeSet> groups;
+        private final Map<String, ClusterNodeSet> services;
+        private final Set<String> suspects;
+
+        /**
+         * The intersections of the groups and the services, computed when they are requested
+         */
+        private final ConcurrentHashMap<String, ConcurrentHashMap<String, ClusterNodeSet>> groupServices;
+
+        private Replica(final ClusterStatusJson status, final double phiThreshold, final long timeMs) {
+            this.status = status;
+            this.timeMs = timeMs;
+            final TreeMap<String, TreeSet<String>> groupsNodes = new TreeMap<>();
+            final TreeMap<String, TreeSet<String>> servicesNodes = new TreeMap<>();
+            final Set<String> suspectNodes = new HashSet<>();
+            final Map<String, ClusterNodeJson> activeNodes =
+                    status.activeNodes == null ? Collections.emptyMap() : status.activeNodes;
+            activeNodes.forEach((address, node) -> {
+                if (node.groups != null)
+                    node.groups.forEach(group -> groupsNodes.computeIfAbsent(group, g -> new TreeSet<>()).add(address));
+                if (node.services != null)
+                    node.services.forEach(
+                            service -> servicesNodes.computeIfAbsent(service, s -> new TreeSet<>()).add(address));
+                if (phiThreshold > 0 && node.phi != null && node.phi >= phiThreshold)
+                    suspectNodes.add(address);
+            });
+            this.nodes = ClusterNodeSet.of(new TreeSet<>(activeNodes.keySet()));
+            this.groups = freeze(groupsNodes);
+            this.services = freeze(servicesNodes);
+            this.suspects = suspectNodes.isEmpty() ? Collections.emptySet() : suspectNodes;
+            this.groupServices = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * The same tables, refreshed at the given time
+         */
+        private Replica(final Replica replica, final long timeMs) {
+            this.status = replica.status;
+            this.timeMs = timeMs;
+            this.nodes = replica.nodes;
+            this.groups = replica.groups;
+            this.services = replica.services;
+            this.suspects = replica.suspects;
+            this.groupServices = replica.groupServices;
+        }
+
+        private static Map<String, ClusterNodeSet> freeze(final TreeMap<String, TreeSet<String>> map) {
+            final TreeMap<String, ClusterNodeSet> frozen = new TreeMap<>();
+            map.forEach((key, nodes) -> frozen.put(key, ClusterNodeSet.of(nodes)));
+            return Collections.unmodifiableMap(frozen);
+        }
+
+        private static ClusterNodeSet get(final Map<String, ClusterNodeSet> map, final String key) {
+            final ClusterNodeSet nodes = map.get(key);
+            return nodes == null ? ClusterNodeSet.EMPTY : nodes;
+        }
+
+        /**
+         * Same rules as ClusterNodeMap.getGroupService
+         */
+        private ClusterNodeSet get(final String group, final String service) {
+            if (StringUtils.isEmpty(group))
+                return StringUtils.isEmpty(service) ? ClusterNodeSet.EMPTY : get(services, service);
+            if (StringUtils.isEmpty(service))
+                return get(groups, group);
+            return groupServices.computeIfAbsent(group, g -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(service, s -> intersect(get(groups, group), get(services, service)));
+        }
+
+        private SortedSet<String> getActive(final String group, final String service) {
+            return get(group, service).without(suspects);
+        }
+
+        private static ClusterNodeSet intersect(final ClusterNodeSet groupNodes, final ClusterNodeSet serviceNodes) {
+            final TreeSet<String> nodes = new TreeSet<>(groupNodes);
+            nodes.retainAll(serviceNodes);
+            return ClusterNodeSet.of(nodes);
+        }
+    }
+
+    public static Builder of(final ClusterServiceInterface source) {
+        return new Builder(source);
+    }
+
+    public static class Builder {
+
+        private final ClusterServiceInterface source;
+        private long refreshMs;
+        private long maxStalenessMs;
+        private double phiThreshold;
+        private ExecutorService executorService;
+
+        private Builder(final ClusterServiceInterface source) {
+            this.source = Objects.requireNonNull(source, "The source is null");
+            refreshMs = 1000;
+            maxStalenessMs = 10000;
+            phiThreshold = ClusterConfiguration.of().build().phiThreshold;
+        }
+
+        /**
+         * @param refreshMs the maximum interval between two reads of the status (also the long-poll waiting time)
+         * @return the builder
+         */
+        public Builder refreshMs(final long refreshMs) {
+            this.refreshMs = refreshMs;
+            return this;
+        }
+
+        /**
+         * @param maxStalenessMs the maximum age of the replica, the lookups are forwarded to the node beyond
+         * @return the builder
+         */
+        public Builder maxStalenessMs(final long maxStalenessMs) {
+            this.maxStalenessMs = maxStalenessMs;
+            return this;
+        }
+
+        /**
+         * @param phiThreshold the phi level above which a node is left out of the active and random lookups
+         * @return the builder
+         */
+        public Builder phiThreshold(final double phiThreshold) {
+            this.phiThreshold = phiThreshold;
+            return this;
+        }
+
+        /**
+         * @param executorService the executor of the background refresh (by default a dedicated daemon thread)
+         * @return the builder
+         */
+        public Builder executorService(final ExecutorService executorService) {
+            this.executorService = executorService;
+            return this;
+        }
+
+        /**
+         * Read the status a first time and start the background refresh
+         *
+         * @return a new replica client
+         */
+        public ClusterReplicaClient build() {
+            if (refreshMs <= 0)
+                throw new IllegalArgumentException("The refresh period must be positive: " + refreshMs);
+            if (maxStalenessMs < refreshMs)
+                throw new IllegalArgumentException(
+                        "The staleness bound must be greater than the refresh period: " + maxStalenessMs);
+            return new ClusterReplicaClient(this);
+        }
+    }
+}
@@ -46,7 +46,7 @@ public class ClusterServer implements BaseServer {
 
         final ApplicationBuilder webServices = ApplicationBuilder.of("/*")
                 .classes(RestApplication.JSON_CLASSES)
-                .singletons(new WelcomeShutdownService());
+                .singletons(new WelcomeShutdownService(), new ClusterStatusJsonWriter());
 
         final Set<String> services = new HashSet<>();
         services.add(ClusterServiceInterface.SERVICE_NAME);
@@ -29,4 +29,13 @@ public class ClusterServiceBuilder extends ServiceBuilderAbstract<ClusterService
 		return new ClusterSingleClient(remote);
 	}
 
+	/**
+	 * @param remote the node whose membership is replicated
+	 * @return a client which answers the lookups from a local replica refreshed in the background (see
+	 * ClusterReplicaClient.of to change the refresh period and the staleness bound)
+	 */
+	public ClusterReplicaClient replica(final RemoteService remote) {
+		return ClusterReplicaClient.of(remote(remote)).build();
+	}
+
 }
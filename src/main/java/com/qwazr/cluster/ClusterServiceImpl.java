@@ -19,10 +19,19 @@ import com.qwazr.server.AbstractServiceImpl;
 import com.qwazr.server.ServerException;
 import com.qwazr.utils.LoggerUtils;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.NotAcceptableException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 class ClusterServiceImpl extends AbstractServiceImpl implements ClusterServiceInterface {
@@ -31,12 +40,71 @@ class ClusterServiceImpl extends AbstractServiceImpl implements ClusterServiceIn
 
     final ClusterManager manager;
 
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Context
+    private HttpHeaders httpHeaders;
+
+    @Context
+    private HttpServletResponse httpResponse;
+
     public ClusterServiceImpl(final ClusterManager manager) {
         this.manager = manager;
     }
 
+    /**
+     * @return true if the method is called by a request to this service (not by a local call)
+     */
+    private boolean isRequest() {
+        if (resourceInfo == null || httpHeaders == null || httpResponse == null)
+            return false;
+        try {
+            final Class<?> resourceClass = resourceInfo.getResourceClass();
+            return resourceClass != null && ClusterServiceInterface.class.isAssignableFrom(resourceClass);
+        } catch (RuntimeException e) {
+            return false; // No request in the current context
+        }
+    }
+
+    /**
+     * If the client already has the current version (If-None-Match), the request is answered with 304,
+     * otherwise the entity tag is added to the response.
+     *
+     * @param tag  the entity tag of the answer
+     * @param weak true if the answer may slightly change with the same tag
+     */
+    private void checkNotModified(final String tag, final boolean weak) {
+        if (!isRequest())
+            return;
+        final EntityTag entityTag = new EntityTag(tag, weak);
+        if (matches(httpHeaders.getHeaderString(HttpHeaders.IF_NONE_MATCH), tag))
+            throw new WebApplicationException(Response.notModified(entityTag).build());
+        httpResponse.setHeader(HttpHeaders.ETAG, (weak ? "W/\"" : "\"") + tag + '"');
+    }
+
+    /**
+     * Weak comparison of the tags listed in an If-None-Match header
+     */
+    static boolean matches(final String ifNoneMatch, final String tag) {
+        if (ifNoneMatch == null || ifNoneMatch.isEmpty())
+            return false;
+        for (String value : ifNoneMatch.split(",")) {
+            value = value.trim();
+            if ("*".equals(value))
+                return true;
+            if (value.startsWith("W/"))
+                value = value.substring(2);
+            if (value.length() == tag.length() + 2 && value.charAt(0) == '"' && value.startsWith(tag, 1) &&
+                    value.charAt(value.length() - 1) == '"')
+                return true;
+        }
+        return false;
+    }
+
     @Override
     public ClusterStatusJson getStatus() {
+        checkNotModified(manager.getStatusTag(), true);
         try {
             return manager.getStatus();
         } catch (ServerException e) {
@@ -46,13 +114,44 @@ class ClusterServiceImpl extends AbstractServiceImpl implements ClusterServiceIn
 
     @Override
     public SortedSet<String> getNodes() {
+        checkNotModified(manager.getNodesTag(), false);
         try {
-            return new TreeSet<>(manager.getNodes());
+            return manager.getNodes();
         } catch (ServerException e) {
             throw e.warnIfCause(LOGGER).getJsonException(false);
         }
     }
 
+    private CompletableFuture<ClusterEventsJson> events(final Long since, final Integer waitMs) {
+        if (waitMs != null && waitMs < 0)
+            throw new NotAcceptableException("The waiting time is negative");
+        return manager.getEvents(since, waitMs);
+    }
+
+    @Override
+    public ClusterEventsJson getEvents(final Long since, final Integer waitMs) {
+        try {
+            return events(since, waitMs).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServerException.getJsonException(LOGGER, e);
+        } catch (Exception e) {
+            throw ServerException.getJsonException(LOGGER, e);
+        }
+    }
+
+    /**
+     * The request thread is released while waiting, the response is resumed by the next events or by the timeout.
+     */
+    @Override
+    public void getEvents(final Long since, final Integer waitMs, final AsyncResponse response) {
+        try {
+            events(since, waitMs).thenAccept(response::resume);
+        } catch (Exception e) {
+            response.resume(ServerException.getJsonException(LOGGER, e));
+        }
+    }
+
     @Override
     public SortedSet<String> getActiveNodesByService(final String serviceName, final String group) {
         try {
@@ -86,8 +185,34 @@ class ClusterServiceImpl extends AbstractServiceImpl implements ClusterServiceIn
         }
     }
 
+    @Override
+    public String getActiveNodeByKeyByService(final String serviceName, final String key, final String group) {
+        try {
+            if (serviceName == null || key == null)
+                throw new NotAcceptableException();
+            return manager.getNodeByKey(group, serviceName, key);
+        } catch (Exception e) {
+            throw ServerException.getTextException(LOGGER, e);
+        }
+    }
+
+    @Override
+    public List<String> getActiveNodesByKeyByService(final String serviceName, final String key,
+                                                     final Integer replicas, final String group) {
+        try {
+            if (serviceName == null || key == null)
+                throw new NotAcceptableException();
+            if (replicas != null && replicas <= 0)
+                throw new NotAcceptableException("The number of replicas must be positive");
+            return manager.getNodesByKey(group, serviceName, key, replicas == null ? 1 : replicas);
+        } catch (Exception e) {
+            throw ServerException.getJsonException(LOGGER, e);
+        }
+    }
+
     @Override
     public SortedMap<String, ClusterServiceStatusJson.StatusEnum> getServiceMap(final String group) {
+        checkNotModified(manager.getServicesTag(), false);
         try {
             return manager.getServicesStatus(group);
         } catch (ServerException e) {
@@ -97,6 +222,7 @@ class ClusterServiceImpl extends AbstractServiceImpl implements ClusterServiceIn
 
     @Override
     public ClusterServiceStatusJson getServiceStatus(final String serviceName, final String group) {
+        checkNotModified(manager.getServicesTag(), false);
         try {
             return manager.getServiceStatus(group, serviceName);
         } catch (ServerException e) {
@@ -104,6 +230,18 @@ class ClusterServiceImpl extends AbstractServiceImpl implements ClusterServiceIn
         }
     }
 
+    @Override
+    public ClusterPartitionTable getPartitions(final String serviceName, final String group) {
+        checkNotModified(manager.getNodesTag(), false);
+        try {
+            if (serviceName == null)
+                throw new NotAcceptableException();
+            return manager.getPartitionTable(group, serviceName);
+        } catch (Exception e) {
+            throw ServerException.getJsonException(LOGGER, e);
+        }
+    }
+
     @Override
     public int hashCode() {
         return manager.hashCode();
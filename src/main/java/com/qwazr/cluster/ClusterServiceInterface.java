@@ -23,7 +23,10 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.SortedSet;
 
@@ -38,6 +41,32 @@ public interface ClusterServiceInterface extends ServiceInterface {
 	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
 	ClusterStatusJson getStatus();
 
+	/**
+	 * Long-poll of the membership events. The call returns as soon as there are events following the given version,
+	 * or when the waiting time is elapsed.
+	 *
+	 * @param since  the version returned by the previous call, omitted by the first call
+	 * @param waitMs the maximum waiting time in milliseconds (default 30000, max 60000), zero returns immediately
+	 * @return the events and the version of the next call
+	 */
+	ClusterEventsJson getEvents(Long since, Integer waitMs);
+
+	/**
+	 * The web service of the long-poll of the membership events, see getEvents(Long, Integer). The server does not
+	 * hold a request thread while waiting.
+	 *
+	 * @param since    the version returned by the previous call, omitted by the first call
+	 * @param waitMs   the maximum waiting time in milliseconds (default 30000, max 60000), zero returns immediately
+	 * @param response resumed with the events and the version of the next call
+	 */
+	@GET
+	@Path("/events")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	default void getEvents(@QueryParam("since") Long since, @QueryParam("wait_ms") Integer waitMs,
+			@Suspended AsyncResponse response) {
+		response.resume(getEvents(since, waitMs));
+	}
+
 	@GET
 	@Path("/nodes")
 	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
@@ -71,4 +100,31 @@ public interface ClusterServiceInterface extends ServiceInterface {
 	@Produces(MediaType.TEXT_PLAIN)
 	String getActiveNodeLeaderByService(@PathParam("service_name") String service_name,
 			@QueryParam("group") String group);
+
+	/**
+	 * Consistent hash routing: the same key goes to the same node while the membership does not change.
+	 */
+	@GET
+	@Path("/services/{service_name}/active/key")
+	@Produces(MediaType.TEXT_PLAIN)
+	String getActiveNodeByKeyByService(@PathParam("service_name") String service_name, @QueryParam("key") String key,
+			@QueryParam("group") String group);
+
+	/**
+	 * The owner of the key followed by the next distinct nodes of the hash ring
+	 */
+	@GET
+	@Path("/services/{service_name}/active/key/replicas")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	List<String> getActiveNodesByKeyByService(@PathParam("service_name") String service_name,
+			@QueryParam("key") String key, @QueryParam("replicas") Integer replicas, @QueryParam("group") String group);
+
+	/**
+	 * The assignment of the partitions of the service to its nodes
+	 */
+	@GET
+	@Path("/services/{service_name}/partitions")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	ClusterPartitionTable getPartitions(@PathParam("service_name") String service_name,
+			@QueryParam("group") String group);
 }
\ No newline at end of file
@@ -19,13 +19,21 @@ import com.qwazr.server.RemoteService;
 import com.qwazr.server.ServerException;
 import com.qwazr.server.client.JsonClient;
 
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 public class ClusterSingleClient extends JsonClient implements ClusterServiceInterface {
 
@@ -33,6 +41,7 @@ public class ClusterSingleClient extends JsonClient implements ClusterServiceInt
     final WebTarget clusterTarget;
     final WebTarget nodesTarget;
     final WebTarget servicesTarget;
+    final WebTarget eventsTarget;
 
     ClusterSingleClient(final RemoteService remote) {
         super(remote);
@@ -41,6 +50,7 @@ public class ClusterSingleClient extends JsonClient implements ClusterServiceInt
         clusterTarget = rootTarget.path("cluster");
         nodesTarget = clusterTarget.path("nodes");
         servicesTarget = clusterTarget.path("services");
+        eventsTarget = clusterTarget.path("events");
     }
 
     @Override
@@ -61,9 +71,98 @@ public class ClusterSingleClient extends JsonClient implements ClusterServiceInt
         return false;
     }
 
+    /**
+     * The maximum number of cached answers
+     */
+    final static int MAX_CACHED_ANSWERS = 256;
+
+    private final ConcurrentHashMap<String, CachedAnswer> cachedAnswers = new ConcurrentHashMap<>();
+
+    private final static class CachedAnswer {
+
+        private final String entityTag;
+        private final Object entity;
+
+        private CachedAnswer(final String entityTag, final Object entity) {
+            this.entityTag = entityTag;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * Conditional GET: the last answer of the target is kept with its entity tag, and returned again if the server
+     * answers that it did not change (304).
+     *
+     * @param target the URL of the request
+     * @param reader reads the entity of a new answer
+     * @param <T>    the type of the entity
+     * @return the new or the cached entity
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T conditionalGet(final WebTarget target, final Function<Response, T> reader) {
+        final String key = target.getUri().toString();
+        final CachedAnswer cached = cachedAnswers.get(key);
+        Invocation.Builder builder = target.request(MediaType.APPLICATION_JSON);
+        if (cached != null)
+            builder = builder.header(HttpHeaders.IF_NONE_MATCH, cached.entityTag);
+        final Response response = builder.get();
+        if (cached != null && response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+            response.close();
+            return (T) cached.entity;
+        }
+        if (response.getStatus() != Response.Status.OK.getStatusCode())
+            throw new WebApplicationException(response);
+        try {
+            final T entity = reader.apply(response);
+            final String entityTag = response.getHeaderString(HttpHeaders.ETAG);
+            if (entityTag == null)
+                cachedAnswers.remove(key);
+            else {
+                if (cached == null && cachedAnswers.size() >= MAX_CACHED_ANSWERS)
+                    cachedAnswers.clear();
+                cachedAnswers.put(key, new CachedAnswer(entityTag, entity));
+            }
+            return entity;
+        }
+        finally {
+            response.close();
+        }
+    }
+
     @Override
     public ClusterStatusJson getStatus() {
-        return clusterTarget.request().get(ClusterStatusJson.class);
+        try {
+            final ClusterStatusJson status =
+                    conditionalGet(clusterTarget, response -> response.readEntity(ClusterStatusJson.class));
+            // The cached answer is not shared with the caller
+            return status.copy();
+        }
+        catch (WebApplicationException e) {
+            throw ServerException.from(e);
+        }
+    }
+
+    /**
+     * The read timeout of the client must be longer than the waiting time.
+     *
+     * @throws UnsupportedOperationException if the node is a previous version which does not provide the events
+     */
+    @Override
+    public ClusterEventsJson getEvents(final Long since, final Integer waitMs) {
+        try {
+            WebTarget target = eventsTarget;
+            if (since != null)
+                target = target.queryParam("since", since);
+            if (waitMs != null)
+                target = target.queryParam("wait_ms", waitMs);
+            return target.request(MediaType.APPLICATION_JSON).get(ClusterEventsJson.class);
+        }
+        catch (NotFoundException e) {
+            throw new UnsupportedOperationException("The events are not available on " + serverAddress, e);
+        }
+        catch (WebApplicationException e) {
+            throw ServerException.from(e);
+        }
     }
 
     private final static GenericType<TreeSet<String>> treeSetStringType = new GenericType<>() {
@@ -72,7 +171,10 @@ public class ClusterSingleClient extends JsonClient implements ClusterServiceInt
     @Override
     public TreeSet<String> getNodes() {
         try {
-            return nodesTarget.request(MediaType.APPLICATION_JSON).get(treeSetStringType);
+            final TreeSet<String> nodes =
+                    conditionalGet(nodesTarget, response -> response.readEntity(treeSetStringType));
+            // The cached answer is not shared with the caller
+            return new TreeSet<>(nodes);
         }
         catch (WebApplicationException e) {
             throw ServerException.from(e);
@@ -86,8 +188,10 @@ public class ClusterSingleClient extends JsonClient implements ClusterServiceInt
     @Override
     public TreeMap<String, ClusterServiceStatusJson.StatusEnum> getServiceMap(String group) {
         try {
-            return (group == null ? servicesTarget : servicesTarget.queryParam("group", group)).request(
-                    MediaType.APPLICATION_JSON).get(mapStringStatusEnumType);
+            final TreeMap<String, ClusterServiceStatusJson.StatusEnum> services =
+                    conditionalGet(group == null ? servicesTarget : servicesTarget.queryParam("group", group),
+                            response -> response.readEntity(mapStringStatusEnumType));
+            return new TreeMap<>(services);
         }
         catch (WebApplicationException e) {
             throw ServerException.from(e);
@@ -98,8 +202,8 @@ public class ClusterSingleClient extends JsonClient implements ClusterServiceInt
     public ClusterServiceStatusJson getServiceStatus(final String serviceName, final String group) {
         try {
             final WebTarget target = servicesTarget.path(serviceName);
-            return (group == null ? target : target.queryParam("group", group)).request(MediaType.APPLICATION_JSON)
-                    .get(ClusterServiceStatusJson.class);
+            return conditionalGet(group == null ? target : target.queryParam("group", group),
+                    response -> response.readEntity(ClusterServiceStatusJson.class));
         }
         catch (WebApplicationException e) {
             throw ServerException.from(e);
@@ -142,4 +246,47 @@ public class ClusterSingleClient extends JsonClient implements ClusterServiceInt
         }
     }
 
+    @Override
+    public String getActiveNodeByKeyByService(final String serviceName, final String key, final String group) {
+        try {
+            final WebTarget target = servicesTarget.path(serviceName).path("active").path("key").queryParam("key", key);
+            return (group == null ? target : target.queryParam("group", group)).request(MediaType.TEXT_PLAIN)
+                    .get(String.class);
+        }
+        catch (WebApplicationException e) {
+            throw ServerException.from(e);
+        }
+    }
+
+    private final static GenericType<ArrayList<String>> listStringType = new GenericType<>() {
+    };
+
+    @Override
+    public List<String> getActiveNodesByKeyByService(final String serviceName, final String key,
+                                                     final Integer replicas, final String group) {
+        try {
+            WebTarget target = servicesTarget.path(serviceName).path("active").path("key").path("replicas")
+                    .queryParam("key", key);
+            if (replicas != null)
+                target = target.queryParam("replicas", replicas);
+            return (group == null ? target : target.queryParam("group", group)).request(MediaType.APPLICATION_JSON)
+                    .get(listStringType);
+        }
+        catch (WebApplicationException e) {
+            throw ServerException.from(e);
+        }
+    }
+
+    @Override
+    public ClusterPartitionTable getPartitions(final String serviceName, final String group) {
+        try {
+            final WebTarget target = servicesTarget.path(serviceName).path("partitions");
+            return conditionalGet(group == null ? target : target.queryParam("group", group),
+                    response -> response.readEntity(ClusterPartitionTable.class));
+        }
+        catch (WebApplicationException e) {
+            throw ServerException.from(e);
+        }
+    }
+
 }
@@ -19,9 +19,13 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qwazr.server.ServerException;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -40,6 +44,16 @@ public class ClusterStatusJson {
 	@JsonProperty("active_nodes")
 	public final TreeMap<String, ClusterNodeJson> activeNodes;
 	public final TreeSet<String> masters;
+	public final ClusterProtocolStatusJson protocol;
+	/**
+	 * The time of the status, the time-to-live of the nodes are relative to it
+	 */
+	public final Date timestamp;
+
+	/**
+	 * The JSON body, serialized once and shared by all the requests which get this status
+	 */
+	private volatile byte[] body;
 
 	@JsonCreator
 	private ClusterStatusJson(@JsonProperty("me") final String me, @JsonProperty("uuid") final String uuid,
@@ -48,7 +62,9 @@ public class ClusterStatusJson {
 			@JsonProperty("groups") final TreeMap<String, TreeSet<String>> groups,
 			@JsonProperty("services") final TreeMap<String, ClusterServiceStatusJson.StatusEnum> services,
 			@JsonProperty("masters") final TreeSet<String> masters,
-			@JsonProperty("last_keep_alive_execution") final Date lastKeepAliveExecution) throws ServerException {
+			@JsonProperty("last_keep_alive_execution") final Date lastKeepAliveExecution,
+			@JsonProperty("protocol") final ClusterProtocolStatusJson protocol,
+			@JsonProperty("timestamp") final Date timestamp) throws ServerException {
 		this.me = me;
 		this.uuid = uuid;
 		this.webapp = webapp;
@@ -57,20 +73,63 @@ public class ClusterStatusJson {
 		this.masters = masters;
 		this.lastKeepAliveExecution = lastKeepAliveExecution;
 		this.activeNodes = activeNodes;
+		this.protocol = protocol;
+		this.timestamp = timestamp;
 	}
 
 	ClusterStatusJson(final String me, final UUID uuid, final String webapp,
-			final TreeMap<String, ClusterNodeJson> nodesMap, final TreeMap<String, TreeSet<String>> groups,
-			final TreeMap<String, TreeSet<String>> services, final Set<String> masters,
-			final Date lastKeepAliveExecution) throws ServerException {
-		this(me, uuid.toString(), webapp, nodesMap, groups, toServices(services),
-				masters == null ? null : new TreeSet<>(masters), lastKeepAliveExecution);
+			final TreeMap<String, ClusterNodeJson> nodesMap, final Map<String, ? extends Collection<String>> groups,
+			final Map<String, ? extends Collection<String>> services, final Set<String> masters,
+			final Date lastKeepAliveExecution, final ClusterProtocolStatusJson protocol, final Date timestamp)
+			throws ServerException {
+		this(me, uuid.toString(), webapp, nodesMap, toGroups(groups), toServices(services),
+				masters == null ? null : new TreeSet<>(masters), lastKeepAliveExecution, protocol, timestamp);
+	}
+
+	/**
+	 * @param objectMapper the mapper used if the status is not serialized yet
+	 * @return the JSON body of the status
+	 * @throws JsonProcessingException if the serialization failed
+	 */
+	final byte[] toJsonBytes(final ObjectMapper objectMapper) throws JsonProcessingException {
+		byte[] bytes = body;
+		if (bytes == null) // Concurrent serializations are harmless, they produce the same bytes
+			body = bytes = objectMapper.writeValueAsBytes(this);
+		return bytes;
+	}
+
+	/**
+	 * @return a deep copy, which can be handed to a caller without sharing the maps, sets and dates of this status
+	 */
+	final ClusterStatusJson copy() {
+		final TreeMap<String, ClusterNodeJson> activeNodesCopy;
+		if (activeNodes == null)
+			activeNodesCopy = null;
+		else {
+			activeNodesCopy = new TreeMap<>();
+			activeNodes.forEach((address, node) -> activeNodesCopy.put(address, node == null ? null : node.copy()));
+		}
+		return new ClusterStatusJson(me, uuid, webapp, activeNodesCopy, toGroups(groups),
+				services == null ? null : new TreeMap<>(services), masters == null ? null : new TreeSet<>(masters),
+				copy(lastKeepAliveExecution), protocol, copy(timestamp));
+	}
+
+	private static Date copy(final Date date) {
+		return date == null ? null : new Date(date.getTime());
 	}
 
 	final static TreeMap<String, ClusterServiceStatusJson.StatusEnum> EMPTY = new TreeMap<>();
 
+	private static TreeMap<String, TreeSet<String>> toGroups(final Map<String, ? extends Collection<String>> groups) {
+		if (groups == null)
+			return null;
+		final TreeMap<String, TreeSet<String>> groupsTree = new TreeMap<>();
+		groups.forEach((group, nodesSet) -> groupsTree.put(group, new TreeSet<>(nodesSet)));
+		return groupsTree;
+	}
+
 	private static TreeMap<String, ClusterServiceStatusJson.StatusEnum> toServices(
-			final TreeMap<String, TreeSet<String>> services) {
+			final Map<String, ? extends Collection<String>> services) {
 		if (services == null || services.isEmpty())
 			return EMPTY;
 		final TreeMap<String, ClusterServiceStatusJson.StatusEnum> servicesTree = new TreeMap<>();
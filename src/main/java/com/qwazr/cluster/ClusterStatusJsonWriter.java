@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.Providers;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Writes the cached JSON body of the status: the requests which share the same status (see
+ * ClusterManager.getStatus) are answered with the same bytes, the status is serialized only once.
+ * <p>
+ * Without this provider, the status is serialized by the default JSON provider at each request.
+ */
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+public class ClusterStatusJsonWriter implements MessageBodyWriter<ClusterStatusJson> {
+
+    private final static ObjectMapper DEFAULT_MAPPER = new ObjectMapper();
+
+    @Context
+    private Providers providers;
+
+    @Override
+    public boolean isWriteable(final Class<?> type, final Type genericType, final Annotation[] annotations,
+                               final MediaType mediaType) {
+        return ClusterStatusJson.class.isAssignableFrom(type) &&
+                (mediaType == null || MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType));
+    }
+
+    /**
+     * @return the mapper of the application (the one used by the default JSON provider), or a default mapper
+     */
+    private ObjectMapper getObjectMapper(final MediaType mediaType) {
+        if (providers == null)
+            return DEFAULT_MAPPER;
+        final ContextResolver<ObjectMapper> resolver = providers.getContextResolver(ObjectMapper.class, mediaType);
+        final ObjectMapper objectMapper = resolver == null ? null : resolver.getContext(ClusterStatusJson.class);
+        return objectMapper == null ? DEFAULT_MAPPER : objectMapper;
+    }
+
+    @Override
+    public void writeTo(final ClusterStatusJson status, final Class<?> type, final Type genericType,
+                        final Annotation[] annotations, final MediaType mediaType,
+                        final MultivaluedMap<String, Object> httpHeaders, final OutputStream entityStream)
+            throws IOException {
+        entityStream.write(status.toJsonBytes(getObjectMapper(mediaType)));
+    }
+}
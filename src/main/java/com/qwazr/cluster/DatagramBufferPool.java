@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of direct buffers large enough for any datagram.
+ * When the pool is empty a new buffer is allocated, when it is full the released buffer is dropped.
+ */
+class DatagramBufferPool {
+
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    DatagramBufferPool(final int maxPooledBuffers) {
+        buffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+    }
+
+    /**
+     * @return a cleared direct buffer
+     */
+    final ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(MessageCodec.MAX_PACKET_SIZE);
+        buffer.clear();
+        return buffer;
+    }
+
+    final void release(final ByteBuffer buffer) {
+        if (buffer != null)
+            buffers.offer(buffer);
+    }
+
+    final int size() {
+        return buffers.size();
+    }
+}
@@ -15,12 +15,14 @@
  */
 package com.qwazr.cluster;
 
+import com.qwazr.server.GenericServerBuilder;
 import com.qwazr.utils.LoggerUtils;
-import com.qwazr.utils.SerializationUtils;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.net.SocketAddress;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,8 +30,15 @@ class DatagramListener extends ProtocolListener {
 
     private static final Logger LOGGER = LoggerUtils.getLogger(DatagramListener.class);
 
-    DatagramListener(final ClusterManager manager) {
+    private final SocketAddress bindAddress;
+    private final NotifyQueue notifyQueue;
+
+    DatagramListener(final ClusterManager manager, final ExecutorService executorService,
+                     final SocketAddress bindAddress) {
         super(manager);
+        this.bindAddress = bindAddress;
+        this.notifyQueue = new NotifyQueue(manager, transport, executorService,
+                manager.configuration.notifyFlushMs);
         LOGGER.info(() -> "Start Datagram listener " + manager.me.httpAddressKey);
     }
 
@@ -37,27 +46,49 @@ class DatagramListener extends ProtocolListener {
         // Registering the node
         final ClusterNode node = registerNode(message);
         // Send immediately a reply
-        ClusterProtocol.newReply(manager.me.httpAddressKey, manager.nodeLiveId, manager.myGroups, manager.myServices)
-                .send(node.address.address);
+        transport.post(newReply(), node.address.address);
         // Notify the others
-        ClusterProtocol.newNotify(message).send(manager.clusterNodeMap.getExternalNodeAddresses());
+        notifyQueue.offer(message, manager.clusterNodeMap.getExternalNodeAddresses());
     }
 
+    /**
+     * Introduce myself to the notified node. Only the digest is sent, the notified node will ask for the full content
+     * if it does not know my current membership version.
+     */
     final void acceptNotify(final AddressContent message) throws IOException {
         final ClusterNode clusterNode = registerNode(message);
-        ClusterProtocol.newForward(manager.me.httpAddressKey, manager.nodeLiveId, manager.myGroups, manager.myServices)
-                .send(clusterNode.address.address);
+        transport.post(MessageCodec.LEGACY ? newForward() : newDigest(), clusterNode.address.address);
+    }
+
+    final void acceptDigest(final DigestContent message) throws IOException {
+        final ClusterNode node = refreshNode(message);
+        if (node != null)
+            transport.post(newAck(message), node.address.address);
+        else // Unknown version: my full content triggers a full reply
+            transport.post(newForward(), registerNode(message).address.address);
+    }
+
+    final void acceptAck(final DigestContent message) throws IOException {
+        final ClusterNode node = refreshNode(message);
+        if (node != null)
+            measureRtt(node, message.getProbeTime());
+        else
+            transport.post(newForward(), registerNode(message).address.address);
+    }
+
+    final void acceptNotifies(final NotifiesContent message) throws IOException {
+        for (final AddressContent node : message.nodes)
+            acceptNotify(node);
     }
 
     final void acceptAlive(final AddressContent message) throws IOException {
-        ClusterProtocol.newNotify(message).send(manager.clusterNodeMap.getFullNodeAddresses());
+        notifyQueue.offer(message, manager.clusterNodeMap.getFullNodeAddresses());
     }
 
     final void acceptForward(final FullContent message) throws IOException {
         final ClusterNode node = registerNode(message);
         // Send back myself
-        ClusterProtocol.newReply(manager.me.httpAddressKey, manager.nodeLiveId, manager.myGroups, manager.myServices)
-                .send(node.address.address);
+        transport.post(newReply(), node.address.address);
     }
 
     final void acceptReply(final FullContent message) {
@@ -65,42 +96,62 @@ class DatagramListener extends ProtocolListener {
     }
 
     @Override
-    final public void acceptPacket(final DatagramPacket datagramPacket) {
-        try {
-            final MessageContent message = SerializationUtils.fromDefaultCompressedBytes(datagramPacket.getData());
-            LOGGER.finest(() -> manager.me.httpAddressKey + " DATAGRAMPACKET FROM: " + datagramPacket.getAddress() + " " +
-                    message.getCommand() + " " + message.getContent());
-            switch (message.getCommand()) {
-                case join:
-                    acceptJoin(message.getContent());
-                    break;
-                case notify:
-                    acceptNotify(message.getContent());
-                    break;
-                case forward:
-                    acceptForward(message.getContent());
-                    break;
-                case reply:
-                    acceptReply(message.getContent());
-                    break;
-                case alive:
-                    acceptAlive(message.getContent());
-                    break;
-                case leave:
-                    manager.clusterNodeMap.unregister(message.getContent());
-                    break;
+    protected void listen(final GenericServerBuilder builder, final ExecutorService executorService)
+            throws IOException {
+        transport.listen(bindAddress, executorService, new DatagramTransport.MessageHandler() {
+
+            @Override
+            public void accept(final MessageContent message, final SocketAddress sender) throws IOException {
+                acceptMessage(message, sender);
             }
-        }
-        catch (IOException | ClassNotFoundException e) {
-            LOGGER.log(Level.SEVERE, e, () -> "Unable to de-serialize the message");
+
+            @Override
+            public void prepare(final List<MessageContent> messages) {
+                registerAll(messages);
+            }
+        });
+    }
+
+    @Override
+    protected void acceptMessage(final MessageContent message, final SocketAddress sender)
+            throws IOException {
+        LOGGER.finest(() -> manager.me.httpAddressKey + " DATAGRAMPACKET FROM: " + sender + " " +
+                message.getCommand() + " " + message.getContent());
+        switch (message.getCommand()) {
+            case join:
+                acceptJoin(message.getContent());
+                break;
+            case notify:
+                acceptNotify(message.getContent());
+                break;
+            case notifies:
+                acceptNotifies(message.getContent());
+                break;
+            case digest:
+                acceptDigest(message.getContent());
+                break;
+            case ack:
+                acceptAck(message.getContent());
+                break;
+            case forward:
+                acceptForward(message.getContent());
+                break;
+            case reply:
+                acceptReply(message.getContent());
+                break;
+            case alive:
+                acceptAlive(message.getContent());
+                break;
+            case leave:
+                manager.clusterNodeMap.unregister(message.getContent());
+                break;
         }
     }
 
     protected synchronized void joinCluster(final Collection<String> services) {
         super.joinCluster(services);
         try {
-            ClusterProtocol.newJoin(manager.me.httpAddressKey, manager.nodeLiveId, manager.myGroups, manager.myServices)
-                    .send(manager.clusterNodeMap.getFullNodeAddresses());
+            transport.send(newJoin(), manager.clusterNodeMap.getFullNodeAddresses());
         }
         catch (IOException e) {
             LOGGER.log(Level.SEVERE, e, e::getMessage);
@@ -108,20 +159,35 @@ class DatagramListener extends ProtocolListener {
     }
 
     protected synchronized void leaveCluster() {
+        notifyQueue.flush();
         try {
-            ClusterProtocol.newLeave(manager.me.httpAddressKey, manager.nodeLiveId)
-                    .send(manager.clusterNodeMap.getExternalNodeAddresses());
+            transport.send(ClusterProtocol.newLeave(manager.me.httpAddressKey, manager.nodeLiveId),
+                    manager.clusterNodeMap.getExternalNodeAddresses());
         }
         catch (IOException e) {
             LOGGER.log(Level.SEVERE, e, e::getMessage);
         }
     }
 
+    @Override
+    protected ClusterProtocolStatusJson getStatus() {
+        return notifyQueue.getStatus();
+    }
+
+    /**
+     * Announce myself to the other nodes
+     *
+     * @throws IOException if the message cannot be sent
+     */
+    protected void keepAlive() throws IOException {
+        transport.send(ClusterProtocol.newAlive(manager.me.httpAddressKey, manager.nodeLiveId),
+                manager.clusterNodeMap.getExternalNodeAddresses());
+    }
+
     @Override
     protected void runner() {
         try {
-            ClusterProtocol.newAlive(manager.me.httpAddressKey, manager.nodeLiveId)
-                    .send(manager.clusterNodeMap.getExternalNodeAddresses());
+            keepAlive();
         }
         catch (IOException e) {
             LOGGER.log(Level.SEVERE, e, e::getMessage);
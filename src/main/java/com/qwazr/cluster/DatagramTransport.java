@@ -0,0 +1,392 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.SerializationUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The UDP transport of the protocol. One channel is used for all the outgoing messages (and for the incoming
+ * messages once bound), the messages are encoded once in a pooled direct buffer which is sent to every recipient.
+ * The channel is only opened by the first listen or send, a transport which is never used holds no socket.
+ * <p>
+ * Once bound, the incoming messages go through a staged pipeline: the receiving loop only copies the datagrams to
+ * a bounded queue, a worker decodes and applies them, and the messages posted by the handlers are sent by another
+ * worker through a second bounded queue. The receiving loop never waits for the handlers or for the network sends,
+ * a datagram which does not fit in a full queue is dropped and counted.
+ */
+class DatagramTransport implements Closeable {
+
+    private static final Logger LOGGER = LoggerUtils.getLogger(DatagramTransport.class);
+
+    private final static int MAX_POOLED_BUFFERS = 16;
+
+    final static int DEFAULT_QUEUE_SIZE = 1024;
+
+    /**
+     * The interval at which the idle workers check if the channel is still open
+     */
+    private final static long POLL_TIMEOUT_MS = 250;
+
+    /**
+     * The maximum number of received datagrams applied together
+     */
+    final static int MAX_BATCH_SIZE = 256;
+
+    private volatile DatagramChannel channel;
+    private boolean closed;
+    private final DatagramBufferPool bufferPool;
+
+    private final BlockingQueue<Inbound> inboundQueue;
+    private final BlockingQueue<Outbound> outboundQueue;
+    private volatile boolean pipelineStarted;
+
+    private final LongAdder receivedCount = new LongAdder();
+    private final LongAdder receiveDropCount = new LongAdder();
+    private final LongAdder sendDropCount = new LongAdder();
+
+    DatagramTransport() {
+        this(DEFAULT_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param receiveQueueSize the number of received datagrams waiting to be decoded and applied
+     * @param sendQueueSize    the number of posted messages waiting to be sent
+     */
+    DatagramTransport(final int receiveQueueSize, final int sendQueueSize) {
+        bufferPool = new DatagramBufferPool(MAX_POOLED_BUFFERS);
+        inboundQueue = new ArrayBlockingQueue<>(receiveQueueSize);
+        outboundQueue = new ArrayBlockingQueue<>(sendQueueSize);
+    }
+
+    private static final class Inbound {
+
+        private final ByteBuffer datagram;
+        private final SocketAddress sender;
+
+        private Inbound(final ByteBuffer datagram, final SocketAddress sender) {
+            this.datagram = datagram;
+            this.sender = sender;
+        }
+    }
+
+    private static final class Outbound {
+
+        private final MessageContent message;
+        private final Collection<? extends SocketAddress> recipients;
+
+        private Outbound(final MessageContent message, final Collection<? extends SocketAddress> recipients) {
+            this.message = message;
+            this.recipients = recipients;
+        }
+    }
+
+    @FunctionalInterface
+    interface MessageHandler {
+
+        void accept(MessageContent message, SocketAddress sender) throws IOException;
+
+        /**
+         * Called with the messages drained together from the receive queue, before they are accepted one by one
+         *
+         * @param messages the decoded messages, in the order of arrival
+         */
+        default void prepare(final List<MessageContent> messages) {
+        }
+    }
+
+    /**
+     * Bind the channel and start the receiving loop and the workers of the pipeline.
+     * Must be called before the first message is sent.
+     *
+     * @param bindAddress     the local address to listen to
+     * @param executorService the executor running the receiving loop and the workers
+     * @param handler         the handler called for every received message
+     * @throws IOException if the channel cannot be bound
+     */
+    final void listen(final SocketAddress bindAddress, final ExecutorService executorService,
+                      final MessageHandler handler) throws IOException {
+        final DatagramChannel channel = openChannel();
+        if (channel == null)
+            throw new ClosedChannelException();
+        channel.bind(bindAddress);
+        LOGGER.info(() -> "Datagram channel bound to " + bindAddress);
+        executorService.submit(this::receive);
+        executorService.submit(() -> apply(handler));
+        executorService.submit(this::sendPosted);
+        pipelineStarted = true;
+    }
+
+    /**
+     * The receiving loop: each datagram is received in the same pooled buffer and copied to a heap buffer of its own
+     * size. A queued datagram only holds its own bytes, not a whole direct buffer large enough for any datagram.
+     */
+    private void receive() {
+        final ByteBuffer buffer = bufferPool.acquire();
+        try {
+            while (channel.isOpen()) {
+                buffer.clear();
+                final SocketAddress sender;
+                try {
+                    sender = channel.receive(buffer);
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, e, e::getMessage);
+                    continue;
+                }
+                buffer.flip();
+                receivedCount.increment();
+                final ByteBuffer datagram = ByteBuffer.allocate(buffer.remaining());
+                datagram.put(buffer).flip();
+                if (!inboundQueue.offer(new Inbound(datagram, sender)))
+                    receiveDropCount.increment();
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * The worker which decodes and applies the received messages, in the order of arrival. The datagrams waiting
+     * in the queue are drained together, so that the handler can prepare the whole batch.
+     */
+    private void apply(final MessageHandler handler) {
+        final List<Inbound> inbounds = new ArrayList<>(MAX_BATCH_SIZE);
+        final List<MessageContent> messages = new ArrayList<>(MAX_BATCH_SIZE);
+        final List<SocketAddress> senders = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (channel.isOpen()) {
+                final Inbound first = inboundQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                inbounds.add(first);
+                inboundQueue.drainTo(inbounds, MAX_BATCH_SIZE - 1);
+                for (final Inbound inbound : inbounds) {
+                    try {
+                        messages.add(MessageContent.of(inbound.datagram));
+                        senders.add(inbound.sender);
+                    } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, e, () -> "Unable to decode the message from " + inbound.sender);
+                    }
+                }
+                apply(handler, messages, senders);
+                inbounds.clear();
+                messages.clear();
+                senders.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void apply(final MessageHandler handler, final List<MessageContent> messages,
+                              final List<SocketAddress> senders) {
+        if (messages.size() > 1) {
+            try {
+                handler.prepare(messages);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, e, () -> "Unable to prepare " + messages.size() + " messages");
+            }
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            final SocketAddress sender = senders.get(i);
+            try {
+                handler.accept(messages.get(i), sender);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, e, () -> "Unable to handle the message from " + sender);
+            }
+        }
+    }
+
+    /**
+     * The worker which sends the posted messages
+     */
+    private void sendPosted() {
+        try {
+            while (channel.isOpen()) {
+                final Outbound outbound = outboundQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (outbound == null)
+                    continue;
+                try {
+                    send(outbound.message, outbound.recipients);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, e, () -> "Unable to send the " + outbound.message.getCommand());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a message for the sending worker. Used by the message handlers, so that the decoding and applying stage
+     * does not wait for the network. If the transport is not listening, the message is sent immediately.
+     *
+     * @param message    the message to send
+     * @param recipients the recipients
+     * @throws IOException if the message is sent immediately and cannot be encoded
+     */
+    final void post(final MessageContent message, final Collection<? extends SocketAddress> recipients)
+            throws IOException {
+        if (recipients == null || recipients.isEmpty())
+            return;
+        if (!pipelineStarted) {
+            send(message, recipients);
+            return;
+        }
+        if (!outboundQueue.offer(new Outbound(message, recipients)))
+            sendDropCount.increment();
+    }
+
+    /**
+     * Queue a message for one recipient, see post(MessageContent, Collection)
+     *
+     * @param message   the message to send
+     * @param recipient the recipient
+     * @throws IOException if the message is sent immediately and cannot be encoded
+     */
+    final void post(final MessageContent message, final SocketAddress recipient) throws IOException {
+        if (recipient != null)
+            post(message, Collections.singletonList(recipient));
+    }
+
+    /**
+     * @return the number of received datagrams
+     */
+    final long getReceivedCount() {
+        return receivedCount.sum();
+    }
+
+    /**
+     * @return the number of received datagrams dropped because the decoding and applying stage was late
+     */
+    final long getReceiveDropCount() {
+        return receiveDropCount.sum();
+    }
+
+    /**
+     * @return the number of posted messages dropped because the sending stage was late
+     */
+    final long getSendDropCount() {
+        return sendDropCount.sum();
+    }
+
+    private static void encode(final MessageContent message, final ByteBuffer buffer) throws IOException {
+        if (MessageCodec.LEGACY) {
+            final byte[] bytes = SerializationUtils.toDefaultCompressedBytes(message);
+            if (bytes.length > buffer.remaining())
+                throw new IOException("The message is too large");
+            buffer.put(bytes);
+        } else
+            MessageCodec.encode(message, buffer);
+        buffer.flip();
+    }
+
+    /**
+     * @return the channel, opened by the first call, or null if the transport is closed
+     * @throws IOException if the channel cannot be opened
+     */
+    private synchronized DatagramChannel openChannel() throws IOException {
+        if (channel == null && !closed)
+            channel = DatagramChannel.open();
+        return channel;
+    }
+
+    private static void send(final DatagramChannel channel, final ByteBuffer buffer, final SocketAddress recipient) {
+        if (!channel.isOpen())
+            return;
+        try {
+            buffer.rewind();
+            channel.send(buffer, recipient);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Unable to send the message to " + recipient);
+        }
+    }
+
+    /**
+     * Send a message to a collection of recipients. The message is encoded only once.
+     *
+     * @param message    the message to send
+     * @param recipients the recipients
+     * @throws IOException if the message cannot be encoded or if the channel cannot be opened
+     */
+    final void send(final MessageContent message, final Collection<? extends SocketAddress> recipients)
+            throws IOException {
+        if (recipients == null || recipients.isEmpty())
+            return;
+        final DatagramChannel channel = openChannel();
+        if (channel == null)
+            return;
+        LOGGER.finest(() -> "Send " + message.getCommand() + " to " + recipients.size() + " recipient(s)");
+        final ByteBuffer buffer = bufferPool.acquire();
+        try {
+            encode(message, buffer);
+            for (final SocketAddress recipient : recipients)
+                send(channel, buffer, recipient);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Send a message to one recipient
+     *
+     * @param message   the message to send
+     * @param recipient the recipient
+     * @throws IOException if the message cannot be encoded or if the channel cannot be opened
+     */
+    final void send(final MessageContent message, final SocketAddress recipient) throws IOException {
+        if (recipient == null)
+            return;
+        final DatagramChannel channel = openChannel();
+        if (channel == null)
+            return;
+        LOGGER.finest(() -> "Send " + message.getCommand() + " to " + recipient);
+        final ByteBuffer buffer = bufferPool.acquire();
+        try {
+            encode(message, buffer);
+            send(channel, buffer, recipient);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (channel != null)
+            channel.close();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * The address of a node with the version of its groups and services, used in place of the full content when the
+ * receiver may already know this version.
+ */
+class DigestContent extends AddressContent {
+
+    private int version;
+
+    /**
+     * The probe timestamp of the round-trip measure (see ProtocolListener.probeClock): the send time of a digest, or
+     * the send time of the digest echoed by an ack. Null if the message carries no probe.
+     */
+    private Integer probeTime;
+
+    public DigestContent() {
+    }
+
+    DigestContent(final String address, final UUID nodeLiveId, final int version) {
+        super(address, nodeLiveId);
+        this.version = version;
+    }
+
+    final int getVersion() {
+        return version;
+    }
+
+    final Integer getProbeTime() {
+        return probeTime;
+    }
+
+    final void setProbeTime(final Integer probeTime) {
+        this.probeTime = probeTime;
+    }
+
+    @Override
+    final public void writeExternal(final ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+        out.writeInt(version);
+    }
+
+    @Override
+    final public void readExternal(final ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+        version = in.readInt();
+    }
+
+    @Override
+    final void writeTo(final ByteBuffer buffer) {
+        super.writeTo(buffer);
+        MessageCodec.writeVarInt(buffer, version);
+        // The probe follows the load: without a load, an unknown load keeps the probe in place
+        if (getLoad() != null)
+            writeLoad(buffer);
+        else if (probeTime != null)
+            ClusterLoad.writeUnknown(buffer);
+        if (probeTime != null)
+            buffer.putInt(probeTime);
+    }
+
+    @Override
+    final void readFrom(final ByteBuffer buffer) throws IOException {
+        super.readFrom(buffer);
+        version = MessageCodec.readVarInt(buffer);
+        readLoad(buffer);
+        probeTime = buffer.remaining() >= Integer.BYTES ? buffer.getInt() : null;
+    }
+
+    @Override
+    final public String toString() {
+        return super.toString() + " v" + version;
+    }
+}
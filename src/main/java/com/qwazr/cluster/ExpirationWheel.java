@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timing wheel of the node expirations.
+ * <p>
+ * A node is scheduled once, in the slot of its expiration time. The keep-alive messages only move the expiration
+ * time of the node: when its slot is reached, a node which has been refreshed in the meantime is moved to the slot
+ * of its new expiration time. Each expiration check only visits the slots elapsed since the previous check.
+ * <p>
+ * The scheduling is lock-free (the new nodes are queued), the slots are only accessed by the expiration check.
+ */
+final class ExpirationWheel {
+
+    final static int WHEEL_SIZE = 512;
+
+    private final long tickMs;
+    private final ArrayDeque<ClusterNode>[] slots;
+    private final ConcurrentLinkedQueue<ClusterNode> incoming;
+
+    /**
+     * The last processed tick
+     */
+    private long cursor;
+
+    /**
+     * @param spanMs the usual expiration delay, covered by one turn of the wheel
+     */
+    @SuppressWarnings("unchecked")
+    ExpirationWheel(final long spanMs) {
+        tickMs = Math.max(1, spanMs / WHEEL_SIZE);
+        slots = new ArrayDeque[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            slots[i] = new ArrayDeque<>();
+        incoming = new ConcurrentLinkedQueue<>();
+        cursor = -1;
+    }
+
+    /**
+     * Schedule the node if it is not already in the wheel
+     *
+     * @param node a node with an expiration time
+     */
+    final void schedule(final ClusterNode node) {
+        if (!node.expirationScheduled.get() && node.expirationScheduled.compareAndSet(false, true))
+            incoming.add(node);
+    }
+
+    /**
+     * @param currentTimeMs the current time
+     * @return the nodes whose expiration time is passed. They are no longer scheduled.
+     */
+    final synchronized List<ClusterNode> expire(final long currentTimeMs) {
+        final long currentTick = currentTimeMs / tickMs;
+        if (cursor < 0)
+            cursor = currentTick - 1;
+        List<ClusterNode> expired = null;
+        ClusterNode node;
+        while ((node = incoming.poll()) != null)
+            expired = check(node, currentTimeMs, expired);
+        // After a long pause, one turn visits every node
+        final long lastTick = Math.min(currentTick, cursor + WHEEL_SIZE);
+        for (long tick = cursor + 1; tick <= lastTick; tick++) {
+            final ArrayDeque<ClusterNode> slot = slots[(int) (tick % WHEEL_SIZE)];
+            // The nodes moved to the same slot (one turn later) are added after the count
+            for (int count = slot.size(); count > 0; count--)
+                expired = check(slot.poll(), currentTimeMs, expired);
+        }
+        cursor = Math.max(cursor, currentTick);
+        return expired == null ? Collections.emptyList() : expired;
+    }
+
+    private List<ClusterNode> check(final ClusterNode node, final long currentTimeMs, List<ClusterNode> expired) {
+        final Long expirationTimeMs = node.getExpirationTimeMs();
+        if (expirationTimeMs == null || currentTimeMs > expirationTimeMs) {
+            node.expirationScheduled.set(false);
+            if (expirationTimeMs != null) {
+                if (expired == null)
+                    expired = new ArrayList<>();
+                expired.add(node);
+            }
+            return expired;
+        }
+        // The first tick which starts after the expiration time
+        slots[(int) ((expirationTimeMs / tickMs + 1) % WHEEL_SIZE)].add(node);
+        return expired;
+    }
+}
@@ -18,6 +18,7 @@ package com.qwazr.cluster;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
@@ -28,15 +29,31 @@ class FullContent extends AddressContent {
     public final Set<String> groups;
     public final Set<String> services;
 
+    /**
+     * The version of the groups and services of the node, -1 if unknown (legacy format)
+     */
+    private int version;
+
     public FullContent() {
         groups = new HashSet<>();
         services = new HashSet<>();
+        version = -1;
     }
 
     FullContent(final String address, final UUID nodeLiveId, final Set<String> groups, final Set<String> services) {
+        this(address, nodeLiveId, groups, services, -1);
+    }
+
+    FullContent(final String address, final UUID nodeLiveId, final Set<String> groups, final Set<String> services,
+                final int version) {
         super(address, nodeLiveId);
         this.groups = groups;
         this.services = services;
+        this.version = version;
+    }
+
+    final int getVersion() {
+        return version;
     }
 
     private static void writeCollection(final Collection<String> collection, final ObjectOutput out)
@@ -67,6 +84,72 @@ class FullContent extends AddressContent {
             services.add(in.readUTF());
     }
 
+    /**
+     * The groups are written first. A service which is also a group is written as the index of the group (plus one),
+     * the other services are written as 0 followed by the name. The version, if known, is written last, followed by
+     * the load of the node.
+     */
+    @Override
+    final void writeTo(final ByteBuffer buffer) {
+        super.writeTo(buffer);
+        if (groups == null)
+            MessageCodec.writeVarInt(buffer, 0);
+        else {
+            MessageCodec.writeVarInt(buffer, groups.size());
+            for (final String group : groups)
+                MessageCodec.writeString(buffer, group);
+        }
+        if (services == null)
+            MessageCodec.writeVarInt(buffer, 0);
+        else {
+            MessageCodec.writeVarInt(buffer, services.size());
+            for (final String service : services) {
+                final int groupIndex = groups == null || !groups.contains(service) ? -1 : indexOf(groups, service);
+                MessageCodec.writeVarInt(buffer, groupIndex + 1);
+                if (groupIndex == -1)
+                    MessageCodec.writeString(buffer, service);
+            }
+        }
+        if (version >= 0) {
+            MessageCodec.writeVarInt(buffer, version);
+            writeLoad(buffer);
+        }
+    }
+
+    private static int indexOf(final Collection<String> collection, final String value) {
+        int i = 0;
+        for (final String s : collection) {
+            if (s.equals(value))
+                return i;
+            i++;
+        }
+        return -1;
+    }
+
+    @Override
+    final void readFrom(final ByteBuffer buffer) throws IOException {
+        super.readFrom(buffer);
+        final int groupCount = MessageCodec.readVarInt(buffer);
+        if (groupCount < 0 || groupCount > buffer.remaining())
+            throw new IOException("Malformed group count: " + groupCount);
+        final String[] groupArray = new String[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            groupArray[i] = MessageCodec.readString(buffer);
+            groups.add(groupArray[i]);
+        }
+        int serviceCount = MessageCodec.readVarInt(buffer);
+        if (serviceCount < 0 || serviceCount > buffer.remaining())
+            throw new IOException("Malformed service count: " + serviceCount);
+        while (serviceCount-- > 0) {
+            final int groupIndex = MessageCodec.readVarInt(buffer);
+            if (groupIndex < 0 || groupIndex > groupCount)
+                throw new IOException("Malformed service reference: " + groupIndex);
+            services.add(groupIndex == 0 ? MessageCodec.readString(buffer) : groupArray[groupIndex - 1]);
+        }
+        version = buffer.hasRemaining() ? MessageCodec.readVarInt(buffer) : -1;
+        readLoad(buffer);
+    }
+
     @Override
     final public String toString() {
         return super.toString() + " " + groups.size() + "/" + services.size();
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+/**
+ * Ring buffer of the last heartbeat inter-arrival times of a node, used to compute the phi-accrual suspicion level
+ * (Hayashibara et al.). The writers are serialized, the readers only read volatile fields.
+ * <p>
+ * The nodes double their heartbeat period while the membership is stable (see ProtocolListener.run). A doubled
+ * interval is a new period, not a late heartbeat: it restarts the history, and the next interval is expected to
+ * double again until it reaches the maximum period.
+ */
+final class HeartbeatHistory {
+
+    final static int WINDOW_SIZE = 32;
+
+    /**
+     * The heartbeats received closer than this interval (or a quarter of the mean interval) are the same
+     * heartbeat relayed by several nodes, they are ignored.
+     */
+    final static long MIN_INTERVAL_MS = 50;
+
+    /**
+     * The suspicion level of a node which stopped sending heartbeats for a long time (avoids an infinite value)
+     */
+    final static double MAX_PHI = 100;
+
+    /**
+     * An interval between these ratios of the mean interval is a back-off step of the sender (a doubled period, with
+     * the jitter of both periods)
+     */
+    final static double BACK_OFF_MIN_RATIO = 1.5;
+    final static double BACK_OFF_MAX_RATIO = 2.5;
+
+    private final long[] intervals = new long[WINDOW_SIZE];
+    private int count;
+    private int index;
+    private long sum;
+    private long squareSum;
+
+    private volatile long lastHeartbeatMs;
+    private volatile long lastIntervalMs;
+    private volatile double mean;
+    private volatile double stdDeviation;
+
+    HeartbeatHistory() {
+        lastHeartbeatMs = -1;
+    }
+
+    final synchronized void heartbeat(final long currentTimeMs) {
+        final long last = lastHeartbeatMs;
+        if (last < 0) {
+            lastHeartbeatMs = currentTimeMs;
+            return;
+        }
+        final long interval = currentTimeMs - last;
+        if (interval < MIN_INTERVAL_MS || interval < mean / 4)
+            return;
+        if (count > 0 && interval >= mean * BACK_OFF_MIN_RATIO && interval <= mean * BACK_OFF_MAX_RATIO) {
+            // The sender backed off: the intervals of the previous period don't describe the next ones
+            count = 0;
+            index = 0;
+            sum = 0;
+            squareSum = 0;
+        }
+        if (count == WINDOW_SIZE) {
+            final long oldest = intervals[index];
+            sum -= oldest;
+            squareSum -= oldest * oldest;
+        } else
+            count++;
+        intervals[index] = interval;
+        index = (index + 1) % WINDOW_SIZE;
+        sum += interval;
+        squareSum += interval * interval;
+        final double m = (double) sum / count;
+        final double variance = Math.max(0, (double) squareSum / count - m * m);
+        // A perfectly regular history would make the suspicion jump at the first late heartbeat
+        stdDeviation = Math.max(Math.sqrt(variance), Math.max(m / 10, MIN_INTERVAL_MS));
+        mean = m;
+        lastIntervalMs = interval;
+        lastHeartbeatMs = currentTimeMs;
+    }
+
+    /**
+     * @return true if enough heartbeats were received to compute the suspicion level
+     */
+    final boolean isKnown() {
+        return mean > 0;
+    }
+
+    /**
+     * @param currentTimeMs the current time
+     * @return the suspicion level of a node which sends its heartbeats with a fixed period
+     */
+    final double phi(final long currentTimeMs) {
+        return phi(currentTimeMs, 0);
+    }
+
+    /**
+     * The probability that the next heartbeat arrives later than now is estimated with the logistic approximation
+     * of the normal distribution of the intervals. Phi is -log10 of this probability: 1 means a 10% chance to be
+     * wrong when suspecting the node, 2 means 1%, 3 means 0.1%, etc.
+     * <p>
+     * Below the maximum period, the sender may double its period at any heartbeat: the expected interval is twice
+     * the last one (at most the maximum period), otherwise a healthy node would be suspected before its next
+     * heartbeat.
+     *
+     * @param currentTimeMs the current time
+     * @param maxPeriodMs   the longest heartbeat period of the sender, zero if its period is fixed
+     * @return the suspicion level (at most MAX_PHI), zero if it is unknown
+     */
+    final double phi(final long currentTimeMs, final long maxPeriodMs) {
+        double m = mean;
+        if (m <= 0)
+            return 0;
+        double deviation = stdDeviation;
+        if (maxPeriodMs > 0) {
+            final double backOff = Math.min(lastIntervalMs * 2, maxPeriodMs);
+            if (backOff > m) {
+                m = backOff;
+                deviation = Math.max(deviation, m / 10);
+            }
+        }
+        final double elapsed = currentTimeMs - lastHeartbeatMs;
+        final double y = (elapsed - m) / deviation;
+        final double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        final double phi = elapsed > m ? -Math.log10(e / (1.0 + e)) : -Math.log10(1.0 - 1.0 / (1.0 + e));
+        return Math.min(phi, MAX_PHI);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Compact binary encoding of the UDP messages.
+ * <p>
+ * A packet starts with a two bytes magic number followed by the version of the format and the command.
+ * Lengths and counts are variable-length integers, UUIDs are written as two longs and strings as UTF-8.
+ * The packets which don't start with the magic number are handled as the legacy format (compressed Java
+ * serialization).
+ */
+final class MessageCodec {
+
+    final static byte MAGIC_0 = (byte) 0xC7;
+    final static byte MAGIC_1 = (byte) 0x5A;
+    final static byte VERSION = 1;
+
+    /**
+     * The maximum payload of an UDP datagram
+     */
+    final static int MAX_PACKET_SIZE = 65507;
+
+    /**
+     * The magic bytes, the version and the command which precede the content of every message
+     */
+    final static int HEADER_SIZE = 4;
+
+    final static int UUID_SIZE = 16;
+
+    /**
+     * Set QWAZR_CLUSTER_LEGACY_CODEC=true to keep sending the legacy format during a rolling upgrade.
+     * The legacy format is always accepted.
+     */
+    final static boolean LEGACY = Boolean.parseBoolean(ClusterConfiguration.property("QWAZR_CLUSTER_LEGACY_CODEC"));
+
+    private final static StringCache STRING_CACHE = new StringCache(4096, 256);
+
+    private MessageCodec() {
+    }
+
+    /**
+     * @param buffer the received bytes
+     * @return true if the buffer starts with the magic number of the binary format
+     */
+    static boolean isBinary(final ByteBuffer buffer) {
+        return buffer.remaining() >= 4 && buffer.get(buffer.position()) == MAGIC_0 &&
+                buffer.get(buffer.position() + 1) == MAGIC_1;
+    }
+
+    static void encode(final MessageContent message, final ByteBuffer buffer) throws IOException {
+        try {
+            buffer.put(MAGIC_0).put(MAGIC_1).put(VERSION);
+            message.writeTo(buffer);
+        } catch (BufferOverflowException e) {
+            throw new IOException("The message is too large", e);
+        }
+    }
+
+    static MessageContent decode(final ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.get() != MAGIC_0 || buffer.get() != MAGIC_1)
+                throw new IOException("Unknown UDP message (wrong header)");
+            final byte version = buffer.get();
+            if (version != VERSION)
+                throw new IOException("Unsupported message version: " + version);
+            final MessageContent message = new MessageContent();
+            message.readFrom(buffer);
+            return message;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            // The decoders check their counts and indices, this is only a safety net
+            throw new IOException("Malformed UDP message", e);
+        }
+    }
+
+    static void writeVarInt(final ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int readVarInt(final ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    /**
+     * @param value the integer to write
+     * @return the number of bytes written by writeVarInt
+     */
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    static void writeUUID(final ByteBuffer buffer, final UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    static UUID readUUID(final ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static int utf8Length(final String value) {
+        final int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80)
+                bytes++;
+            else if (c < 0x800)
+                bytes += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c))
+                bytes++;
+            else
+                bytes += 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * @param value the string to write
+     * @return the number of bytes written by writeString
+     */
+    static int stringSize(final String value) {
+        final int length = utf8Length(value);
+        return varIntSize(length) + length;
+    }
+
+    /**
+     * Write the string as UTF-8 without any intermediate array. Unpaired surrogates are replaced by '?'.
+     *
+     * @param buffer the destination
+     * @param value  the string to write
+     */
+    static void writeString(final ByteBuffer buffer, final String value) {
+        writeVarInt(buffer, utf8Length(value));
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80)
+                buffer.put((byte) c);
+            else if (c < 0x800)
+                buffer.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)))
+                        .put((byte) (0x80 | ((cp >> 12) & 0x3F)))
+                        .put((byte) (0x80 | ((cp >> 6) & 0x3F)))
+                        .put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c))
+                buffer.put((byte) '?');
+            else
+                buffer.put((byte) (0xE0 | (c >> 12)))
+                        .put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                        .put((byte) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    /**
+     * Read an UTF-8 string. The addresses, groups and services are repeated in every message, the strings
+     * already decoded are returned from a cache without allocation.
+     *
+     * @param buffer the source
+     * @return the decoded string
+     * @throws IOException if the buffer is malformed
+     */
+    static String readString(final ByteBuffer buffer) throws IOException {
+        final int length = readVarInt(buffer);
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("Malformed string length: " + length);
+        return STRING_CACHE.read(buffer, length);
+    }
+
+    /**
+     * A lossy cache of the decoded strings, indexed by the hash of their UTF-8 bytes.
+     * The entries are immutable, a concurrent replacement only costs a cache miss.
+     */
+    private static final class StringCache {
+
+        private final Entry[] entries;
+        private final int mask;
+        private final int maxLength;
+
+        private StringCache(final int size, final int maxLength) {
+            this.entries = new Entry[Integer.highestOneBit(size)];
+            this.mask = entries.length - 1;
+            this.maxLength = maxLength;
+        }
+
+        private static final class Entry {
+
+            private final byte[] bytes;
+            private final String value;
+
+            private Entry(final byte[] bytes) {
+                this.bytes = bytes;
+                this.value = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            private boolean matches(final ByteBuffer buffer, final int position, final int length) {
+                if (bytes.length != length)
+                    return false;
+                for (int i = 0; i < length; i++)
+                    if (bytes[i] != buffer.get(position + i))
+                        return false;
+                return true;
+            }
+        }
+
+        private String read(final ByteBuffer buffer, final int length) {
+            final int position = buffer.position();
+            final byte[] bytes;
+            if (length > maxLength) {
+                bytes = new byte[length];
+                buffer.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            int hash = 0x811C9DC5;
+            for (int i = 0; i < length; i++)
+                hash = (hash ^ buffer.get(position + i)) * 0x01000193;
+            final int slot = (hash ^ (hash >>> 16)) & mask;
+            final Entry entry = entries[slot];
+            if (entry != null && entry.matches(buffer, position, length)) {
+                buffer.position(position + length);
+                return entry.value;
+            }
+            bytes = new byte[length];
+            buffer.get(bytes);
+            final Entry newEntry = new Entry(bytes);
+            entries[slot] = newEntry;
+            return newEntry.value;
+        }
+    }
+}
@@ -15,31 +15,26 @@
  */
 package com.qwazr.cluster;
 
-import com.qwazr.utils.DatagramUtils;
-import com.qwazr.utils.LoggerUtils;
-import com.qwazr.utils.StringUtils;
+import com.qwazr.utils.SerializationUtils;
 
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.lang.reflect.InvocationTargetException;
-import java.net.SocketAddress;
-import java.util.Collection;
-import java.util.logging.Logger;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 
 class MessageContent implements Externalizable {
 
-    private static final Logger LOGGER = LoggerUtils.getLogger(MessageContent.class);
-
     private ClusterProtocol command;
-    private Externalizable content;
+    private AddressContent content;
 
     public MessageContent() {
         this(null, null);
     }
 
-    MessageContent(final ClusterProtocol command, final Externalizable content) {
+    MessageContent(final ClusterProtocol command, final AddressContent content) {
         this.command = command;
         this.content = content;
     }
@@ -48,10 +43,19 @@ class MessageContent implements Externalizable {
         return command;
     }
 
-    final <T extends Externalizable> T getContent() {
+    final <T extends AddressContent> T getContent() {
         return (T) content;
     }
 
+    private static AddressContent newContent(final ClusterProtocol command) throws IOException {
+        try {
+            return command.messageClassConstructor.newInstance();
+        }
+        catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new IOException(e);
+        }
+    }
+
     @Override
     final public void writeExternal(final ObjectOutput out) throws IOException {
         out.writeUTF(ClusterProtocol.CHAR_HEADER);
@@ -64,38 +68,39 @@ class MessageContent implements Externalizable {
         if (!ClusterProtocol.CHAR_HEADER.equals(in.readUTF()))
             throw new IOException("Unknown UDP message (wrong header)");
         command = ClusterProtocol.findCommand(in.readChar());
-        try {
-            content = command.messageClassConstructor.newInstance();
-        }
-        catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
-            throw new IOException(e);
-        }
+        content = newContent(command);
         content.readExternal(in);
     }
 
-    /**
-     * Send a message using UDP (Datagram) to a collection of recipients
-     *
-     * @param recipients
-     * @throws IOException
-     */
-    final MessageContent send(final Collection<SocketAddress> recipients) throws IOException {
-        LOGGER.finest(() -> "Send " + command.name() + " to " + StringUtils.join(recipients, ","));
-        DatagramUtils.send(this, recipients);
-        return this;
+    final void writeTo(final ByteBuffer buffer) {
+        buffer.put((byte) command.cmd);
+        content.writeTo(buffer);
+    }
+
+    final void readFrom(final ByteBuffer buffer) throws IOException {
+        command = ClusterProtocol.findCommand((char) buffer.get());
+        content = newContent(command);
+        content.readFrom(buffer);
     }
 
     /**
-     * Send the message using UDP (Datagram)
+     * Decode a received datagram, either in the binary format or in the legacy format
      *
-     * @param socketAddress
-     * @return
-     * @throws IOException
+     * @param buffer the received bytes
+     * @return the decoded message
+     * @throws IOException            if the datagram is malformed
+     * @throws ClassNotFoundException if the legacy datagram cannot be de-serialized
      */
-    final MessageContent send(final SocketAddress socketAddress) throws IOException {
-        LOGGER.finest(() -> "Send " + command.name() + " to " + socketAddress);
-        DatagramUtils.send(this, socketAddress);
-        return this;
+    static MessageContent of(final ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        if (MessageCodec.isBinary(buffer))
+            return MessageCodec.decode(buffer);
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return SerializationUtils.fromDefaultCompressedBytes(bytes);
+    }
+
+    static MessageContent of(final DatagramPacket datagramPacket) throws IOException, ClassNotFoundException {
+        return of(ByteBuffer.wrap(datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getLength()));
     }
 
 }
@@ -15,14 +15,14 @@
  */
 package com.qwazr.cluster;
 
+import com.qwazr.server.GenericServerBuilder;
 import com.qwazr.utils.LoggerUtils;
-import com.qwazr.utils.SerializationUtils;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,38 +39,36 @@ class MulticastListener extends ProtocolListener {
     }
 
     @Override
-    final public void acceptPacket(final DatagramPacket datagramPacket) {
-        try {
-            final MessageContent message = SerializationUtils.fromDefaultCompressedBytes(datagramPacket.getData());
+    protected void listen(final GenericServerBuilder builder, final ExecutorService executorService) {
+        // The multicast group is joined by the UDP server of the builder
+        builder.packetListener(this);
+    }
 
-            LOGGER.finest(() -> manager.me.httpAddressKey + " MULTICASTPACKET FROM: " + datagramPacket.getAddress() + " " +
-                    message.getCommand() + " " + message.getContent());
-            switch (message.getCommand()) {
-                case join:
-                    registerNode(message.getContent());
-                    ClusterProtocol.newForward(manager.me.httpAddressKey, manager.nodeLiveId, manager.myGroups,
-                            manager.myServices).send(multicastSocketAddress);
-                    break;
-                case forward:
-                    registerNode(message.getContent());
-                    break;
-                case leave:
-                    manager.clusterNodeMap.unregister(message.getContent());
-                    break;
-                default:
-                    break;
-            }
-        }
-        catch (IOException | ClassNotFoundException e) {
-            LOGGER.log(Level.SEVERE, e, () -> "Unable to de-serialize the message");
+    @Override
+    final protected void acceptMessage(final MessageContent message, final SocketAddress sender)
+            throws IOException {
+        LOGGER.finest(() -> manager.me.httpAddressKey + " MULTICASTPACKET FROM: " + sender + " " +
+                message.getCommand() + " " + message.getContent());
+        switch (message.getCommand()) {
+            case join:
+                registerNode(message.getContent());
+                transport.send(newForward(), multicastSocketAddress);
+                break;
+            case forward:
+                registerNode(message.getContent());
+                break;
+            case leave:
+                manager.clusterNodeMap.unregister(message.getContent());
+                break;
+            default:
+                break;
         }
     }
 
     protected synchronized void joinCluster(final Collection<String> services) {
         super.joinCluster(services);
         try {
-            ClusterProtocol.newJoin(manager.me.httpAddressKey, manager.nodeLiveId, manager.myGroups, manager.myServices)
-                    .send(multicastSocketAddress);
+            transport.send(newJoin(), multicastSocketAddress);
         }
         catch (IOException e) {
             LOGGER.log(Level.SEVERE, e, () -> "Unable to reach " + multicastSocketAddress);
@@ -79,7 +77,8 @@ class MulticastListener extends ProtocolListener {
 
     protected synchronized void leaveCluster() {
         try {
-            ClusterProtocol.newLeave(manager.me.httpAddressKey, manager.nodeLiveId).send(multicastSocketAddress);
+            transport.send(ClusterProtocol.newLeave(manager.me.httpAddressKey, manager.nodeLiveId),
+                    multicastSocketAddress);
         }
         catch (IOException e) {
             LOGGER.log(Level.SEVERE, e, () -> "Unable to reach " + multicastSocketAddress);
@@ -89,8 +88,7 @@ class MulticastListener extends ProtocolListener {
     @Override
     protected void runner() {
         try {
-            ClusterProtocol.newForward(manager.me.httpAddressKey, manager.nodeLiveId, manager.myGroups,
-                    manager.myServices).send(multicastSocketAddress);
+            transport.send(newForward(), multicastSocketAddress);
         }
         catch (IOException e) {
             LOGGER.log(Level.SEVERE, e, () -> "Error while running the multicast listener. The thread is stopped.");
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Several notify messages coalesced in one datagram. The address and the UUID are the ones of the sender.
+ */
+class NotifiesContent extends AddressContent {
+
+    public final List<AddressContent> nodes;
+
+    public NotifiesContent() {
+        nodes = new ArrayList<>();
+    }
+
+    NotifiesContent(final String address, final UUID nodeLiveId, final Collection<AddressContent> nodes) {
+        super(address, nodeLiveId);
+        this.nodes = new ArrayList<>(nodes);
+    }
+
+    @Override
+    final public void writeExternal(final ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+        out.writeInt(nodes.size());
+        for (final AddressContent node : nodes)
+            node.writeExternal(out);
+    }
+
+    @Override
+    final public void readExternal(final ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+        int size = in.readInt();
+        while (size-- > 0) {
+            final AddressContent node = new AddressContent();
+            node.readExternal(in);
+            nodes.add(node);
+        }
+    }
+
+    @Override
+    final void writeTo(final ByteBuffer buffer) {
+        super.writeTo(buffer);
+        MessageCodec.writeVarInt(buffer, nodes.size());
+        for (final AddressContent node : nodes)
+            node.writeTo(buffer);
+    }
+
+    @Override
+    final void readFrom(final ByteBuffer buffer) throws IOException {
+        super.readFrom(buffer);
+        final int size = MessageCodec.readVarInt(buffer);
+        if (size < 0 || size > buffer.remaining())
+            throw new IOException("Malformed node count: " + size);
+        for (int i = 0; i < size; i++) {
+            final AddressContent node = new AddressContent();
+            node.readFrom(buffer);
+            nodes.add(node);
+        }
+    }
+
+    @Override
+    final public String toString() {
+        return super.toString() + " " + nodes.size();
+    }
+}
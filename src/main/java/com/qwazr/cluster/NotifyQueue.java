@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.qwazr.utils.LoggerUtils;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The outbound queue of the notify messages. The notifies pending for the same recipient are coalesced (one entry
+ * per notified node) and sent together in one datagram when the flush interval is reached.
+ */
+class NotifyQueue {
+
+    private static final Logger LOGGER = LoggerUtils.getLogger(NotifyQueue.class);
+
+    /**
+     * The maximum size of a coalesced notify datagram. It fits in an Ethernet MTU of 1500 bytes with the IP and UDP
+     * headers: a larger datagram is fragmented by IP, and lost as soon as one of its fragments is lost.
+     */
+    final static int MAX_DATAGRAM_SIZE = 1400;
+
+    /**
+     * Triggers the delayed flushes of all the queues, the flushes themselves run on the executor of each queue
+     */
+    private final static ScheduledExecutorService FLUSH_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "NotifyQueue flush timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ClusterManager manager;
+    private final DatagramTransport transport;
+    private final ExecutorService executorService;
+    private final long flushIntervalMs;
+    private final int headerSize;
+
+    private Map<SocketAddress, Map<String, AddressContent>> pending;
+
+    private final LongAdder queuedCount = new LongAdder();
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder datagramCount = new LongAdder();
+
+    NotifyQueue(final ClusterManager manager, final DatagramTransport transport,
+                final ExecutorService executorService, final long flushIntervalMs) {
+        this.manager = manager;
+        this.transport = transport;
+        this.executorService = executorService;
+        this.flushIntervalMs = flushIntervalMs;
+        // The sender of the coalesced message and the largest node count
+        this.headerSize = MessageCodec.HEADER_SIZE + MessageCodec.stringSize(manager.me.httpAddressKey) +
+                MessageCodec.UUID_SIZE + MessageCodec.varIntSize(Integer.MAX_VALUE);
+        this.pending = new HashMap<>();
+    }
+
+    /**
+     * Queue a notify message for each recipient. If the interval is zero, or if the legacy codec is used (the
+     * legacy nodes don't know the coalesced message), the notify is sent immediately.
+     *
+     * @param node       the notified node
+     * @param recipients the recipients of the notify message
+     * @throws IOException if the message cannot be sent
+     */
+    final void offer(final AddressContent node, final Collection<? extends SocketAddress> recipients)
+            throws IOException {
+        if (recipients == null || recipients.isEmpty())
+            return;
+        final AddressContent entry = node.getClass() == AddressContent.class ?
+                node :
+                new AddressContent(node.getAddress(), node.getNodeLiveId());
+        queuedCount.add(recipients.size());
+        if (flushIntervalMs <= 0 || executorService == null || MessageCodec.LEGACY) {
+            datagramCount.add(recipients.size());
+            sentCount.add(recipients.size());
+            transport.post(ClusterProtocol.newNotify(entry), recipients);
+            return;
+        }
+        final boolean schedule;
+        synchronized (this) {
+            schedule = pending.isEmpty();
+            for (final SocketAddress recipient : recipients)
+                pending.computeIfAbsent(recipient, r -> new LinkedHashMap<>()).put(entry.getAddress(), entry);
+        }
+        if (schedule)
+            FLUSH_TIMER.schedule(this::delayedFlush, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void delayedFlush() {
+        try {
+            executorService.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Unable to flush the notifies");
+        }
+    }
+
+    /**
+     * Send all the pending notifies. The notifies of a recipient are split by encoded size in datagrams of at most
+     * MAX_DATAGRAM_SIZE bytes.
+     */
+    final void flush() {
+        final Map<SocketAddress, Map<String, AddressContent>> toSend;
+        synchronized (this) {
+            if (pending.isEmpty())
+                return;
+            toSend = pending;
+            pending = new HashMap<>();
+        }
+        toSend.forEach((recipient, nodes) -> {
+            final List<AddressContent> batch = new ArrayList<>();
+            int size = headerSize;
+            for (final AddressContent node : nodes.values()) {
+                final int nodeSize = MessageCodec.stringSize(node.getAddress()) + MessageCodec.UUID_SIZE;
+                if (!batch.isEmpty() && size + nodeSize > MAX_DATAGRAM_SIZE) {
+                    send(recipient, batch);
+                    batch.clear();
+                    size = headerSize;
+                }
+                batch.add(node);
+                size += nodeSize;
+            }
+            if (!batch.isEmpty())
+                send(recipient, batch);
+        });
+    }
+
+    private void send(final SocketAddress recipient, final List<AddressContent> nodes) {
+        try {
+            transport.send(nodes.size() == 1 ?
+                    ClusterProtocol.newNotify(nodes.get(0)) :
+                    ClusterProtocol.newNotifies(manager.me.httpAddressKey, manager.nodeLiveId, nodes), recipient);
+            datagramCount.increment();
+            sentCount.add(nodes.size());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Unable to send the notifies to " + recipient);
+        }
+    }
+
+    final ClusterProtocolStatusJson getStatus() {
+        return new ClusterProtocolStatusJson(queuedCount.sum(), sentCount.sum(), datagramCount.sum());
+    }
+}
@@ -15,42 +15,304 @@
  */
 package com.qwazr.cluster;
 
+import com.qwazr.server.GenericServerBuilder;
 import com.qwazr.server.UdpServerThread;
-import com.qwazr.utils.concurrent.PeriodicThread;
+import com.qwazr.utils.LoggerUtils;
 
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-abstract class ProtocolListener extends PeriodicThread implements UdpServerThread.PacketListener {
+/**
+ * Sends the heartbeats and removes the expired nodes. The heartbeat interval starts at the minimum period, it is
+ * doubled after each heartbeat without membership change until it reaches the configured period, and it falls back
+ * to the minimum period as soon as the membership changes.
+ */
+abstract class ProtocolListener implements Runnable, UdpServerThread.PacketListener {
+
+    private static final Logger LOGGER = LoggerUtils.getLogger(ProtocolListener.class);
 
     protected final ClusterManager manager;
 
-    final private static int DEFAULT_PERIOD_SEC = 120;
-    final private static int TWICE_DEFAULT_PERIOD_MS = DEFAULT_PERIOD_SEC * 1000 * 2;
+    protected final DatagramTransport transport;
+
+    private final long minPeriodMs;
+    private final long maxPeriodMs;
+    private final double jitter;
+    private final long expirationMs;
+
+    private volatile long periodMs;
+    private volatile Date lastExecutionDate;
+    private volatile boolean running;
 
     protected ProtocolListener(final ClusterManager manager) {
-        super(DEFAULT_PERIOD_SEC);
         this.manager = manager;
+        this.minPeriodMs = manager.configuration.heartbeatMinPeriodMs;
+        this.maxPeriodMs = manager.configuration.heartbeatPeriodMs;
+        this.jitter = manager.configuration.heartbeatJitter;
+        this.expirationMs = manager.configuration.getExpirationMs();
+        this.periodMs = minPeriodMs;
+        this.running = true;
+        this.transport = new DatagramTransport(manager.configuration.receiveQueueSize,
+                manager.configuration.sendQueueSize);
     }
 
-    protected synchronized void joinCluster(final Collection<String> services) {
-        if (services != null) {
-            manager.myServices.clear();
-            manager.myServices.addAll(services);
+    /**
+     * Register the receiving side of the protocol
+     *
+     * @param builder         the server builder
+     * @param executorService the executor of the server
+     * @throws IOException if the transport cannot be started
+     */
+    protected abstract void listen(final GenericServerBuilder builder, final ExecutorService executorService)
+            throws IOException;
+
+    protected abstract void acceptMessage(final MessageContent message, final SocketAddress sender)
+            throws IOException;
+
+    @Override
+    final public void acceptPacket(final DatagramPacket datagramPacket) {
+        try {
+            acceptMessage(MessageContent.of(datagramPacket), datagramPacket.getSocketAddress());
+        } catch (IOException | ClassNotFoundException e) {
+            LOGGER.log(Level.SEVERE, e, () -> "Unable to de-serialize the message");
         }
     }
 
+    protected synchronized void joinCluster(final Collection<String> services) {
+        if (services == null)
+            return;
+        final Set<String> newServices = new HashSet<>(services);
+        if (newServices.equals(manager.myServices))
+            return;
+        manager.myServices.clear();
+        manager.myServices.addAll(newServices);
+        manager.membershipVersion++;
+    }
+
+    /**
+     * @param message a message about myself
+     * @return the message with my current load
+     */
+    protected final MessageContent withLoad(final MessageContent message) {
+        message.getContent().setLoad(manager.getLoad());
+        return message;
+    }
+
+    protected final MessageContent newJoin() {
+        return withLoad(ClusterProtocol.newJoin(manager.me.httpAddressKey, manager.nodeLiveId, manager.myGroups,
+                manager.myServices, manager.membershipVersion));
+    }
+
+    protected final MessageContent newForward() {
+        return withLoad(ClusterProtocol.newForward(manager.me.httpAddressKey, manager.nodeLiveId, manager.myGroups,
+                manager.myServices, manager.membershipVersion));
+    }
+
+    protected final MessageContent newReply() {
+        return withLoad(ClusterProtocol.newReply(manager.me.httpAddressKey, manager.nodeLiveId, manager.myGroups,
+                manager.myServices, manager.membershipVersion));
+    }
+
+    /**
+     * @return a digest stamped with its send time, the ack of the receiver echoes it back
+     */
+    protected final MessageContent newDigest() {
+        final MessageContent message = withLoad(
+                ClusterProtocol.newDigest(manager.me.httpAddressKey, manager.nodeLiveId, manager.membershipVersion));
+        ((DigestContent) message.getContent()).setProbeTime(probeClock());
+        return message;
+    }
+
+    /**
+     * @param digest the digest to acknowledge
+     * @return an ack which echoes the probe timestamp of the digest
+     */
+    protected final MessageContent newAck(final DigestContent digest) {
+        final MessageContent message = withLoad(
+                ClusterProtocol.newAck(manager.me.httpAddressKey, manager.nodeLiveId, manager.membershipVersion));
+        ((DigestContent) message.getContent()).setProbeTime(digest.getProbeTime());
+        return message;
+    }
+
+    /**
+     * The probe timestamps only come back to the node which stamped them, they are never compared between nodes.
+     *
+     * @return the monotonic time in microseconds, truncated to 32 bits (it wraps every 71 minutes)
+     */
+    static int probeClock() {
+        return (int) (System.nanoTime() / 1000);
+    }
+
+    /**
+     * Measure the round-trip time to the node which answered a probe
+     *
+     * @param node      the node which answered
+     * @param probeTime the echoed probe timestamp (see probeClock), or null
+     */
+    static void measureRtt(final ClusterNode node, final Integer probeTime) {
+        if (node == null || probeTime == null)
+            return;
+        // The subtraction is correct across the wrapping of the clock
+        final int rttMicros = probeClock() - probeTime;
+        if (rttMicros >= 0 && rttMicros <= ClusterNode.MAX_RTT_MICROS)
+            node.measureRtt(rttMicros / 1000d);
+    }
+
+    protected Long getExpirationTime(final AddressContent message) {
+        return manager.isMe(message) ? null : System.currentTimeMillis() + expirationMs;
+    }
+
+    /**
+     * Refresh a node which announced an unchanged membership version
+     *
+     * @param message the digest of the node
+     * @return the refreshed node, or null if the full content of the node is required
+     */
+    protected ClusterNode refreshNode(final DigestContent message) {
+        return updateLoad(manager.clusterNodeMap.refreshDigest(message, getExpirationTime(message)), message);
+    }
+
     protected ClusterNode registerNode(final AddressContent message) {
-        final Long expirationTime = manager.isMe(message) ? null : System.currentTimeMillis() + TWICE_DEFAULT_PERIOD_MS;
+        final Long expirationTime = getExpirationTime(message);
         if (message instanceof FullContent)
-            return manager.clusterNodeMap.registerFull((FullContent) message, expirationTime);
+            return updateLoad(manager.clusterNodeMap.registerFull((FullContent) message, expirationTime), message);
         else
-            return manager.clusterNodeMap.registerAddress(message, expirationTime);
+            return updateLoad(manager.clusterNodeMap.registerAddress(message, expirationTime), message);
+    }
+
+    /**
+     * Keep the load advertised by the sender. The relayed messages (notify) don't carry any load.
+     */
+    private static ClusterNode updateLoad(final ClusterNode node, final AddressContent message) {
+        final ClusterLoad load = message.getLoad();
+        if (node != null && load != null)
+            node.setLoad(load);
+        return node;
+    }
+
+    /**
+     * Register the senders (and the notified nodes) of a batch of messages at once. The handlers of the messages
+     * then find their nodes already registered and only refresh them, without taking the write lock.
+     *
+     * @param messages the messages received together
+     */
+    protected void registerAll(final List<MessageContent> messages) {
+        final List<AddressContent> contents = new ArrayList<>(messages.size());
+        for (final MessageContent message : messages) {
+            switch (message.getCommand()) {
+                case leave:
+                case alive:
+                case digest:
+                case ack:
+                    // Not registrations, or registrations which depend on the membership version
+                    break;
+                case notifies:
+                    contents.addAll(((NotifiesContent) message.getContent()).nodes);
+                    break;
+                default:
+                    contents.add(message.getContent());
+                    break;
+            }
+        }
+        manager.clusterNodeMap.registerAll(contents, this::getExpirationTime);
     }
 
     protected abstract void leaveCluster();
 
-    @Override
+    /**
+     * @return the metrics of the protocol, or null if there is none
+     */
+    protected ClusterProtocolStatusJson getStatus() {
+        return null;
+    }
+
+    protected void closeTransport() {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, e::getMessage);
+        }
+    }
+
+    /**
+     * Called at each heartbeat
+     */
     protected void runner() {
         manager.clusterNodeMap.removeExpired();
     }
+
+    @Override
+    public void run() {
+        ClusterNodeSnapshot lastMembership = manager.clusterNodeMap.getSnapshot();
+        while (running) {
+            try {
+                runner();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, e, e::getMessage);
+            }
+            lastExecutionDate = new Date();
+            final ClusterNodeSnapshot membership = manager.clusterNodeMap.getSnapshot();
+            periodMs = membership != lastMembership ? minPeriodMs : Math.min(periodMs * 2, maxPeriodMs);
+            lastMembership = membership;
+            try {
+                waitNextHeartbeat(lastMembership);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Wait for the current period (with the jitter). The membership is checked every minimum period, a change
+     * shortens the wait to the minimum period.
+     */
+    private synchronized void waitNextHeartbeat(final ClusterNodeSnapshot lastMembership)
+            throws InterruptedException {
+        final long startMs = System.currentTimeMillis();
+        final long delayMs = jitter == 0 ?
+                periodMs :
+                (long) (periodMs * (1 + jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1)));
+        long deadlineMs = startMs + Math.max(1, delayMs);
+        long nowMs;
+        while (running && (nowMs = System.currentTimeMillis()) < deadlineMs) {
+            if (manager.clusterNodeMap.getSnapshot() != lastMembership)
+                deadlineMs = Math.min(deadlineMs, startMs + minPeriodMs);
+            wait(Math.max(1, Math.min(deadlineMs - nowMs, minPeriodMs)));
+        }
+    }
+
+    /**
+     * Stop the heartbeats
+     */
+    public synchronized void shutdown() {
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * @return the date of the last heartbeat
+     */
+    public Date getLastExecutionDate() {
+        return lastExecutionDate;
+    }
+
+    /**
+     * @return the metrics of the protocol, of the transport pipeline and the current heartbeat interval
+     */
+    final ClusterProtocolStatusJson getProtocolStatus() {
+        return new ClusterProtocolStatusJson(getStatus(), periodMs, transport.getReceivedCount(),
+                transport.getReceiveDropCount(), transport.getSendDropCount());
+    }
 }
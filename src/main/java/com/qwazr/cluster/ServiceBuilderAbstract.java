@@ -72,6 +72,32 @@ public class ServiceBuilderAbstract<T> implements ServiceBuilderInterface<T> {
 		return getService(clusterManager.getLeaderNode(group, serviceName));
 	}
 
+	@Override
+	final public T getLessLoaded(final String group) throws URISyntaxException {
+		Objects.requireNonNull(serviceName, "The service name is missing");
+		return getService(clusterManager.getLessLoadedNode(group, serviceName));
+	}
+
+	@Override
+	final public T getNearest(final String group) throws URISyntaxException {
+		Objects.requireNonNull(serviceName, "The service name is missing");
+		return getService(clusterManager.getNearestNode(group, serviceName));
+	}
+
+	@Override
+	final public T getByKey(final String group, final String key) throws URISyntaxException {
+		Objects.requireNonNull(serviceName, "The service name is missing");
+		Objects.requireNonNull(key, "The key is missing");
+		return getService(clusterManager.getNodeByKey(group, serviceName, key));
+	}
+
+	@Override
+	final public T getByKey(final String group, final String key, final int replicas) throws URISyntaxException {
+		Objects.requireNonNull(serviceName, "The service name is missing");
+		Objects.requireNonNull(key, "The key is missing");
+		return getService(clusterManager.getNodesByKey(group, serviceName, key, replicas));
+	}
+
 	@Override
 	final public T local() {
 		return local;
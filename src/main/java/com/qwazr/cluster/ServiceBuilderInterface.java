@@ -33,6 +33,41 @@ public interface ServiceBuilderInterface<T> {
 
 	T getLeader(String group) throws URISyntaxException;
 
+	/**
+	 * @param group the name of the group (optional)
+	 * @return the service of the less loaded of two random nodes
+	 */
+	default T getLessLoaded(String group) throws URISyntaxException {
+		throw new NotImplementedException("No load-aware selection");
+	}
+
+	/**
+	 * @param group the name of the group (optional)
+	 * @return the service of one of the nodes with the shortest round-trip time
+	 */
+	default T getNearest(String group) throws URISyntaxException {
+		throw new NotImplementedException("No latency-aware selection");
+	}
+
+	/**
+	 * @param group the name of the group (optional)
+	 * @param key   the routing key
+	 * @return the service of the node which owns the key on the consistent hash ring
+	 */
+	default T getByKey(String group, String key) throws URISyntaxException {
+		throw new NotImplementedException("No key routing");
+	}
+
+	/**
+	 * @param group    the name of the group (optional)
+	 * @param key      the routing key
+	 * @param replicas the number of nodes
+	 * @return the multi-node service of the distinct nodes which follow the key on the ring, the owner first
+	 */
+	default T getByKey(String group, String key, int replicas) throws URISyntaxException {
+		throw new NotImplementedException("No key routing");
+	}
+
 	default T local() {
 		throw new NotImplementedException("No local service");
 	}
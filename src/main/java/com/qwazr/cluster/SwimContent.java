@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The content of the SWIM messages (ping, ping-req and ack). The address and the UUID are the ones of the sender.
+ * The membership updates are piggybacked on every message.
+ */
+class SwimContent extends AddressContent {
+
+    enum State {
+        alive, suspect, dead
+    }
+
+    /**
+     * A membership update, ordered by the incarnation number announced by the node itself
+     */
+    static final class Update {
+
+        final State state;
+        final String address;
+        final UUID nodeLiveId;
+        final int incarnation;
+
+        Update(final State state, final String address, final UUID nodeLiveId, final int incarnation) {
+            this.state = state;
+            this.address = address;
+            this.nodeLiveId = nodeLiveId;
+            this.incarnation = incarnation;
+        }
+
+        @Override
+        public String toString() {
+            return state + " " + address + " " + incarnation;
+        }
+    }
+
+    private int sequence;
+
+    /**
+     * The node to probe (ping-req only)
+     */
+    private String target;
+
+    public final List<Update> updates;
+
+    public SwimContent() {
+        updates = new ArrayList<>();
+    }
+
+    SwimContent(final String address, final UUID nodeLiveId, final int sequence, final String target,
+                final Collection<Update> updates) {
+        super(address, nodeLiveId);
+        this.sequence = sequence;
+        this.target = target;
+        this.updates = updates == null ? new ArrayList<>() : new ArrayList<>(updates);
+    }
+
+    final int getSequence() {
+        return sequence;
+    }
+
+    final String getTarget() {
+        return target;
+    }
+
+    @Override
+    final public void writeExternal(final ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+        out.writeInt(sequence);
+        out.writeBoolean(target != null);
+        if (target != null)
+            out.writeUTF(target);
+        out.writeInt(updates.size());
+        for (final Update update : updates) {
+            out.writeByte(update.state.ordinal());
+            out.writeUTF(update.address);
+            out.writeLong(update.nodeLiveId.getMostSignificantBits());
+            out.writeLong(update.nodeLiveId.getLeastSignificantBits());
+            out.writeInt(update.incarnation);
+        }
+    }
+
+    @Override
+    final public void readExternal(final ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+        sequence = in.readInt();
+        target = in.readBoolean() ? in.readUTF() : null;
+        int size = in.readInt();
+        while (size-- > 0)
+            updates.add(new Update(toState(in.readByte()), in.readUTF(), new UUID(in.readLong(), in.readLong()),
+                    in.readInt()));
+    }
+
+    @Override
+    final void writeTo(final ByteBuffer buffer) {
+        super.writeTo(buffer);
+        MessageCodec.writeVarInt(buffer, sequence);
+        if (target == null)
+            buffer.put((byte) 0);
+        else {
+            buffer.put((byte) 1);
+            MessageCodec.writeString(buffer, target);
+        }
+        MessageCodec.writeVarInt(buffer, updates.size());
+        for (final Update update : updates) {
+            buffer.put((byte) update.state.ordinal());
+            MessageCodec.writeString(buffer, update.address);
+            MessageCodec.writeUUID(buffer, update.nodeLiveId);
+            MessageCodec.writeVarInt(buffer, update.incarnation);
+        }
+        writeLoad(buffer);
+    }
+
+    @Override
+    final void readFrom(final ByteBuffer buffer) throws IOException {
+        super.readFrom(buffer);
+        sequence = MessageCodec.readVarInt(buffer);
+        target = buffer.get() == 0 ? null : MessageCodec.readString(buffer);
+        final int size = MessageCodec.readVarInt(buffer);
+        if (size < 0 || size > buffer.remaining())
+            throw new IOException("Malformed update count: " + size);
+        for (int i = 0; i < size; i++)
+            updates.add(new Update(toState(buffer.get()), MessageCodec.readString(buffer),
+                    MessageCodec.readUUID(buffer), MessageCodec.readVarInt(buffer)));
+        readLoad(buffer);
+    }
+
+    private static State toState(final byte ordinal) throws IOException {
+        final State[] states = State.values();
+        if (ordinal < 0 || ordinal >= states.length)
+            throw new IOException("Unknown state: " + ordinal);
+        return states[ordinal];
+    }
+
+    @Override
+    final public String toString() {
+        return super.toString() + " #" + sequence + (target == null ? "" : " -> " + target) + " " + updates;
+    }
+}
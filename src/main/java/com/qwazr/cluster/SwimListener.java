@@ -0,0 +1,479 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.qwazr.server.GenericServerBuilder;
+import com.qwazr.utils.LoggerUtils;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SWIM failure detector (Das, Gupta, Motivala - 2002).
+ * <p>
+ * At each protocol period one node is pinged (round-robin over a shuffled list). If no ack is received before the
+ * ack timeout, some other nodes are asked to ping it (ping-req). A node which is still silent at the end of the
+ * period becomes suspect, and is removed if the suspicion is not refuted before the suspicion timeout.
+ * The alive/suspect/dead updates are piggybacked on the SWIM messages. The groups and services are still exchanged
+ * with the join/forward/reply messages.
+ */
+class SwimListener extends DatagramListener {
+
+    private static final Logger LOGGER = LoggerUtils.getLogger(SwimListener.class);
+
+    final static int MAX_PIGGYBACK_UPDATES = 8;
+
+    /**
+     * The state of a node, as known by the failure detector
+     */
+    private static final class Member {
+
+        private final SwimContent.Update update;
+        private final long suspectSinceMs;
+
+        private Member(final SwimContent.Update update, final long suspectSinceMs) {
+            this.update = update;
+            this.suspectSinceMs = suspectSinceMs;
+        }
+    }
+
+    /**
+     * A node declared dead, kept until the suspicion timeout so that stale alive updates can't resurrect it
+     */
+    private static final class Tombstone {
+
+        private final SwimContent.Update update;
+        private final long deadSinceMs;
+
+        private Tombstone(final SwimContent.Update update, final long deadSinceMs) {
+            this.update = update;
+            this.deadSinceMs = deadSinceMs;
+        }
+    }
+
+    /**
+     * An update waiting to be piggybacked
+     */
+    private static final class Gossip {
+
+        private final SwimContent.Update update;
+        private final AtomicInteger remaining;
+
+        private Gossip(final SwimContent.Update update, final int transmissions) {
+            this.update = update;
+            this.remaining = new AtomicInteger(transmissions);
+        }
+    }
+
+    /**
+     * A pending probe, its direct ack measures the round-trip time to the target
+     */
+    private static final class Probe {
+
+        private final CountDownLatch ack;
+        private final String target;
+        private final int probeTime;
+
+        private Probe(final String target, final int probeTime) {
+            this.ack = new CountDownLatch(1);
+            this.target = target;
+            this.probeTime = probeTime;
+        }
+    }
+
+    /**
+     * A ping done on behalf of another node (ping-req)
+     */
+    private static final class Relay {
+
+        private final SocketAddress requester;
+        private final int sequence;
+        private final long timeMs;
+
+        private Relay(final SocketAddress requester, final int sequence, final long timeMs) {
+            this.requester = requester;
+            this.sequence = sequence;
+            this.timeMs = timeMs;
+        }
+    }
+
+    private final long periodMs;
+    private final long ackTimeoutMs;
+    private final int indirectProbes;
+    private final int suspicionMultiplier;
+
+    private final AtomicInteger sequence = new AtomicInteger();
+    private volatile int incarnation;
+
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+    private final Map<String, Tombstone> tombstones = new ConcurrentHashMap<>();
+    private final Map<String, Gossip> gossips = new ConcurrentHashMap<>();
+    private final Map<Integer, Probe> probes = new ConcurrentHashMap<>();
+    private final Map<Integer, Relay> relays = new ConcurrentHashMap<>();
+
+    /**
+     * The probing order, only accessed by the probing task
+     */
+    private final List<String> probeOrder = new ArrayList<>();
+    private int probeIndex;
+
+    private volatile boolean running;
+
+    SwimListener(final ClusterManager manager, final ExecutorService executorService,
+                 final SocketAddress bindAddress) {
+        super(manager, executorService, bindAddress);
+        periodMs = manager.configuration.swimPeriodMs;
+        ackTimeoutMs = Math.max(1, periodMs / 5);
+        indirectProbes = manager.configuration.swimIndirectProbes;
+        suspicionMultiplier = manager.configuration.swimSuspicionMultiplier;
+        LOGGER.info(() -> "SWIM failure detector - period: " + periodMs + "ms");
+    }
+
+    @Override
+    protected void listen(final GenericServerBuilder builder, final ExecutorService executorService)
+            throws IOException {
+        super.listen(builder, executorService);
+        running = true;
+        executorService.submit(this::probeLoop);
+    }
+
+    /**
+     * The nodes are removed by the failure detector, not by the expiration time
+     */
+    @Override
+    protected Long getExpirationTime(final AddressContent message) {
+        return null;
+    }
+
+    /**
+     * The probing replaces the alive fan-out
+     */
+    @Override
+    protected void keepAlive() {
+    }
+
+    @Override
+    protected synchronized void leaveCluster() {
+        running = false;
+        super.leaveCluster();
+    }
+
+    @Override
+    protected void acceptMessage(final MessageContent message, final SocketAddress sender) throws IOException {
+        switch (message.getCommand()) {
+            case ping:
+                acceptPing(message.getContent());
+                break;
+            case pingReq:
+                acceptPingReq(message.getContent());
+                break;
+            case pingAck:
+                acceptPingAck(message.getContent());
+                break;
+            default:
+                super.acceptMessage(message, sender);
+                break;
+        }
+    }
+
+    /**
+     * Register the sender of a SWIM message. If its groups and services are unknown, my full content is sent, which
+     * triggers a full reply.
+     */
+    private ClusterNode registerSender(final SwimContent message) throws IOException {
+        final ClusterNode node = registerNode(message);
+        if (node != null && node.getGroups() == null && !manager.isMe(message))
+            transport.post(newForward(), node.address.address);
+        return node;
+    }
+
+    final void acceptPing(final SwimContent message) throws IOException {
+        apply(message.updates);
+        final ClusterNode node = registerSender(message);
+        if (node != null)
+            transport.post(newPingAck(message.getSequence()), node.address.address);
+    }
+
+    final void acceptPingReq(final SwimContent message) throws IOException {
+        apply(message.updates);
+        final ClusterNode requester = registerSender(message);
+        final ClusterNode target = manager.clusterNodeMap.getNodesMap().get(message.getTarget());
+        if (requester == null || target == null)
+            return;
+        final int relaySequence = sequence.incrementAndGet();
+        relays.put(relaySequence,
+                new Relay(requester.address.address, message.getSequence(), System.currentTimeMillis()));
+        transport.post(newPing(relaySequence), target.address.address);
+    }
+
+    final void acceptPingAck(final SwimContent message) throws IOException {
+        apply(message.updates);
+        final ClusterNode node = registerSender(message);
+        final Probe probe = probes.get(message.getSequence());
+        if (probe != null) {
+            // The acks relayed by a ping-req don't measure the direct round trip
+            if (node != null && probe.target.equals(node.address.httpAddressKey))
+                measureRtt(node, probe.probeTime);
+            probe.ack.countDown();
+        }
+        final Relay relay = relays.remove(message.getSequence());
+        if (relay != null)
+            transport.post(newPingAck(relay.sequence), relay.requester);
+    }
+
+    private MessageContent newPing(final int sequence) {
+        return withLoad(
+                ClusterProtocol.newPing(manager.me.httpAddressKey, manager.nodeLiveId, sequence, nextUpdates()));
+    }
+
+    private MessageContent newPingAck(final int sequence) {
+        return withLoad(
+                ClusterProtocol.newPingAck(manager.me.httpAddressKey, manager.nodeLiveId, sequence, nextUpdates()));
+    }
+
+    /**
+     * @return the number of times an update is piggybacked: 3 * log2(number of nodes)
+     */
+    private int transmissions() {
+        final int nodes = manager.clusterNodeMap.getNodes().size();
+        return 3 * (32 - Integer.numberOfLeadingZeros(nodes + 1));
+    }
+
+    private void gossip(final SwimContent.Update update) {
+        gossips.put(update.address, new Gossip(update, transmissions()));
+    }
+
+    private List<SwimContent.Update> nextUpdates() {
+        if (gossips.isEmpty())
+            return Collections.emptyList();
+        final List<SwimContent.Update> updates = new ArrayList<>(MAX_PIGGYBACK_UPDATES);
+        final Iterator<Map.Entry<String, Gossip>> iterator = gossips.entrySet().iterator();
+        while (iterator.hasNext() && updates.size() < MAX_PIGGYBACK_UPDATES) {
+            final Gossip gossip = iterator.next().getValue();
+            updates.add(gossip.update);
+            if (gossip.remaining.decrementAndGet() <= 0)
+                iterator.remove();
+        }
+        return updates;
+    }
+
+    /**
+     * Apply the piggybacked updates. An update about this node which is not alive is refuted by incrementing the
+     * incarnation number.
+     */
+    private void apply(final List<SwimContent.Update> updates) throws IOException {
+        for (final SwimContent.Update update : updates) {
+            if (manager.me.httpAddressKey.equals(update.address)) {
+                if (update.state != SwimContent.State.alive && update.incarnation >= incarnation)
+                    refute(update.incarnation);
+                continue;
+            }
+            switch (update.state) {
+                case alive:
+                    applyAlive(update);
+                    break;
+                case suspect:
+                    applySuspect(update);
+                    break;
+                case dead:
+                    applyDead(update);
+                    break;
+            }
+        }
+    }
+
+    private synchronized void refute(final int suspectedIncarnation) {
+        if (suspectedIncarnation < incarnation)
+            return;
+        incarnation = suspectedIncarnation + 1;
+        LOGGER.info(() -> "Refute the suspicion with the incarnation " + incarnation);
+        gossip(new SwimContent.Update(SwimContent.State.alive, manager.me.httpAddressKey, manager.nodeLiveId,
+                incarnation));
+    }
+
+    private void applyAlive(final SwimContent.Update update) throws IOException {
+        final Member member = members.get(update.address);
+        if (member != null && member.update.nodeLiveId.equals(update.nodeLiveId) &&
+                update.incarnation <= member.update.incarnation)
+            return;
+        final Tombstone tombstone = tombstones.get(update.address);
+        if (tombstone != null) {
+            // An older incarnation of a dead node is still gossiped: only a refutation brings it back
+            if (tombstone.update.nodeLiveId.equals(update.nodeLiveId) &&
+                    update.incarnation <= tombstone.update.incarnation)
+                return;
+            tombstones.remove(update.address, tombstone);
+        }
+        members.put(update.address, new Member(update, 0));
+        gossip(update);
+        final ClusterNode node = manager.clusterNodeMap.getNodesMap().get(update.address);
+        if (node == null || !update.nodeLiveId.equals(node.nodeLiveId)) {
+            // A node I don't know yet: introduce myself to get its groups and services
+            final ClusterNode newNode = registerNode(new AddressContent(update.address, update.nodeLiveId));
+            if (newNode != null)
+                transport.post(newDigest(), newNode.address.address);
+        }
+    }
+
+    private void applySuspect(final SwimContent.Update update) {
+        final ClusterNode node = manager.clusterNodeMap.getNodesMap().get(update.address);
+        if (node == null || !update.nodeLiveId.equals(node.nodeLiveId))
+            return;
+        final Member member = members.get(update.address);
+        if (member != null && (update.incarnation < member.update.incarnation ||
+                (update.incarnation == member.update.incarnation && member.suspectSinceMs != 0)))
+            return;
+        members.put(update.address, new Member(update, System.currentTimeMillis()));
+        gossip(update);
+    }
+
+    private void applyDead(final SwimContent.Update update) {
+        final ClusterNode node = manager.clusterNodeMap.getNodesMap().get(update.address);
+        if (node == null || !update.nodeLiveId.equals(node.nodeLiveId))
+            return;
+        final Member member = members.get(update.address);
+        if (member != null && update.incarnation < member.update.incarnation)
+            return;
+        remove(update);
+    }
+
+    private void remove(final SwimContent.Update update) {
+        members.remove(update.address);
+        tombstones.put(update.address, new Tombstone(update, System.currentTimeMillis()));
+        gossip(update);
+        LOGGER.info(() -> "Node declared dead: " + update.address);
+        manager.clusterNodeMap.unregister(new AddressContent(update.address, update.nodeLiveId));
+    }
+
+    private void suspect(final ClusterNode node) {
+        final Member member = members.get(node.address.httpAddressKey);
+        if (member != null && member.suspectSinceMs != 0)
+            return;
+        final SwimContent.Update update = new SwimContent.Update(SwimContent.State.suspect,
+                node.address.httpAddressKey, node.nodeLiveId, member == null ? 0 : member.update.incarnation);
+        LOGGER.info(() -> "Node suspected: " + update.address);
+        members.put(update.address, new Member(update, System.currentTimeMillis()));
+        gossip(update);
+    }
+
+    /**
+     * @return the suspicion timeout: multiplier * log10(number of nodes) * period
+     */
+    private long suspicionTimeoutMs() {
+        final int nodes = manager.clusterNodeMap.getNodes().size();
+        return (long) (suspicionMultiplier * Math.max(1, Math.log10(nodes)) * periodMs);
+    }
+
+    private void checkSuspects(final long currentMs) {
+        final long timeoutMs = suspicionTimeoutMs();
+        final Map<String, ClusterNode> nodesMap = manager.clusterNodeMap.getNodesMap();
+        members.forEach((address, member) -> {
+            final ClusterNode node = nodesMap.get(address);
+            if (node == null || !member.update.nodeLiveId.equals(node.nodeLiveId))
+                members.remove(address, member);
+            else if (member.suspectSinceMs != 0 && currentMs - member.suspectSinceMs > timeoutMs)
+                remove(new SwimContent.Update(SwimContent.State.dead, address, member.update.nodeLiveId,
+                        member.update.incarnation));
+        });
+        tombstones.values().removeIf(tombstone -> currentMs - tombstone.deadSinceMs > timeoutMs);
+        relays.values().removeIf(relay -> currentMs - relay.timeMs > periodMs * 2);
+    }
+
+    /**
+     * @return the next node to probe, round-robin over a shuffled list of the known nodes
+     */
+    private ClusterNode nextTarget() {
+        final Map<String, ClusterNode> nodesMap = manager.clusterNodeMap.getNodesMap();
+        if (probeIndex >= probeOrder.size()) {
+            probeOrder.clear();
+            for (final String address : nodesMap.keySet())
+                if (!manager.me.httpAddressKey.equals(address))
+                    probeOrder.add(address);
+            Collections.shuffle(probeOrder, ThreadLocalRandom.current());
+            probeIndex = 0;
+        }
+        while (probeIndex < probeOrder.size()) {
+            final ClusterNode node = nodesMap.get(probeOrder.get(probeIndex++));
+            if (node != null)
+                return node;
+        }
+        return null;
+    }
+
+    private List<ClusterNode> randomHelpers(final ClusterNode target) {
+        final List<ClusterNode> helpers = new ArrayList<>();
+        for (final ClusterNode node : manager.clusterNodeMap.getNodesMap().values())
+            if (node != target && !manager.me.httpAddressKey.equals(node.address.httpAddressKey))
+                helpers.add(node);
+        Collections.shuffle(helpers, ThreadLocalRandom.current());
+        return helpers.size() > indirectProbes ? helpers.subList(0, indirectProbes) : helpers;
+    }
+
+    private void probe(final ClusterNode target) throws IOException, InterruptedException {
+        final int probeSequence = sequence.incrementAndGet();
+        final MessageContent ping = newPing(probeSequence);
+        final Probe probe = new Probe(target.address.httpAddressKey, probeClock());
+        final CountDownLatch ack = probe.ack;
+        probes.put(probeSequence, probe);
+        try {
+            transport.send(ping, target.address.address);
+            if (ack.await(ackTimeoutMs, TimeUnit.MILLISECONDS))
+                return;
+            final MessageContent pingReq = withLoad(ClusterProtocol.newPingReq(manager.me.httpAddressKey,
+                    manager.nodeLiveId, probeSequence, target.address.httpAddressKey, nextUpdates()));
+            for (final ClusterNode helper : randomHelpers(target))
+                transport.send(pingReq, helper.address.address);
+            if (ack.await(periodMs - ackTimeoutMs, TimeUnit.MILLISECONDS))
+                return;
+            suspect(target);
+        } finally {
+            probes.remove(probeSequence);
+        }
+    }
+
+    private void probeLoop() {
+        while (running) {
+            final long startMs = System.currentTimeMillis();
+            try {
+                final ClusterNode target = nextTarget();
+                if (target != null)
+                    probe(target);
+                checkSuspects(System.currentTimeMillis());
+                final long waitMs = periodMs - (System.currentTimeMillis() - startMs);
+                if (waitMs > 0)
+                    Thread.sleep(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, e::getMessage);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static com.qwazr.cluster.ClusterTestManager.full;
+
+public class ClusterEventDispatcherTest {
+
+    private final static String NODE1 = "http://localhost:9231";
+    private final static String NODE2 = "http://localhost:9232";
+
+    private static ClusterTestManager testManager;
+    private static ClusterManager clusterManager;
+
+    private ClusterNodeMap nodeMap;
+
+    @BeforeClass
+    public static void beforeClass() {
+        testManager = new ClusterTestManager(9230);
+        clusterManager = testManager.clusterManager;
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        testManager.close();
+    }
+
+    @Before
+    public void before() {
+        nodeMap = new ClusterNodeMap(clusterManager, clusterManager.me.address);
+    }
+
+    private static ClusterEvent event(final ClusterEvent.Type type, final long version, final String node,
+                                      final String group, final String service, final String... nodes) {
+        return new ClusterEvent(type, version, node, group, service,
+                nodes.length == 0 ? null : new TreeSet<>(Arrays.asList(nodes)));
+    }
+
+    /**
+     * Apply the change and return the events computed from the previous snapshot
+     */
+    private List<ClusterEvent> diff(final Runnable change) {
+        final ClusterNodeSnapshot previous = nodeMap.getSnapshot();
+        change.run();
+        return ClusterEventDispatcher.diff(previous, nodeMap.getSnapshot(), false);
+    }
+
+    @Test
+    public void joinAndLeave() {
+        final UUID uuid1 = UUID.randomUUID();
+        List<ClusterEvent> events =
+                diff(() -> nodeMap.registerFull(full(NODE1, uuid1, new String[] { "group1" }, "service1"), null));
+        long version = nodeMap.getSnapshot().version;
+        Assert.assertEquals(Arrays.asList(
+                event(ClusterEvent.Type.node_joined, version, NODE1, null, null),
+                event(ClusterEvent.Type.groups_changed, version, null, "group1", null, NODE1),
+                event(ClusterEvent.Type.services_changed, version, null, null, "service1", NODE1),
+                event(ClusterEvent.Type.leader_changed, version, NODE1, "group1", null),
+                event(ClusterEvent.Type.leader_changed, version, NODE1, null, "service1"),
+                event(ClusterEvent.Type.leader_changed, version, NODE1, "group1", "service1")), events);
+
+        // The second node does not change the leaders
+        events = diff(() -> nodeMap.registerFull(
+                full(NODE2, UUID.randomUUID(), new String[] { "group1" }, "service1"), null));
+        version = nodeMap.getSnapshot().version;
+        Assert.assertEquals(Arrays.asList(
+                event(ClusterEvent.Type.node_joined, version, NODE2, null, null),
+                event(ClusterEvent.Type.groups_changed, version, null, "group1", null, NODE1, NODE2),
+                event(ClusterEvent.Type.services_changed, version, null, null, "service1", NODE1, NODE2)), events);
+
+        // A keep-alive is not a change
+        Assert.assertTrue(diff(() -> nodeMap.registerAddress(new AddressContent(NODE1, uuid1), 1000L)).isEmpty());
+
+        events = diff(() -> nodeMap.unregister(new AddressContent(NODE1, uuid1)));
+        version = nodeMap.getSnapshot().version;
+        Assert.assertEquals(Arrays.asList(
+                event(ClusterEvent.Type.groups_changed, version, null, "group1", null, NODE2),
+                event(ClusterEvent.Type.services_changed, version, null, null, "service1", NODE2),
+                event(ClusterEvent.Type.leader_changed, version, NODE2, "group1", null),
+                event(ClusterEvent.Type.leader_changed, version, NODE2, null, "service1"),
+                event(ClusterEvent.Type.leader_changed, version, NODE2, "group1", "service1"),
+                event(ClusterEvent.Type.node_left, version, NODE1, null, null)), events);
+    }
+
+    @Test
+    public void expiredAndRestarted() {
+        nodeMap.registerAddress(new AddressContent(NODE1, UUID.randomUUID()), null);
+        final ClusterNodeSnapshot registered = nodeMap.getSnapshot();
+
+        // A new incarnation of the node
+        final List<ClusterEvent> events =
+                diff(() -> nodeMap.registerAddress(new AddressContent(NODE1, UUID.randomUUID()), null));
+        Assert.assertEquals(Collections.singletonList(
+                event(ClusterEvent.Type.node_joined, nodeMap.getSnapshot().version, NODE1, null, null)), events);
+
+        nodeMap.unregister(new AddressContent(NODE1, null));
+        Assert.assertEquals(Collections.singletonList(
+                event(ClusterEvent.Type.node_expired, nodeMap.getSnapshot().version, NODE1, null, null)),
+                ClusterEventDispatcher.diff(registered, nodeMap.getSnapshot(), true));
+    }
+
+    @Test
+    public void listenerAndSubscriber() throws InterruptedException {
+        final List<ClusterEvent> listened = new CopyOnWriteArrayList<>();
+        final List<ClusterEvent> subscribed = new CopyOnWriteArrayList<>();
+        final CountDownLatch listenedLatch = new CountDownLatch(1);
+        final CountDownLatch subscribedLatch = new CountDownLatch(1);
+        final ClusterEventListener listener = events -> {
+            listened.addAll(events);
+            if (events.stream().anyMatch(event -> event.type == ClusterEvent.Type.node_left))
+                listenedLatch.countDown();
+        };
+        clusterManager.addEventListener(listener);
+        clusterManager.getEventPublisher().subscribe(new Flow.Subscriber<ClusterEvent>() {
+
+            @Override
+            public void onSubscribe(final Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(final ClusterEvent event) {
+                subscribed.add(event);
+                if (event.type == ClusterEvent.Type.node_left)
+                    subscribedLatch.countDown();
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        try {
+            final UUID uuid = UUID.randomUUID();
+            nodeMap.registerFull(full(NODE1, uuid, new String[] { "group2" }, "service2"), null);
+            nodeMap.registerFull(full(NODE1, uuid, new String[] { "group2" }, "service3"), null);
+            nodeMap.unregister(new AddressContent(NODE1, uuid));
+            Assert.assertTrue(listenedLatch.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(subscribedLatch.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(listened, subscribed);
+            // The events are delivered in the order of the snapshots
+            final List<Long> versions = new ArrayList<>();
+            listened.forEach(event -> versions.add(event.version));
+            final List<Long> sorted = new ArrayList<>(versions);
+            Collections.sort(sorted);
+            Assert.assertEquals(sorted, versions);
+            Assert.assertEquals(ClusterEvent.Type.node_joined, listened.get(0).type);
+            Assert.assertTrue(listened.contains(event(ClusterEvent.Type.services_changed, versions.get(0) + 1, null,
+                    null, "service3", NODE1)));
+        } finally {
+            Assert.assertTrue(clusterManager.removeEventListener(listener));
+        }
+    }
+
+    @Test
+    public void partitionsChanged() {
+        nodeMap.registerFull(full(NODE1, UUID.randomUUID(), new String[] { "group1" }, "service1"), null);
+        // No table in use, no partition event
+        List<ClusterEvent> events = diff(() -> nodeMap.registerFull(
+                full(NODE2, UUID.randomUUID(), new String[] { "group1" }, "service2"), null));
+        Assert.assertTrue(events.stream().noneMatch(e -> e.type == ClusterEvent.Type.partitions_changed));
+
+        final ClusterPartitionTable table = nodeMap.getSnapshot().getService("service1").partitions(
+                nodeMap.getSnapshot().version, 16, 1);
+        final ClusterNodeSnapshot previous = nodeMap.getSnapshot();
+        nodeMap.registerFull(full(NODE2, UUID.randomUUID(), new String[] { "group1" }, "service1"), null);
+        final ClusterNodeSnapshot next = nodeMap.getSnapshot();
+        events = ClusterEventDispatcher.diff(previous, next, false, 16, 1);
+        final ClusterPartitionTable nextTable = next.getService("service1").partitions();
+        Assert.assertNotNull(nextTable);
+        Assert.assertEquals(next.version, nextTable.version);
+        Assert.assertTrue(events.contains(new ClusterEvent(ClusterEvent.Type.partitions_changed, next.version, null,
+                null, "service1", null, nextTable.changedPartitions(table))));
+        // The partitions of the new node moved
+        Assert.assertFalse(nextTable.getPartitions(NODE2).isEmpty());
+        Assert.assertTrue(nextTable.changedPartitions(table).containsAll(nextTable.getPartitions(NODE2)));
+    }
+
+}
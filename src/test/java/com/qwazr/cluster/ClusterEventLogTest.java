@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ClusterEventLogTest {
+
+    private final static UUID NODE_LIVE_ID = UUID.randomUUID();
+
+    private static List<ClusterEvent> events(final long version, final String... nodes) {
+        final ClusterEvent[] events = new ClusterEvent[nodes.length];
+        for (int i = 0; i < nodes.length; i++)
+            events[i] = new ClusterEvent(ClusterEvent.Type.node_joined, version, nodes[i], null, null, null);
+        return Arrays.asList(events);
+    }
+
+    @Test
+    public void followTheEvents() throws InterruptedException, ExecutionException {
+        final ClusterEventLog log = new ClusterEventLog(NODE_LIVE_ID, 10);
+        log.start(5);
+
+        ClusterEventsJson result = poll(log, null, 0);
+        Assert.assertTrue(result.reset);
+        Assert.assertEquals(5, result.version);
+        Assert.assertEquals(NODE_LIVE_ID, result.nodeLiveId);
+
+        result = poll(log, 5L, 0);
+        Assert.assertFalse(result.reset);
+        Assert.assertEquals(5, result.version);
+        Assert.assertTrue(result.events.isEmpty());
+
+        log.onEvents(events(6, "node1", "node2"));
+        log.onEvents(events(7, "node3"));
+        result = poll(log, 5L, 0);
+        Assert.assertEquals(7, result.version);
+        Assert.assertEquals(Arrays.asList("node1", "node2", "node3"), nodes(result));
+        result = poll(log, 6L, 0);
+        Assert.assertEquals(Collections.singletonList("node3"), nodes(result));
+
+        // Unknown versions
+        Assert.assertTrue(poll(log, 4L, 0).reset);
+        Assert.assertTrue(poll(log, 8L, 0).reset);
+    }
+
+    @Test
+    public void eventsBeforeTheStartAreIgnored() throws InterruptedException, ExecutionException {
+        final ClusterEventLog log = new ClusterEventLog(NODE_LIVE_ID, 10);
+        log.onEvents(events(3, "node1"));
+        log.start(5);
+        log.onEvents(events(4, "node2"));
+        Assert.assertTrue(poll(log, 3L, 0).reset);
+        Assert.assertTrue(poll(log, 5L, 0).events.isEmpty());
+    }
+
+    @Test
+    public void overflow() throws InterruptedException, ExecutionException {
+        final ClusterEventLog log = new ClusterEventLog(NODE_LIVE_ID, 3);
+        log.start(0);
+        log.onEvents(events(1, "node1", "node2"));
+        log.onEvents(events(2, "node3", "node4"));
+        // Some events of the version 1 are lost
+        Assert.assertTrue(poll(log, 0L, 0).reset);
+        Assert.assertEquals(Arrays.asList("node3", "node4"), nodes(poll(log, 1L, 0)));
+    }
+
+    @Test
+    public void longPoll() throws Exception {
+        final ClusterEventLog log = new ClusterEventLog(NODE_LIVE_ID, 10);
+        log.start(1);
+        final long startMs = System.currentTimeMillis();
+        Assert.assertTrue(poll(log, 1L, 100).events.isEmpty());
+        Assert.assertTrue(System.currentTimeMillis() - startMs >= 100);
+        Assert.assertEquals(0, log.getWaiterCount());
+
+        final CompletableFuture<ClusterEventsJson> future = log.poll(1L, 10000);
+        Thread.sleep(100);
+        Assert.assertFalse(future.isDone());
+        Assert.assertEquals(1, log.getWaiterCount());
+        log.onEvents(events(2, "node1"));
+        final ClusterEventsJson result = future.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, result.version);
+        Assert.assertEquals(Collections.singletonList("node1"), nodes(result));
+        Assert.assertEquals(0, log.getWaiterCount());
+    }
+
+    private static ClusterEventsJson poll(final ClusterEventLog log, final Long since, final long waitMs)
+            throws InterruptedException, ExecutionException {
+        return log.poll(since, waitMs).get();
+    }
+
+    private static List<String> nodes(final ClusterEventsJson result) {
+        final String[] nodes = new String[result.events.size()];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = result.events.get(i).node;
+        return Arrays.asList(nodes);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class ClusterHashRingTest {
+
+    private final static int KEYS = 10000;
+
+    private static ClusterHashRing ring(final String... nodes) {
+        return ClusterNodeSet.of(new TreeSet<>(Arrays.asList(nodes))).ring();
+    }
+
+    @Test
+    public void emptyRing() {
+        final ClusterHashRing ring = ClusterNodeSet.EMPTY.ring();
+        Assert.assertNull(ring.get("key", Collections.emptySet()));
+        Assert.assertTrue(ring.get("key", 3, Collections.emptySet()).isEmpty());
+    }
+
+    @Test
+    public void sameKeySameNode() {
+        final ClusterHashRing ring1 = ring("http://node1:9091", "http://node2:9091", "http://node3:9091");
+        final ClusterHashRing ring2 = ring("http://node1:9091", "http://node2:9091", "http://node3:9091");
+        for (int i = 0; i < 100; i++)
+            Assert.assertEquals(ring1.get("key" + i, Collections.emptySet()),
+                    ring2.get("key" + i, Collections.emptySet()));
+    }
+
+    @Test
+    public void balancedAndMinimalMovement() {
+        final ClusterHashRing ring3 = ring("http://node1:9091", "http://node2:9091", "http://node3:9091");
+        final ClusterHashRing ring4 =
+                ring("http://node1:9091", "http://node2:9091", "http://node3:9091", "http://node4:9091");
+        final Map<String, Integer> counts = new HashMap<>();
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final String key = "key" + i;
+            final String before = ring3.get(key, Collections.emptySet());
+            final String after = ring4.get(key, Collections.emptySet());
+            counts.merge(after, 1, Integer::sum);
+            if (!before.equals(after)) {
+                // A key only moves to the new node
+                Assert.assertEquals("http://node4:9091", after);
+                moved++;
+            }
+        }
+        Assert.assertEquals(4, counts.size());
+        // Around a quarter of the keys, and each node around a quarter of the keys
+        Assert.assertTrue("Moved: " + moved, moved > KEYS / 8 && moved < KEYS / 2);
+        counts.values().forEach(count -> Assert.assertTrue("Count: " + count, count > KEYS / 8 && count < KEYS / 2));
+    }
+
+    @Test
+    public void excludedNodes() {
+        final ClusterHashRing ring = ring("http://node1:9091", "http://node2:9091", "http://node3:9091");
+        for (int i = 0; i < 100; i++) {
+            final String key = "key" + i;
+            final String owner = ring.get(key, Collections.emptySet());
+            final Set<String> excluded = Collections.singleton(owner);
+            final String next = ring.get(key, excluded);
+            Assert.assertNotEquals(owner, next);
+            // The key goes to its second replica
+            Assert.assertEquals(ring.get(key, 2, Collections.emptySet()).get(1), next);
+        }
+        final Set<String> all = new HashSet<>(Arrays.asList("http://node1:9091", "http://node2:9091",
+                "http://node3:9091"));
+        Assert.assertEquals(ring.get("key", Collections.emptySet()), ring.get("key", all));
+    }
+
+    @Test
+    public void replicas() {
+        final ClusterHashRing ring = ring("http://node1:9091", "http://node2:9091", "http://node3:9091");
+        final List<String> nodes = ring.get("key", 5, Collections.emptySet());
+        Assert.assertEquals(3, nodes.size());
+        Assert.assertEquals(3, new HashSet<>(nodes).size());
+        Assert.assertEquals(ring.get("key", Collections.emptySet()), nodes.get(0));
+        Assert.assertEquals(nodes.subList(0, 2), ring.get("key", 2, Collections.emptySet()));
+
+        // The excluded node comes last
+        final List<String> withExcluded = ring.get("key", 3, Collections.singleton(nodes.get(0)));
+        Assert.assertEquals(Arrays.asList(nodes.get(1), nodes.get(2), nodes.get(0)), withExcluded);
+        Assert.assertEquals(Collections.singletonList(nodes.get(1)),
+                ring.get("key", 1, Collections.singleton(nodes.get(0))));
+    }
+}
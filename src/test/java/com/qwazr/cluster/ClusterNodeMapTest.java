@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import static com.qwazr.cluster.ClusterTestManager.full;
+
+public class ClusterNodeMapTest {
+
+    private final static String NODE1 = "http://localhost:9201";
+    private final static String NODE2 = "http://localhost:9202";
+
+    private static ClusterTestManager testManager;
+    private static ClusterManager clusterManager;
+
+    private ClusterNodeMap nodeMap;
+
+    @BeforeClass
+    public static void beforeClass() {
+        testManager = new ClusterTestManager(9200);
+        clusterManager = testManager.clusterManager;
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        testManager.close();
+    }
+
+    @Before
+    public void before() {
+        nodeMap = new ClusterNodeMap(clusterManager, clusterManager.me.address);
+    }
+
+    @Test
+    public void registerFull() {
+        final UUID uuid = UUID.randomUUID();
+        nodeMap.registerFull(full(NODE1, uuid, new String[] { "group1" }, "service1"), null);
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1)), nodeMap.getByGroup("group1"));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1)), nodeMap.getByService("service1"));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1)), nodeMap.getGroupService("group1", "service1"));
+        Assert.assertTrue(
+                nodeMap.getExternalNodeAddresses().contains(nodeMap.getNodesMap().get(NODE1).address.address));
+    }
+
+    @Test
+    public void unchangedMembershipKeepsTheSnapshot() {
+        final UUID uuid = UUID.randomUUID();
+        nodeMap.registerFull(full(NODE1, uuid, new String[] { "group1" }, "service1"), 1000L);
+        final Map<String, ClusterNode> nodes = nodeMap.getNodesMap();
+        final TreeMap<String, ClusterNodeSet> groups = nodeMap.getGroups();
+        final TreeMap<String, ClusterNodeSet> services = nodeMap.getServices();
+
+        nodeMap.registerFull(full(NODE1, uuid, new String[] { "group1" }, "service1"), 2000L);
+        Assert.assertSame(nodes, nodeMap.getNodesMap());
+        Assert.assertSame(groups, nodeMap.getGroups());
+        Assert.assertSame(services, nodeMap.getServices());
+        Assert.assertEquals(Long.valueOf(2000L), nodeMap.getNodesMap().get(NODE1).getExpirationTimeMs());
+    }
+
+    @Test
+    public void keepAliveRefresh() {
+        final UUID uuid = UUID.randomUUID();
+        nodeMap.registerFull(full(NODE1, uuid, new String[] { "group1" }, "service1"), 1000L);
+        final Map<String, ClusterNode> nodes = nodeMap.getNodesMap();
+
+        final ClusterNode node = nodeMap.registerAddress(new AddressContent(NODE1, uuid), 3000L);
+        Assert.assertSame(nodes, nodeMap.getNodesMap());
+        Assert.assertSame(nodes.get(NODE1), node);
+        Assert.assertEquals(Long.valueOf(3000L), node.getExpirationTimeMs());
+
+        // A new incarnation of the node is a membership change
+        nodeMap.registerAddress(new AddressContent(NODE1, UUID.randomUUID()), 4000L);
+        Assert.assertNotSame(nodes, nodeMap.getNodesMap());
+        Assert.assertNotSame(node, nodeMap.getNodesMap().get(NODE1));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1)), nodeMap.getByGroup("group1"));
+    }
+
+    @Test
+    public void membershipVersion() {
+        final UUID uuid = UUID.randomUUID();
+        // Unknown node or unknown version: the full content is required
+        Assert.assertNull(nodeMap.refreshDigest(new DigestContent(NODE1, uuid, 1), 1000L));
+        nodeMap.registerFull(full(NODE1, uuid, new String[] { "group1" }, "service1"), 1000L);
+        Assert.assertNull(nodeMap.refreshDigest(new DigestContent(NODE1, uuid, 1), 1000L));
+
+        nodeMap.registerFull(new FullContent(NODE1, uuid, new HashSet<>(Arrays.asList("group1")),
+                new HashSet<>(Arrays.asList("service1")), 1), 2000L);
+        final Map<String, ClusterNode> nodes = nodeMap.getNodesMap();
+        final ClusterNode node = nodeMap.refreshDigest(new DigestContent(NODE1, uuid, 1), 3000L);
+        Assert.assertSame(nodes.get(NODE1), node);
+        Assert.assertSame(nodes, nodeMap.getNodesMap());
+        Assert.assertEquals(Long.valueOf(3000L), node.getExpirationTimeMs());
+
+        // A new version or a new incarnation requires the full content
+        Assert.assertNull(nodeMap.refreshDigest(new DigestContent(NODE1, uuid, 2), 4000L));
+        nodeMap.registerAddress(new AddressContent(NODE1, UUID.randomUUID()), 4000L);
+        Assert.assertEquals(-1, nodeMap.getNodesMap().get(NODE1).getMembershipVersion());
+    }
+
+    @Test
+    public void untouchedSetsAreShared() {
+        nodeMap.registerFull(full(NODE1, UUID.randomUUID(), new String[] { "group1" }, "service1"), null);
+        final TreeMap<String, ClusterNodeSet> groups = nodeMap.getGroups();
+        final TreeMap<String, ClusterNodeSet> services = nodeMap.getServices();
+
+        nodeMap.registerFull(full(NODE2, UUID.randomUUID(), new String[] { "group2" }, "service1"), null);
+        Assert.assertNotSame(groups, nodeMap.getGroups());
+        Assert.assertSame(groups.get("group1"), nodeMap.getGroups().get("group1"));
+        Assert.assertNotSame(services.get("service1"), nodeMap.getServices().get("service1"));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1, NODE2)), nodeMap.getByService("service1"));
+        // The previous snapshot is left untouched
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1)), services.get("service1"));
+    }
+
+    @Test
+    public void membershipChange() {
+        final UUID uuid = UUID.randomUUID();
+        nodeMap.registerFull(full(NODE1, uuid, new String[] { "group1" }, "service1"), null);
+        nodeMap.registerFull(full(NODE1, uuid, new String[] { "group2" }, "service2"), null);
+        Assert.assertTrue(nodeMap.getByGroup("group1").isEmpty());
+        Assert.assertTrue(nodeMap.getByService("service1").isEmpty());
+        Assert.assertFalse(nodeMap.getGroups().containsKey("group1"));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1)), nodeMap.getGroupService("group2", "service2"));
+    }
+
+    @Test
+    public void groupServiceIndex() {
+        nodeMap.registerFull(full(NODE1, UUID.randomUUID(), new String[] { "group1", "group2" }, "service1"), null);
+        nodeMap.registerFull(full(NODE2, UUID.randomUUID(), new String[] { "group1" }, "service1", "service2"),
+                null);
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1, NODE2)), nodeMap.getGroupService("group1", "service1"));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1)), nodeMap.getGroupService("group2", "service1"));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE2)), nodeMap.getGroupService("group1", "service2"));
+        Assert.assertTrue(nodeMap.getGroupService("group2", "service2").isEmpty());
+        Assert.assertTrue(nodeMap.getGroupService("dummy", "service1").isEmpty());
+        // The lookups return the shared instance
+        Assert.assertSame(nodeMap.getGroupService("group1", "service1"), nodeMap.getGroupService("group1", "service1"));
+
+        final SortedSet<String> group2Service1 = nodeMap.getGroupService("group2", "service1");
+        nodeMap.registerFull(full(NODE2, UUID.randomUUID(), new String[] { "group1" }, "service2"), null);
+        Assert.assertSame(group2Service1, nodeMap.getGroupService("group2", "service1"));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1)), nodeMap.getGroupService("group1", "service1"));
+        Assert.assertEquals(NODE1, nodeMap.getGroupService("group1", "service1").first());
+    }
+
+    @Test
+    public void randomAndLeader() {
+        Assert.assertNull(nodeMap.getGroupService("group1", "service1").random());
+        Assert.assertNull(nodeMap.getGroupService("group1", "service1").leader());
+        nodeMap.registerFull(full(NODE2, UUID.randomUUID(), new String[] { "group1" }, "service1"), null);
+        nodeMap.registerFull(full(NODE1, UUID.randomUUID(), new String[] { "group1" }, "service1"), null);
+        final ClusterNodeSet nodes = nodeMap.getGroupService("group1", "service1");
+        Assert.assertEquals(NODE1, nodes.leader());
+        final Set<String> picked = new HashSet<>();
+        for (int i = 0; i < 1000; i++)
+            picked.add(nodes.random());
+        Assert.assertEquals(nodes, picked);
+    }
+
+    @Test
+    public void sharedViews() {
+        nodeMap.registerFull(full(NODE1, UUID.randomUUID(), new String[] { "group1" }, "service1"), null);
+        Assert.assertSame(nodeMap.getByGroup("group1"), nodeMap.getByGroup("group1"));
+        Assert.assertSame(nodeMap.getByService("service1"), nodeMap.getByService("service1"));
+        Assert.assertSame(nodeMap.getNodes(), nodeMap.getNodes());
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1)), nodeMap.getNodes());
+        try {
+            nodeMap.getByService("service1").add(NODE2);
+            Assert.fail("UnsupportedOperationException not thrown");
+        } catch (UnsupportedOperationException e) {
+            //OK
+        }
+    }
+
+    @Test
+    public void unregister() {
+        final UUID uuid = UUID.randomUUID();
+        nodeMap.registerFull(full(NODE1, uuid, new String[] { "group1" }, "service1"), null);
+        nodeMap.unregister(new AddressContent(NODE1, uuid));
+        Assert.assertNull(nodeMap.getNodesMap().get(NODE1));
+        Assert.assertTrue(nodeMap.getGroups().isEmpty());
+        Assert.assertTrue(nodeMap.getServices().isEmpty());
+        Assert.assertTrue(nodeMap.getFullNodeAddresses().isEmpty());
+    }
+
+    @Test
+    public void removeExpired() {
+        nodeMap.registerFull(full(NODE1, UUID.randomUUID(), new String[] { "group1" }, "service1"),
+                System.currentTimeMillis() - 1000);
+        nodeMap.registerFull(full(NODE2, UUID.randomUUID(), new String[] { "group1" }, "service1"),
+                System.currentTimeMillis() + 60000);
+        nodeMap.removeExpired();
+        Assert.assertNull(nodeMap.getNodesMap().get(NODE1));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE2)), nodeMap.getByGroup("group1"));
+    }
+
+    @Test
+    public void heartbeatsOnlyForExpiringNodes() throws InterruptedException {
+        final UUID uuid1 = UUID.randomUUID();
+        final UUID uuid2 = UUID.randomUUID();
+        for (int i = 0; i < 3; i++) {
+            nodeMap.registerFull(full(NODE1, uuid1, new String[] { "group1" }, "service1"), null);
+            nodeMap.registerFull(full(NODE2, uuid2, new String[] { "group1" }, "service1"),
+                    System.currentTimeMillis() + 60000);
+            Thread.sleep(HeartbeatHistory.MIN_INTERVAL_MS + 10);
+        }
+        Assert.assertFalse(nodeMap.getNodesMap().get(NODE1).isPhiKnown());
+        Assert.assertTrue(nodeMap.getNodesMap().get(NODE2).isPhiKnown());
+    }
+
+    @Test
+    public void registerAll() {
+        final UUID uuid1 = UUID.randomUUID();
+        nodeMap.registerFull(full(NODE1, uuid1, new String[] { "group1" }, "service1"), null);
+        final Map<String, ClusterNode> nodes = nodeMap.getNodesMap();
+
+        // An already registered node does not take the write lock
+        Assert.assertEquals(0, nodeMap.registerAll(
+                Arrays.asList(full(NODE1, uuid1, new String[] { "group1" }, "service1")), message -> null));
+        Assert.assertSame(nodes, nodeMap.getNodesMap());
+
+        final String node3 = "http://localhost:9203";
+        final UUID uuid2 = UUID.randomUUID();
+        final List<AddressContent> batch = Arrays.asList(full(NODE1, uuid1, new String[] { "group2" }, "service1"),
+                full(NODE2, uuid2, new String[] { "group1" }, "service2"),
+                new AddressContent(node3, UUID.randomUUID()));
+        Assert.assertEquals(3, nodeMap.registerAll(batch, message -> 5000L));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1, NODE2, node3)), nodeMap.getNodes());
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE2)), nodeMap.getByGroup("group1"));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1)), nodeMap.getByGroup("group2"));
+        Assert.assertEquals(Long.valueOf(5000L), nodeMap.getNodesMap().get(NODE2).getExpirationTimeMs());
+
+        // The handlers then only refresh the registered nodes
+        final Map<String, ClusterNode> batchNodes = nodeMap.getNodesMap();
+        nodeMap.registerFull(full(NODE2, uuid2, new String[] { "group1" }, "service2"), 6000L);
+        Assert.assertSame(batchNodes, nodeMap.getNodesMap());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class ClusterPartitionTableTest {
+
+    private final static int PARTITIONS = 256;
+
+    private static ClusterNodeSet nodes(final int count) {
+        final TreeSet<String> nodes = new TreeSet<>();
+        for (int i = 0; i < count; i++)
+            nodes.add("http://10.0.0." + i + ":9091");
+        return ClusterNodeSet.of(nodes);
+    }
+
+    private static ClusterPartitionTable table(final int nodes, final int replicas) {
+        return ClusterPartitionTable.of(nodes(nodes), 1, PARTITIONS, replicas);
+    }
+
+    @Test
+    public void noNode() {
+        final ClusterPartitionTable table = table(0, 2);
+        Assert.assertEquals(PARTITIONS, table.getPartitionCount());
+        Assert.assertTrue(table.getNodes(0).isEmpty());
+        Assert.assertNull(table.getPrimary(table.getPartition("key")));
+    }
+
+    @Test
+    public void balancedReplicas() {
+        for (int replicas = 1; replicas <= 3; replicas++) {
+            final ClusterPartitionTable table = table(5, replicas);
+            final Map<String, Integer> primaries = new HashMap<>();
+            final Map<String, Integer> copies = new HashMap<>();
+            for (int p = 0; p < PARTITIONS; p++) {
+                final List<String> nodes = table.getNodes(p);
+                Assert.assertEquals(replicas, nodes.size());
+                Assert.assertEquals(replicas, new HashSet<>(nodes).size());
+                primaries.merge(nodes.get(0), 1, Integer::sum);
+                nodes.forEach(node -> copies.merge(node, 1, Integer::sum));
+            }
+            Assert.assertEquals(5, primaries.size());
+            final int maxPrimaries = (PARTITIONS + 4) / 5;
+            final int minCopies = PARTITIONS * replicas / 5;
+            final int maxCopies = (PARTITIONS * replicas + 4) / 5;
+            primaries.values().forEach(count -> Assert.assertTrue("Primaries: " + count, count <= maxPrimaries + 2));
+            copies.values().forEach(count -> Assert.assertTrue("Copies: " + count,
+                    count >= minCopies && count <= maxCopies));
+            copies.forEach((node, count) -> Assert.assertEquals(count.intValue(), table.getPartitions(node).size()));
+        }
+        // Not enough nodes for the replicas
+        Assert.assertEquals(2, table(2, 3).getNodes(0).size());
+    }
+
+    @Test
+    public void sameNodesSameTable() {
+        Assert.assertEquals(table(7, 2).partitions, table(7, 2).partitions);
+        final ClusterPartitionTable table = table(7, 2);
+        Assert.assertEquals(table.getPartition("key"), table.getPartition("key"));
+        Assert.assertTrue(table.getPartition("key") < PARTITIONS);
+    }
+
+    /**
+     * @return the number of copies which are on a new node
+     */
+    private static int moved(final ClusterPartitionTable before, final ClusterPartitionTable after) {
+        int moved = 0;
+        for (int p = 0; p < PARTITIONS; p++) {
+            final Set<String> previous = new HashSet<>(before.getNodes(p));
+            for (final String node : after.getNodes(p))
+                if (!previous.contains(node))
+                    moved++;
+        }
+        return moved;
+    }
+
+    @Test
+    public void limitedMovement() {
+        for (int count = 3; count <= 12; count += 3) {
+            final ClusterPartitionTable before = table(count, 2);
+            final ClusterPartitionTable after = table(count + 1, 2);
+            // The copies the new node must take
+            final int ideal = PARTITIONS * 2 / (count + 1);
+            final int joined = moved(before, after);
+            Assert.assertTrue("Join: " + joined + " ideal: " + ideal, joined >= ideal && joined <= ideal * 2);
+            // Leaving moves the copies of the leaving node back
+            Assert.assertTrue(moved(after, before) <= ideal * 2);
+            Assert.assertFalse(after.changedPartitions(before).isEmpty());
+            Assert.assertTrue(after.changedPartitions(after).isEmpty());
+        }
+    }
+
+    @Test
+    public void json() throws IOException {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final ClusterPartitionTable table = table(3, 2);
+        Assert.assertEquals(table,
+                objectMapper.readValue(objectMapper.writeValueAsBytes(table), ClusterPartitionTable.class));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.qwazr.cluster.ClusterTestManager.full;
+
+public class ClusterReplicaClientTest {
+
+    private final static String NODE1 = "http://localhost:9251";
+    private final static String NODE2 = "http://localhost:9252";
+
+    private static ClusterTestManager testManager;
+    private static ClusterManager clusterManager;
+
+    @BeforeClass
+    public static void beforeClass() {
+        testManager = new ClusterTestManager(9250);
+        clusterManager = testManager.clusterManager;
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        testManager.close();
+    }
+
+    private static void register(final String address, final UUID uuid, final String group,
+                                 final String... services) {
+        clusterManager.clusterNodeMap.registerFull(full(address, uuid, new String[] { group }, services), null);
+    }
+
+    @Test
+    public void lookupsFollowTheMembership() throws InterruptedException {
+        final UUID uuid1 = UUID.randomUUID();
+        register(NODE1, uuid1, "group1", "service1");
+        try (final ClusterReplicaClient replica = ClusterReplicaClient.of(clusterManager.getService())
+                .refreshMs(100)
+                .maxStalenessMs(5000)
+                .build()) {
+            Assert.assertNotNull(replica.getLastRefreshTimeMs());
+            Assert.assertEquals(new TreeSet<>(Collections.singletonList(NODE1)),
+                    replica.getActiveNodesByService("service1", "group1"));
+            Assert.assertEquals(NODE1, replica.getActiveNodeLeaderByService("service1", null));
+            Assert.assertEquals(NODE1, replica.getActiveNodeRandomByService("service1", "group1"));
+            Assert.assertTrue(replica.getActiveNodesByService("service1", "group2").isEmpty());
+            Assert.assertEquals(ClusterServiceStatusJson.StatusEnum.ok, replica.getServiceMap(null).get("service1"));
+            Assert.assertEquals(clusterManager.getService().getNodes(), replica.getNodes());
+            // The callers don't share the status of the replica
+            replica.getStatus().activeNodes.clear();
+            Assert.assertTrue(replica.getStatus().activeNodes.containsKey(NODE1));
+
+            // The change is seen by the replica
+            register(NODE2, UUID.randomUUID(), "group1", "service1", "service2");
+            final long endMs = System.currentTimeMillis() + 5000;
+            while (replica.getActiveNodesByService("service1", "group1").size() < 2 &&
+                    System.currentTimeMillis() < endMs)
+                Thread.sleep(20);
+            Assert.assertEquals(new TreeSet<>(Arrays.asList(NODE1, NODE2)),
+                    replica.getActiveNodesByService("service1", "group1"));
+            Assert.assertEquals(NODE2, replica.getActiveNodeLeaderByService("service2", "group1"));
+            Assert.assertEquals(1, replica.getServiceStatus("service2", null).activeCount);
+            for (int i = 0; i < 10; i++)
+                Assert.assertEquals(
+                        clusterManager.getService().getActiveNodeByKeyByService("service1", "key" + i, null),
+                        replica.getActiveNodeByKeyByService("service1", "key" + i, null));
+            Assert.assertEquals(
+                    clusterManager.getService().getActiveNodesByKeyByService("service1", "key", 2, "group1"),
+                    replica.getActiveNodesByKeyByService("service1", "key", 2, "group1"));
+        } finally {
+            clusterManager.clusterNodeMap.unregister(new AddressContent(NODE1, uuid1));
+        }
+    }
+
+    /**
+     * @return a source whose long-poll of the events throws the given exception the first times
+     */
+    private static ClusterServiceInterface failingEvents(final AtomicInteger eventsCalls, final int failures,
+                                                         final Supplier<RuntimeException> exception) {
+        final ClusterServiceInterface service = clusterManager.getService();
+        return (ClusterServiceInterface) Proxy.newProxyInstance(ClusterServiceInterface.class.getClassLoader(),
+                new Class<?>[] { ClusterServiceInterface.class }, (proxy, method, args) -> {
+                    if ("getEvents".equals(method.getName()) && eventsCalls.incrementAndGet() <= failures)
+                        throw exception.get();
+                    try {
+                        return method.invoke(service, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    @Test
+    public void eventsRetriedAfterFailure() throws InterruptedException {
+        final AtomicInteger eventsCalls = new AtomicInteger();
+        try (final ClusterReplicaClient replica = ClusterReplicaClient.of(
+                failingEvents(eventsCalls, 2, () -> new IllegalStateException("Transient failure")))
+                .refreshMs(50)
+                .maxStalenessMs(5000)
+                .build()) {
+            final long endMs = System.currentTimeMillis() + 5000;
+            while (eventsCalls.get() < 5 && System.currentTimeMillis() < endMs)
+                Thread.sleep(20);
+            Assert.assertTrue(eventsCalls.get() >= 5);
+            Assert.assertNotNull(replica.getLastRefreshTimeMs());
+        }
+    }
+
+    @Test
+    public void eventsNotSupported() throws InterruptedException {
+        final AtomicInteger eventsCalls = new AtomicInteger();
+        try (final ClusterReplicaClient replica = ClusterReplicaClient.of(
+                failingEvents(eventsCalls, Integer.MAX_VALUE, () -> new UnsupportedOperationException("Not found")))
+                .refreshMs(50)
+                .maxStalenessMs(5000)
+                .build()) {
+            final long refreshTimeMs = replica.getLastRefreshTimeMs();
+            Thread.sleep(500);
+            Assert.assertEquals(1, eventsCalls.get());
+            // The replica is still refreshed periodically
+            Assert.assertTrue(replica.getLastRefreshTimeMs() > refreshTimeMs);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stalenessBound() {
+        ClusterReplicaClient.of(clusterManager.getService()).refreshMs(1000).maxStalenessMs(500).build();
+    }
+}
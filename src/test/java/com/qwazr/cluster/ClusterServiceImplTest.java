@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import static com.qwazr.cluster.ClusterTestManager.full;
+
+public class ClusterServiceImplTest {
+
+    private static ClusterTestManager testManager;
+    private static ClusterManager clusterManager;
+
+    @BeforeClass
+    public static void beforeClass() {
+        testManager = new ClusterTestManager(9240);
+        clusterManager = testManager.clusterManager;
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        testManager.close();
+    }
+
+    @Test
+    public void ifNoneMatch() {
+        Assert.assertFalse(ClusterServiceImpl.matches(null, "abc-1"));
+        Assert.assertFalse(ClusterServiceImpl.matches("", "abc-1"));
+        Assert.assertTrue(ClusterServiceImpl.matches("\"abc-1\"", "abc-1"));
+        Assert.assertTrue(ClusterServiceImpl.matches("W/\"abc-1\"", "abc-1"));
+        Assert.assertTrue(ClusterServiceImpl.matches("\"abc-0\", W/\"abc-1\"", "abc-1"));
+        Assert.assertTrue(ClusterServiceImpl.matches("*", "abc-1"));
+        Assert.assertFalse(ClusterServiceImpl.matches("\"abc-12\"", "abc-1"));
+        Assert.assertFalse(ClusterServiceImpl.matches("abc-1", "abc-1"));
+    }
+
+    @Test
+    public void tagsFollowTheMembership() {
+        final String nodesTag = clusterManager.getNodesTag();
+        final String servicesTag = clusterManager.getServicesTag();
+        Assert.assertEquals(nodesTag, clusterManager.getNodesTag());
+        Assert.assertEquals(servicesTag, clusterManager.getServicesTag());
+        Assert.assertTrue(servicesTag.startsWith(nodesTag));
+        Assert.assertTrue(clusterManager.getStatusTag().startsWith(servicesTag));
+
+        clusterManager.clusterNodeMap.registerFull(
+                full("http://localhost:9241", UUID.randomUUID(), new String[] { "group1" }, "service1"), null);
+        Assert.assertNotEquals(nodesTag, clusterManager.getNodesTag());
+        Assert.assertNotEquals(servicesTag, clusterManager.getServicesTag());
+    }
+
+    @Test
+    public void statusIsShared() throws IOException {
+        final ClusterStatusJson status = clusterManager.getStatus();
+        Assert.assertSame(status, clusterManager.getStatus());
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final byte[] body = status.toJsonBytes(objectMapper);
+        Assert.assertSame(body, status.toJsonBytes(objectMapper));
+        final ClusterStatusJson read = objectMapper.readValue(body, ClusterStatusJson.class);
+        Assert.assertEquals(status.timestamp, read.timestamp);
+        Assert.assertEquals(status.activeNodes.keySet(), read.activeNodes.keySet());
+
+        clusterManager.clusterNodeMap.registerAddress(new AddressContent("http://localhost:9242", UUID.randomUUID()),
+                null);
+        final ClusterStatusJson newStatus = clusterManager.getStatus();
+        Assert.assertNotSame(status, newStatus);
+        Assert.assertTrue(newStatus.activeNodes.containsKey("http://localhost:9242"));
+    }
+
+    @Test
+    public void partitionTableFollowsTheMembership() {
+        Assert.assertNull(clusterManager.getPartitionTable(null, "service3").getPrimary(0));
+
+        clusterManager.clusterNodeMap.registerFull(
+                full("http://localhost:9243", UUID.randomUUID(), new String[] { "group1" }, "service3"), null);
+        final ClusterPartitionTable table = clusterManager.getPartitionTable(null, "service3");
+        Assert.assertEquals(ClusterConfiguration.of().build().partitions, table.getPartitionCount());
+        Assert.assertEquals("http://localhost:9243", table.getPrimary(table.getPartition("key")));
+
+        // Another service does not change the table
+        clusterManager.clusterNodeMap.registerFull(
+                full("http://localhost:9244", UUID.randomUUID(), new String[] { "group1" }, "service4"), null);
+        Assert.assertSame(table, clusterManager.getPartitionTable(null, "service3"));
+        Assert.assertSame(table, clusterManager.getService().getPartitions("service3", null));
+    }
+
+
+    @Test
+    public void lessLoadedNode() {
+        final String node1 = "http://localhost:9245";
+        final String node2 = "http://localhost:9246";
+        for (final String node : Arrays.asList(node1, node2))
+            clusterManager.clusterNodeMap.registerFull(
+                    full(node, UUID.randomUUID(), new String[] { "group1" }, "service5"), null);
+        clusterManager.clusterNodeMap.getNodesMap().get(node1).setLoad(ClusterLoad.of(10, 2, 0.5));
+        clusterManager.clusterNodeMap.getNodesMap().get(node2).setLoad(ClusterLoad.of(1, 0, 0.9));
+        Assert.assertEquals(ClusterLoad.of(10, 2, 0.5), clusterManager.getLoad(node1));
+        int lessLoaded = 0;
+        for (int i = 0; i < 1000; i++)
+            if (node2.equals(clusterManager.getLessLoadedNode("group1", "service5")))
+                lessLoaded++;
+        // The less loaded node wins whenever two different nodes are picked, about 7/8 of the picks
+        Assert.assertTrue("Picks: " + lessLoaded, lessLoaded > 800);
+        Assert.assertNull(clusterManager.getLessLoadedNode(null, "unknown"));
+
+        clusterManager.setLoadProvider(() -> ClusterLoad.of(7, 0, -1));
+        Assert.assertEquals(ClusterLoad.of(7, 0, -1), clusterManager.getLoad(clusterManager.me.httpAddressKey));
+        clusterManager.setLoadProvider(ClusterLoadProvider.SYSTEM);
+    }
+
+    @Test
+    public void nearestNode() {
+        final String node1 = "http://localhost:9247";
+        final String node2 = "http://localhost:9248";
+        final String node3 = "http://localhost:9249";
+        for (final String node : Arrays.asList(node1, node2, node3))
+            clusterManager.clusterNodeMap.registerFull(
+                    full(node, UUID.randomUUID(), new String[] { "group1" }, "service6"), null);
+        // Nothing measured yet: every active node
+        Assert.assertEquals(3, clusterManager.getNearestNodes("group1", "service6").size());
+
+        final ClusterNode clusterNode1 = clusterManager.clusterNodeMap.getNodesMap().get(node1);
+        clusterNode1.measureRtt(10);
+        Assert.assertEquals(Double.valueOf(10), clusterNode1.getRttMs());
+        clusterNode1.measureRtt(20);
+        Assert.assertEquals(10 + ClusterNode.RTT_ALPHA * 10, clusterNode1.getRttMs(), 0.0001);
+        clusterManager.clusterNodeMap.getNodesMap().get(node2).measureRtt(1);
+        clusterManager.clusterNodeMap.getNodesMap().get(node3).measureRtt(1.2);
+
+        // node1 is far, node3 is within the margin of node2
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(node2, node3)),
+                clusterManager.getNearestNodes("group1", "service6"));
+        for (int i = 0; i < 100; i++)
+            Assert.assertNotEquals(node1, clusterManager.getNearestNode("group1", "service6"));
+        Assert.assertEquals(Double.valueOf(12), clusterManager.getStatus().activeNodes.get(node1).rttMs);
+        Assert.assertNull(clusterManager.getNearestNode(null, "unknown"));
+        Assert.assertEquals(Double.valueOf(0), clusterManager.getRttMs(clusterManager.me.httpAddressKey));
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.qwazr.server.configuration.ServerConfiguration;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A cluster manager which is not registered in a server, shared by the unit tests. Closing it shuts down the
+ * manager and its executor.
+ */
+final class ClusterTestManager implements AutoCloseable {
+
+    final ExecutorService executorService;
+    final ClusterManager clusterManager;
+
+    /**
+     * @param webServicePort the port of the web service of this node, unique for each test class
+     */
+    ClusterTestManager(final int webServicePort) {
+        executorService = Executors.newCachedThreadPool();
+        clusterManager = new ClusterManager(executorService, ServerConfiguration.of()
+                .publicAddress("localhost")
+                .listenAddress("localhost")
+                .webServicePort(webServicePort)
+                .build());
+    }
+
+    static FullContent full(final String address, final UUID uuid, final String[] groups,
+                            final String... services) {
+        return new FullContent(address, uuid, new HashSet<>(Arrays.asList(groups)),
+                new HashSet<>(Arrays.asList(services)));
+    }
+
+    @Override
+    public void close() {
+        clusterManager.shutdown();
+        executorService.shutdownNow();
+    }
+}
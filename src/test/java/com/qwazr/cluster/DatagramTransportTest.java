@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class DatagramTransportTest {
+
+    private final static String ADDRESS = "http://localhost:9220";
+
+    private static ExecutorService executorService;
+
+    @BeforeClass
+    public static void beforeClass() {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void postedMessagesAreSent() throws IOException, InterruptedException {
+        final InetSocketAddress address = new InetSocketAddress("localhost", 9221);
+        final CountDownLatch received = new CountDownLatch(10);
+        try (final DatagramTransport receiver = new DatagramTransport();
+             final DatagramTransport sender = new DatagramTransport()) {
+            receiver.listen(address, executorService, (message, from) -> received.countDown());
+            sender.listen(new InetSocketAddress("localhost", 9222), executorService, (message, from) -> {
+            });
+            for (int i = 0; i < 10; i++)
+                sender.post(ClusterProtocol.newAlive(ADDRESS, UUID.randomUUID()), address);
+            Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(10, receiver.getReceivedCount());
+            Assert.assertEquals(0, sender.getSendDropCount());
+        }
+    }
+
+    @Test
+    public void closedBeforeUse() throws IOException {
+        final DatagramTransport transport = new DatagramTransport();
+        transport.close();
+        // The channel was never opened: the sends are ignored and it can't be bound anymore
+        transport.send(ClusterProtocol.newAlive(ADDRESS, UUID.randomUUID()), new InetSocketAddress("localhost", 9224));
+        try {
+            transport.listen(new InetSocketAddress("localhost", 9224), executorService, (message, from) -> {
+            });
+            Assert.fail("ClosedChannelException not thrown");
+        } catch (ClosedChannelException e) {
+            //OK
+        }
+    }
+
+    /**
+     * A slow handler fills the receive queue: the receiving loop keeps going and counts the dropped datagrams
+     */
+    @Test
+    public void burstIsDropped() throws IOException, InterruptedException {
+        final InetSocketAddress address = new InetSocketAddress("localhost", 9223);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try (final DatagramTransport receiver = new DatagramTransport(2, 2);
+             final DatagramTransport sender = new DatagramTransport()) {
+            receiver.listen(address, executorService, (message, from) -> {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            // The applying worker is blocked by the first message
+            sender.send(ClusterProtocol.newAlive(ADDRESS, UUID.randomUUID()), address);
+            Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i < 50; i++)
+                sender.send(ClusterProtocol.newAlive(ADDRESS, UUID.randomUUID()), address);
+            final long end = System.currentTimeMillis() + 5000;
+            while (receiver.getReceivedCount() < 50 && System.currentTimeMillis() < end)
+                Thread.sleep(50);
+            release.countDown();
+            Assert.assertEquals(50, receiver.getReceivedCount());
+            // Only the queue (2 datagrams) is kept while the worker is blocked
+            Assert.assertEquals(50 - 1 - 2, receiver.getReceiveDropCount());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+public class ExpirationWheelTest {
+
+    private final static long SPAN_MS = ExpirationWheel.WHEEL_SIZE * 10;
+
+    private static ClusterNode node(final int port, final Long expirationTimeMs) {
+        return new ClusterNode(new ClusterNodeAddress("http://localhost:" + port, 9091), UUID.randomUUID(),
+                expirationTimeMs);
+    }
+
+    @Test
+    public void expireInOrder() {
+        final ExpirationWheel wheel = new ExpirationWheel(SPAN_MS);
+        final ClusterNode node1 = node(9201, 1000L);
+        final ClusterNode node2 = node(9202, 2000L);
+        wheel.schedule(node1);
+        wheel.schedule(node2);
+        Assert.assertTrue(wheel.expire(500).isEmpty());
+        Assert.assertEquals(Collections.singletonList(node1), wheel.expire(1500));
+        Assert.assertFalse(node1.expirationScheduled.get());
+        Assert.assertEquals(Collections.singletonList(node2), wheel.expire(2500));
+        Assert.assertTrue(wheel.expire(10000).isEmpty());
+    }
+
+    @Test
+    public void refreshedNodeIsMoved() {
+        final ExpirationWheel wheel = new ExpirationWheel(SPAN_MS);
+        final ClusterNode node = node(9201, 1000L);
+        wheel.schedule(node);
+        Assert.assertTrue(wheel.expire(500).isEmpty());
+        node.setExpirationTime(3000L);
+        wheel.schedule(node); // Already scheduled: no-op
+        Assert.assertTrue(wheel.expire(1500).isEmpty());
+        Assert.assertTrue(node.expirationScheduled.get());
+        Assert.assertEquals(Collections.singletonList(node), wheel.expire(3500));
+    }
+
+    @Test
+    public void beyondOneTurn() {
+        final ExpirationWheel wheel = new ExpirationWheel(SPAN_MS);
+        final ClusterNode node = node(9201, 3 * SPAN_MS + 5);
+        wheel.schedule(node);
+        for (long time = 0; time <= 3 * SPAN_MS; time += 100)
+            Assert.assertTrue(wheel.expire(time).isEmpty());
+        Assert.assertEquals(Collections.singletonList(node), wheel.expire(3 * SPAN_MS + 100));
+    }
+
+    @Test
+    public void longPause() {
+        final ExpirationWheel wheel = new ExpirationWheel(SPAN_MS);
+        final ClusterNode node1 = node(9201, 1000L);
+        final ClusterNode node2 = node(9202, 2000L);
+        final ClusterNode node3 = node(9203, 100 * SPAN_MS);
+        wheel.schedule(node1);
+        wheel.schedule(node2);
+        wheel.schedule(node3);
+        Assert.assertTrue(wheel.expire(0).isEmpty());
+        Assert.assertEquals(Arrays.asList(node1, node2), wheel.expire(10 * SPAN_MS));
+    }
+
+    @Test
+    public void noExpirationIsDropped() {
+        final ExpirationWheel wheel = new ExpirationWheel(SPAN_MS);
+        final ClusterNode node = node(9201, 1000L);
+        wheel.schedule(node);
+        Assert.assertTrue(wheel.expire(0).isEmpty());
+        node.setExpirationTime(null);
+        Assert.assertTrue(wheel.expire(1500).isEmpty());
+        Assert.assertFalse(node.expirationScheduled.get());
+    }
+}
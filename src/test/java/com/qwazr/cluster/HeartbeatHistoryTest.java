@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class HeartbeatHistoryTest {
+
+    private static HeartbeatHistory regular(final long intervalMs, final int count) {
+        final HeartbeatHistory history = new HeartbeatHistory();
+        for (int i = 0; i <= count; i++)
+            history.heartbeat(i * intervalMs);
+        return history;
+    }
+
+    @Test
+    public void unknown() {
+        final HeartbeatHistory history = new HeartbeatHistory();
+        Assert.assertFalse(history.isKnown());
+        Assert.assertEquals(0, history.phi(1000000), 0);
+        history.heartbeat(1000);
+        Assert.assertFalse(history.isKnown());
+        Assert.assertEquals(0, history.phi(1000000), 0);
+    }
+
+    @Test
+    public void phiGrowsWithTheDelay() {
+        final HeartbeatHistory history = regular(1000, 10);
+        final long last = 10 * 1000;
+        Assert.assertTrue(history.isKnown());
+        Assert.assertTrue(history.phi(last + 500) < 1);
+        Assert.assertTrue(history.phi(last + 1000) < history.phi(last + 1200));
+        Assert.assertTrue(history.phi(last + 1200) < history.phi(last + 1500));
+        Assert.assertTrue(history.phi(last + 2000) > 8);
+        Assert.assertEquals(HeartbeatHistory.MAX_PHI, history.phi(last + 1000000), 0);
+    }
+
+    @Test
+    public void relayedHeartbeatsAreIgnored() {
+        final HeartbeatHistory history = regular(1000, 10);
+        // The same heartbeat relayed by other nodes
+        history.heartbeat(10 * 1000 + 10);
+        history.heartbeat(10 * 1000 + 100);
+        Assert.assertTrue(history.phi(11 * 1000) < 1);
+        Assert.assertTrue(history.phi(12 * 1000) > 8);
+    }
+
+    @Test
+    public void backOffIsNotSuspected() {
+        final long minPeriodMs = 15000;
+        final long maxPeriodMs = 120000;
+        final HeartbeatHistory history = regular(minPeriodMs, 31);
+        long last = 31 * minPeriodMs;
+        // Without the back-off, the doubled period is suspected before the next heartbeat
+        Assert.assertTrue(history.phi(last + 2 * minPeriodMs - 5000) > 8);
+        // The sender may double its period (with a jitter of 10%)
+        Assert.assertTrue(history.phi(last + 2 * minPeriodMs - 5000, maxPeriodMs) < 1);
+        Assert.assertTrue(history.phi(last + (long) (2.2 * minPeriodMs), maxPeriodMs) < 8);
+        // A dead node is still suspected
+        Assert.assertTrue(history.phi(last + 4 * minPeriodMs, maxPeriodMs) > 8);
+
+        // The doubled interval restarts the history, the next one may double again
+        last += 2 * minPeriodMs;
+        history.heartbeat(last);
+        Assert.assertTrue(history.phi(last + 4 * minPeriodMs - 5000, 0) > 8);
+        Assert.assertTrue(history.phi(last + 4 * minPeriodMs - 5000, maxPeriodMs) < 1);
+        Assert.assertTrue(history.phi(last + 8 * minPeriodMs, maxPeriodMs) > 8);
+
+        // Until the maximum period
+        final HeartbeatHistory stable = regular(maxPeriodMs, 10);
+        Assert.assertTrue(stable.phi(10 * maxPeriodMs + 2 * maxPeriodMs, maxPeriodMs) > 8);
+    }
+
+    @Test
+    public void excludeSuspects() {
+        final ClusterNodeSet set = ClusterNodeSet.of(Arrays.asList("node1", "node2", "node3"));
+        final Set<String> suspects = new HashSet<>(Arrays.asList("node1", "node3"));
+        Assert.assertSame(set, set.without(Collections.emptySet()));
+        Assert.assertEquals(Collections.singleton("node2"), set.without(suspects));
+        for (int i = 0; i < 100; i++)
+            Assert.assertEquals("node2", set.random(suspects));
+        // When every node is suspect, the lookups still return something
+        final Set<String> all = new HashSet<>(set);
+        Assert.assertSame(set, set.without(all));
+        Assert.assertNotNull(set.random(all));
+    }
+}
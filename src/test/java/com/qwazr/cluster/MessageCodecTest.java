@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.qwazr.utils.SerializationUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+public class MessageCodecTest {
+
+    private final static String ADDRESS = "http://localhost:9201";
+
+    private static ByteBuffer encode(final MessageContent message) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.MAX_PACKET_SIZE);
+        MessageCodec.encode(message, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static MessageContent roundTrip(final MessageContent message) throws IOException {
+        final ByteBuffer buffer = encode(message);
+        Assert.assertTrue(MessageCodec.isBinary(buffer));
+        return MessageCodec.decode(buffer);
+    }
+
+    @Test
+    public void varInt() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (int value : new int[] { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1 }) {
+            final int position = buffer.position();
+            MessageCodec.writeVarInt(buffer, value);
+            Assert.assertEquals(buffer.position() - position, MessageCodec.varIntSize(value));
+        }
+        buffer.flip();
+        for (int value : new int[] { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1 })
+            Assert.assertEquals(value, MessageCodec.readVarInt(buffer));
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void strings() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(256);
+        final String[] values = { "", "service", "gr\u00e9goire", "\u6f22\u5b57", "\ud83d\ude00" };
+        for (String value : values) {
+            final int position = buffer.position();
+            MessageCodec.writeString(buffer, value);
+            Assert.assertEquals(buffer.position() - position, MessageCodec.stringSize(value));
+        }
+        buffer.flip();
+        for (String value : values)
+            Assert.assertEquals(value, MessageCodec.readString(buffer));
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void addressContent() throws IOException {
+        final UUID uuid = UUID.randomUUID();
+        final MessageContent message = roundTrip(ClusterProtocol.newAlive(ADDRESS, uuid));
+        Assert.assertEquals(ClusterProtocol.alive, message.getCommand());
+        final AddressContent content = message.getContent();
+        Assert.assertEquals(ADDRESS, content.getAddress());
+        Assert.assertEquals(uuid, content.getNodeLiveId());
+    }
+
+    @Test
+    public void fullContent() throws IOException {
+        final UUID uuid = UUID.randomUUID();
+        final Set<String> groups = new HashSet<>(Arrays.asList("group1", "group2"));
+        final Set<String> services = new HashSet<>(Arrays.asList("service1", "group1", "service2"));
+        final MessageContent message = roundTrip(ClusterProtocol.newForward(ADDRESS, uuid, groups, services, 3));
+        Assert.assertEquals(ClusterProtocol.forward, message.getCommand());
+        final FullContent content = message.getContent();
+        Assert.assertEquals(ADDRESS, content.getAddress());
+        Assert.assertEquals(uuid, content.getNodeLiveId());
+        Assert.assertEquals(groups, content.groups);
+        Assert.assertEquals(services, content.services);
+        Assert.assertEquals(3, content.getVersion());
+    }
+
+    @Test
+    public void unknownVersion() throws IOException {
+        final MessageContent message = roundTrip(new MessageContent(ClusterProtocol.reply,
+                new FullContent(ADDRESS, UUID.randomUUID(), new HashSet<>(), new HashSet<>())));
+        Assert.assertEquals(-1, ((FullContent) message.getContent()).getVersion());
+    }
+
+    @Test
+    public void digestContent() throws IOException {
+        final UUID uuid = UUID.randomUUID();
+        final MessageContent message = roundTrip(ClusterProtocol.newDigest(ADDRESS, uuid, 42));
+        Assert.assertEquals(ClusterProtocol.digest, message.getCommand());
+        final DigestContent content = message.getContent();
+        Assert.assertEquals(ADDRESS, content.getAddress());
+        Assert.assertEquals(uuid, content.getNodeLiveId());
+        Assert.assertEquals(42, content.getVersion());
+    }
+
+    @Test
+    public void loadContent() throws IOException {
+        final ClusterLoad load = ClusterLoad.of(3, 12, 0.456);
+        Assert.assertEquals(Float.valueOf(0.46f), load.cpuLoad);
+
+        final MessageContent digest = ClusterProtocol.newDigest(ADDRESS, UUID.randomUUID(), 42);
+        digest.getContent().setLoad(load);
+        final DigestContent digestContent = roundTrip(digest).getContent();
+        Assert.assertEquals(42, digestContent.getVersion());
+        Assert.assertEquals(load, digestContent.getLoad());
+
+        final MessageContent forward = ClusterProtocol.newForward(ADDRESS, UUID.randomUUID(),
+                new HashSet<>(Arrays.asList("group1")), new HashSet<>(Arrays.asList("service1")), 3);
+        forward.getContent().setLoad(ClusterLoad.of(0, 0, -1));
+        final FullContent fullContent = roundTrip(forward).getContent();
+        Assert.assertEquals(3, fullContent.getVersion());
+        Assert.assertEquals(ClusterLoad.of(0, 0, -1), fullContent.getLoad());
+        Assert.assertNull(fullContent.getLoad().cpuLoad);
+
+        final MessageContent ping = ClusterProtocol.newPing(ADDRESS, UUID.randomUUID(), 13, null);
+        ping.getContent().setLoad(load);
+        Assert.assertEquals(load, ((SwimContent) roundTrip(ping).getContent()).getLoad());
+
+        // The messages of the previous versions don't carry any load
+        Assert.assertNull(((DigestContent) roundTrip(ClusterProtocol.newDigest(ADDRESS, UUID.randomUUID(), 1))
+                .getContent()).getLoad());
+        // The relayed addresses don't carry the load
+        final AddressContent node = new AddressContent("http://localhost:9202", UUID.randomUUID());
+        node.setLoad(load);
+        final NotifiesContent notifies = roundTrip(
+                ClusterProtocol.newNotifies(ADDRESS, UUID.randomUUID(), Arrays.asList(node, node))).getContent();
+        Assert.assertEquals(2, notifies.nodes.size());
+        Assert.assertNull(notifies.nodes.get(1).getLoad());
+    }
+
+    @Test
+    public void probeContent() throws IOException {
+        final ClusterLoad load = ClusterLoad.of(1, 0, 0.2);
+        final MessageContent digest = ClusterProtocol.newDigest(ADDRESS, UUID.randomUUID(), 5);
+        digest.getContent().setLoad(load);
+        ((DigestContent) digest.getContent()).setProbeTime(-123456789);
+        final DigestContent digestContent = roundTrip(digest).getContent();
+        Assert.assertEquals(5, digestContent.getVersion());
+        Assert.assertEquals(load, digestContent.getLoad());
+        Assert.assertEquals(Integer.valueOf(-123456789), digestContent.getProbeTime());
+
+        // An ack without load still carries the probe
+        final MessageContent ack = ClusterProtocol.newAck(ADDRESS, UUID.randomUUID(), 5);
+        ((DigestContent) ack.getContent()).setProbeTime(42);
+        final DigestContent ackContent = roundTrip(ack).getContent();
+        Assert.assertNull(ackContent.getLoad());
+        Assert.assertEquals(Integer.valueOf(42), ackContent.getProbeTime());
+        // Neither load nor probe
+        Assert.assertNull(((DigestContent) roundTrip(ClusterProtocol.newAck(ADDRESS, UUID.randomUUID(), 5))
+                .getContent()).getProbeTime());
+        // A digest with a load but without probe
+        final MessageContent noProbe = ClusterProtocol.newDigest(ADDRESS, UUID.randomUUID(), 5);
+        noProbe.getContent().setLoad(load);
+        Assert.assertNull(((DigestContent) roundTrip(noProbe).getContent()).getProbeTime());
+    }
+
+    @Test
+    public void notifiesContent() throws IOException {
+        final AddressContent node1 = new AddressContent("http://localhost:9202", UUID.randomUUID());
+        final AddressContent node2 = new AddressContent("http://localhost:9203", UUID.randomUUID());
+        final MessageContent message =
+                roundTrip(ClusterProtocol.newNotifies(ADDRESS, UUID.randomUUID(), Arrays.asList(node1, node2)));
+        Assert.assertEquals(ClusterProtocol.notifies, message.getCommand());
+        final NotifiesContent content = message.getContent();
+        Assert.assertEquals(ADDRESS, content.getAddress());
+        Assert.assertEquals(2, content.nodes.size());
+        Assert.assertEquals(node1.getAddress(), content.nodes.get(0).getAddress());
+        Assert.assertEquals(node2.getNodeLiveId(), content.nodes.get(1).getNodeLiveId());
+    }
+
+    @Test
+    public void swimContent() throws IOException {
+        final UUID uuid = UUID.randomUUID();
+        final SwimContent.Update update =
+                new SwimContent.Update(SwimContent.State.suspect, "http://localhost:9202", UUID.randomUUID(), 7);
+        final MessageContent message = roundTrip(ClusterProtocol.newPingReq(ADDRESS, uuid, 12, "http://localhost:9202",
+                Arrays.asList(update)));
+        Assert.assertEquals(ClusterProtocol.pingReq, message.getCommand());
+        final SwimContent content = message.getContent();
+        Assert.assertEquals(uuid, content.getNodeLiveId());
+        Assert.assertEquals(12, content.getSequence());
+        Assert.assertEquals("http://localhost:9202", content.getTarget());
+        Assert.assertEquals(1, content.updates.size());
+        Assert.assertEquals(SwimContent.State.suspect, content.updates.get(0).state);
+        Assert.assertEquals(update.nodeLiveId, content.updates.get(0).nodeLiveId);
+        Assert.assertEquals(7, content.updates.get(0).incarnation);
+
+        final SwimContent ping = roundTrip(ClusterProtocol.newPing(ADDRESS, uuid, 13, null)).getContent();
+        Assert.assertNull(ping.getTarget());
+        Assert.assertTrue(ping.updates.isEmpty());
+    }
+
+    @Test
+    public void legacyPacket() throws IOException, ClassNotFoundException {
+        final UUID uuid = UUID.randomUUID();
+        final byte[] bytes = SerializationUtils.toDefaultCompressedBytes(ClusterProtocol.newAlive(ADDRESS, uuid));
+        final MessageContent message = MessageContent.of(new DatagramPacket(bytes, bytes.length));
+        Assert.assertEquals(ClusterProtocol.alive, message.getCommand());
+        Assert.assertEquals(uuid, ((AddressContent) message.getContent()).getNodeLiveId());
+    }
+
+    @Test
+    public void binaryPacket() throws IOException, ClassNotFoundException {
+        final ByteBuffer buffer = encode(ClusterProtocol.newLeave(ADDRESS, UUID.randomUUID()));
+        final MessageContent message =
+                MessageContent.of(new DatagramPacket(buffer.array(), buffer.arrayOffset(), buffer.limit()));
+        Assert.assertEquals(ClusterProtocol.leave, message.getCommand());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedPacket() throws IOException {
+        final ByteBuffer buffer = encode(ClusterProtocol.newAlive(ADDRESS, UUID.randomUUID()));
+        buffer.limit(buffer.limit() - 4);
+        MessageCodec.decode(buffer);
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeServiceReference() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put(MessageCodec.MAGIC_0).put(MessageCodec.MAGIC_1).put(MessageCodec.VERSION);
+        buffer.put((byte) ClusterProtocol.forward.cmd);
+        MessageCodec.writeString(buffer, ADDRESS);
+        MessageCodec.writeUUID(buffer, UUID.randomUUID());
+        MessageCodec.writeVarInt(buffer, 1);
+        MessageCodec.writeString(buffer, "group1");
+        MessageCodec.writeVarInt(buffer, 1);
+        // A 5 bytes varint which decodes to a negative group index
+        MessageCodec.writeVarInt(buffer, -2);
+        buffer.flip();
+        MessageCodec.decode(buffer);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster;
+
+import com.qwazr.server.configuration.ServerConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class NotifyQueueTest {
+
+    private final static InetSocketAddress RECIPIENT = new InetSocketAddress("localhost", 9211);
+
+    private static ExecutorService executorService;
+    private static ClusterManager clusterManager;
+    private static DatagramTransport receiver;
+    private static DatagramTransport sender;
+    private final static BlockingQueue<MessageContent> received = new LinkedBlockingQueue<>();
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        executorService = Executors.newCachedThreadPool();
+        clusterManager = new ClusterManager(executorService, ServerConfiguration.of()
+                .publicAddress("localhost")
+                .listenAddress("localhost")
+                .webServicePort(9210)
+                .build());
+        receiver = new DatagramTransport();
+        receiver.listen(RECIPIENT, executorService, (message, address) -> received.add(message));
+        sender = new DatagramTransport();
+    }
+
+    @AfterClass
+    public static void afterClass() throws IOException {
+        sender.close();
+        receiver.close();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void coalescing() throws IOException, InterruptedException {
+        final NotifyQueue queue = new NotifyQueue(clusterManager, sender, executorService, 60_000);
+        final AddressContent node1 = new AddressContent("http://localhost:9301", UUID.randomUUID());
+        final AddressContent node2 = new AddressContent("http://localhost:9302", UUID.randomUUID());
+        final AddressContent node3 = new AddressContent("http://localhost:9303", UUID.randomUUID());
+        for (int i = 0; i < 2; i++)
+            for (AddressContent node : new AddressContent[] { node1, node2, node3 })
+                queue.offer(node, Collections.singleton(RECIPIENT));
+        queue.flush();
+
+        final MessageContent message = received.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(message);
+        Assert.assertEquals(ClusterProtocol.notifies, message.getCommand());
+        final NotifiesContent notifies = message.getContent();
+        Assert.assertEquals(clusterManager.me.httpAddressKey, notifies.getAddress());
+        Assert.assertEquals(3, notifies.nodes.size());
+        Assert.assertEquals(node1.getNodeLiveId(), notifies.nodes.get(0).getNodeLiveId());
+
+        final ClusterProtocolStatusJson status = queue.getStatus();
+        Assert.assertEquals(6, status.notifiesQueued);
+        Assert.assertEquals(3, status.notifiesSent);
+        Assert.assertEquals(1, status.notifyDatagrams);
+        Assert.assertEquals(6.0, status.coalescingRatio, 0);
+    }
+
+    @Test
+    public void datagramsFitInTheMtu() throws IOException, InterruptedException {
+        final NotifyQueue queue = new NotifyQueue(clusterManager, sender, executorService, 60_000);
+        for (int i = 0; i < 200; i++)
+            queue.offer(new AddressContent("http://localhost:" + (10000 + i), UUID.randomUUID()),
+                    Collections.singleton(RECIPIENT));
+        queue.flush();
+
+        int nodes = 0;
+        int datagrams = 0;
+        while (nodes < 200) {
+            final MessageContent message = received.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(message);
+            final ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.MAX_PACKET_SIZE);
+            MessageCodec.encode(message, buffer);
+            Assert.assertTrue(buffer.position() <= NotifyQueue.MAX_DATAGRAM_SIZE);
+            nodes += ((NotifiesContent) message.getContent()).nodes.size();
+            datagrams++;
+        }
+        Assert.assertEquals(200, nodes);
+        Assert.assertTrue(datagrams > 1);
+        Assert.assertEquals(datagrams, queue.getStatus().notifyDatagrams);
+    }
+
+    @Test
+    public void singleNotify() throws IOException, InterruptedException {
+        final NotifyQueue queue = new NotifyQueue(clusterManager, sender, executorService, 10);
+        final AddressContent node = new AddressContent("http://localhost:9304", UUID.randomUUID());
+        queue.offer(node, Collections.singleton(RECIPIENT));
+
+        final MessageContent message = received.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(message);
+        Assert.assertEquals(ClusterProtocol.notify, message.getCommand());
+        Assert.assertEquals(node.getNodeLiveId(), ((AddressContent) message.getContent()).getNodeLiveId());
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.qwazr.cluster.test;
 
+import com.qwazr.cluster.ClusterConfiguration;
+import com.qwazr.cluster.ClusterEventsJson;
 import com.qwazr.cluster.ClusterManager;
 import com.qwazr.cluster.ClusterServer;
 import com.qwazr.cluster.ClusterServiceBuilder;
@@ -31,6 +33,7 @@ import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
 import java.net.URISyntaxException;
+import java.util.Date;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -48,8 +51,12 @@ public class AllTest {
 	private static ClusterServiceBuilder serviceBuilder;
 	private static ClusterManager clusterManager;
 
+	private final static long HEARTBEAT_PERIOD_MS = 400;
+
 	@Test
 	public void test00_startServer() throws Exception {
+		System.setProperty(ClusterConfiguration.QWAZR_CLUSTER_HEARTBEAT_PERIOD_MS, Long.toString(HEARTBEAT_PERIOD_MS));
+		System.setProperty(ClusterConfiguration.QWAZR_CLUSTER_HEARTBEAT_MIN_PERIOD_MS, "100");
 		ClusterServer.main("--LISTEN_ADDR=localhost", "--PUBLIC_ADDR=localhost", "--WEBSERVICE_PORT:9091",
 				"--QWAZR_GROUPS=" + StringUtils.join(GROUPS, ","), "--QWAZR_MASTERS=localhost:9091");
 		clusterManager = ClusterServer.getInstance().getClusterManager();
@@ -59,6 +66,30 @@ public class AllTest {
 		client = serviceBuilder.remote(RemoteService.of(ADDRESS).build());
 	}
 
+	/**
+	 * With sub-second heartbeats the status is refreshed several times per second,
+	 * and the period backs off to the configured period once the membership is stable.
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void test10_subSecondHeartbeat() throws InterruptedException {
+		final Date first = client.getStatus().lastKeepAliveExecution;
+		final long end = System.currentTimeMillis() + 5000;
+		ClusterStatusJson status = client.getStatus();
+		while (System.currentTimeMillis() < end) {
+			status = client.getStatus();
+			if (first != null && status.lastKeepAliveExecution != null &&
+					status.lastKeepAliveExecution.after(first) &&
+					status.protocol.heartbeatPeriodMs == HEARTBEAT_PERIOD_MS)
+				break;
+			Thread.sleep(100);
+		}
+		Assert.assertNotNull(first);
+		Assert.assertTrue(status.lastKeepAliveExecution.after(first));
+		Assert.assertEquals(HEARTBEAT_PERIOD_MS, (long) status.protocol.heartbeatPeriodMs);
+	}
+
 	/**
 	 * We wait 30 seconds until the service is visible as active.
 	 *
@@ -70,7 +101,7 @@ public class AllTest {
 		int count = 0;
 		int activated_services_count = 0;
 		int activated_groups_count = 0;
-		while (count++ < 20) {
+		while (count++ < 60) {
 			activated_services_count = 0;
 			activated_groups_count = 0;
 
@@ -88,7 +119,7 @@ public class AllTest {
 				logger.info("Check activation succeed");
 				break;
 			}
-			Thread.sleep(5000);
+			Thread.sleep(500);
 		}
 		Assert.assertEquals(1, activated_services_count);
 		Assert.assertEquals(GROUPS.length, activated_groups_count);
@@ -208,9 +239,34 @@ public class AllTest {
 		Assert.assertEquals(serviceBuilder.local(), clusterService);
 	}
 
+	@Test
+	public void test80_events() {
+		final ClusterEventsJson first = client.getEvents(null, 0);
+		Assert.assertNotNull(first);
+		Assert.assertTrue(first.reset);
+		Assert.assertEquals(clusterManager.getService().getEvents(null, 0).nodeLiveId, first.nodeLiveId);
+		final ClusterEventsJson next = client.getEvents(first.version, 0);
+		Assert.assertFalse(next.reset);
+		Assert.assertTrue(next.version >= first.version);
+	}
+
+	/**
+	 * The second calls are conditional requests answered by the cached answers
+	 */
+	@Test
+	public void test82_conditionalRequests() {
+		Assert.assertEquals(client.getNodes(), client.getNodes());
+		Assert.assertEquals(client.getServiceMap(null), client.getServiceMap(null));
+		final ClusterServiceStatusJson status = client.getServiceStatus(ClusterServiceInterface.SERVICE_NAME, null);
+		Assert.assertEquals(status.active, client.getServiceStatus(ClusterServiceInterface.SERVICE_NAME, null).active);
+		Assert.assertNotNull(client.getStatus());
+	}
+
 	@AfterClass
 	public static void cleanup() {
 		ClusterServer.shutdown();
+		System.clearProperty(ClusterConfiguration.QWAZR_CLUSTER_HEARTBEAT_PERIOD_MS);
+		System.clearProperty(ClusterConfiguration.QWAZR_CLUSTER_HEARTBEAT_MIN_PERIOD_MS);
 	}
 
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014-2016 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.cluster.test;
+
+import com.qwazr.cluster.ClusterConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+
+public class SwimTest extends AbstractMultiTests {
+
+    @Override
+    protected void startServers() throws Exception {
+        System.setProperty(ClusterConfiguration.QWAZR_CLUSTER_PROTOCOL, "swim");
+        System.setProperty(ClusterConfiguration.QWAZR_CLUSTER_SWIM_PERIOD_MS, "200");
+        final String hostname = InetAddress.getLocalHost().getHostName();
+        final List<String> masters = Arrays.asList(hostname + ":9092", hostname + ":9093");
+        int port = 9092;
+        master1 = new ClusterTestServer(masters, hostname, port++, null, null, GROUP_MASTER);
+        master2 = new ClusterTestServer(masters, hostname, port++, null, null, GROUP_MASTER);
+        front1 = new ClusterTestServer(masters, hostname, port++, null, null, GROUP_FRONT);
+        front2 = new ClusterTestServer(masters, hostname, port++, null, null, GROUP_FRONT);
+        front3 = new ClusterTestServer(masters, hostname, port++, null, null, GROUP_FRONT);
+    }
+
+    @Test
+    public void test80_stoppedNodeIsRemoved() throws InterruptedException {
+        ClusterTestServer.servers.remove(front3);
+        ClusterTestServer.serverAdresses.remove(front3.address);
+        front3.stop();
+        final long end = System.currentTimeMillis() + 30 * 1000;
+        while (System.currentTimeMillis() < end) {
+            int removed = 0;
+            for (ClusterTestServer server : ClusterTestServer.servers) {
+                final SortedSet<String> founds = server.client.getActiveNodesByService("cluster", null);
+                if (!founds.contains(front3.address))
+                    removed++;
+            }
+            if (removed == ClusterTestServer.servers.size())
+                return;
+            Thread.sleep(500);
+        }
+        Assert.fail();
+    }
+
+    @AfterClass
+    public static void clearProperties() {
+        System.clearProperty(ClusterConfiguration.QWAZR_CLUSTER_PROTOCOL);
+        System.clearProperty(ClusterConfiguration.QWAZR_CLUSTER_SWIM_PERIOD_MS);
+    }
+}